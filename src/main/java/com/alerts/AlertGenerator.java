@@ -2,11 +2,11 @@ package com.alerts;
 
 import com.data_management.DataStorage;
 import com.data_management.Patient;
-import com.data_management.PatientRecord;
+import com.data_management.RecordTypeRegistry;
+import com.data_management.RecordVisitor;
 import com.alerts.AlertFactory.BloodPressureAlertFactory;
 import com.alerts.AlertFactory.BloodOxygenAlertFactory;
 import com.alerts.AlertFactory.ECGAlertFactory;
-import java.util.List;
 
 /**
  * This class checks patient data and creates alerts if something is wrong.
@@ -28,125 +28,144 @@ public class AlertGenerator {
     /**
      * Checks a patient's data to see if any alerts need to be triggered.
      * Calls different methods to check for specific problems.
+     * Each check only scans the record types it needs, using their registry codes.
      *
      * @param patient The patient whose data will be checked.
      */
     public void evaluateData(Patient patient) {
-        // Get all the patient's records
-        List<PatientRecord> records = patient.getRecords(0, System.currentTimeMillis());
+        // Check all the patient's records up to now
+        long now = System.currentTimeMillis();
 
         // Check for different types of alerts
-        checkBloodPressureAlerts(records, patient.getPatientId());
-        checkBloodSaturationAlerts(records, patient.getPatientId());
-        checkCombinedAlert(records, patient.getPatientId());
-        checkHeartRateAlerts(records, patient.getPatientId()); // Check heart rate too
+        checkBloodPressureAlerts(patient, now);
+        checkBloodSaturationAlerts(patient, now);
+        checkCombinedAlert(patient, now);
+        checkHeartRateAlerts(patient, now); // Check heart rate too
     }
 
     /**
      * Checks if the patient's blood pressure is too high, too low, or trending badly.
      *
-     * @param records   The patient's records to check.
-     * @param patientId The ID of the patient.
+     * @param patient The patient whose records are checked.
+     * @param endTime The end of the time range to check.
      */
-    private void checkBloodPressureAlerts(List<PatientRecord> records, int patientId) {
-        int consecutiveTrendCount = 0; // Counts how many times the trend continues
-        double lastSystolic = 0, lastDiastolic = 0;
-
-        for (PatientRecord record : records) {
-            if (record.getRecordType().equals("SystolicPressure")) {
-                double currentSystolic = record.getMeasurementValue();
-
-                // Check if systolic pressure is too high or too low
-                if (currentSystolic > 180 || currentSystolic < 90) {
-                    triggerAlert("BloodPressure", String.valueOf(patientId), "Critical Systolic Pressure", record.getTimestamp());
-                }
-
-                // Check for trends (e.g., increasing or decreasing)
-                if (Math.abs(currentSystolic - lastSystolic) > 10) {
-                    consecutiveTrendCount++;
-                } else {
-                    consecutiveTrendCount = 0; // Reset if the trend stops
-                }
-
-                // Trigger an alert if the trend continues for 3 readings
-                if (consecutiveTrendCount >= 3) {
-                    triggerAlert("BloodPressure", String.valueOf(patientId), "Blood Pressure Trend Alert", record.getTimestamp());
-                    consecutiveTrendCount = 0; // Reset after triggering
-                }
-
-                lastSystolic = currentSystolic; // Update the last systolic value
-            } else if (record.getRecordType().equals("DiastolicPressure")) {
-                double currentDiastolic = record.getMeasurementValue();
-
-                // Check if diastolic pressure is too high or too low
-                if (currentDiastolic > 120 || currentDiastolic < 60) {
-                    triggerAlert("BloodPressure", String.valueOf(patientId), "Critical Diastolic Pressure", record.getTimestamp());
-                }
-
-                lastDiastolic = currentDiastolic; // Update the last diastolic value
+    private void checkBloodPressureAlerts(Patient patient, long endTime) {
+        String patientId = String.valueOf(patient.getPatientId());
+
+        patient.forEachRecord(RecordTypeRegistry.SYSTOLIC_PRESSURE, 0, endTime, new SystolicCheck(patientId));
+
+        patient.forEachRecord(RecordTypeRegistry.DIASTOLIC_PRESSURE, 0, endTime, (timestamp, currentDiastolic) -> {
+            // Check if diastolic pressure is too high or too low
+            if (currentDiastolic > 120 || currentDiastolic < 60) {
+                triggerAlert("BloodPressure", patientId, "Critical Diastolic Pressure", timestamp);
             }
-        }
+        });
     }
 
     /**
      * Checks if the patient's blood oxygen saturation is too low.
      *
-     * @param records   The patient's records to check.
-     * @param patientId The ID of the patient.
+     * @param patient The patient whose records are checked.
+     * @param endTime The end of the time range to check.
      */
-    private void checkBloodSaturationAlerts(List<PatientRecord> records, int patientId) {
-        for (PatientRecord record : records) {
-            if (record.getRecordType().equals("Saturation")) {
-                double saturation = record.getMeasurementValue();
-
-                // Trigger an alert if saturation is below 92%
-                if (saturation < 92) {
-                    triggerAlert("BloodOxygen", String.valueOf(patientId), "Low Saturation Alert", record.getTimestamp());
-                }
+    private void checkBloodSaturationAlerts(Patient patient, long endTime) {
+        String patientId = String.valueOf(patient.getPatientId());
+
+        patient.forEachRecord(RecordTypeRegistry.SATURATION, 0, endTime, (timestamp, saturation) -> {
+            // Trigger an alert if saturation is below 92%
+            if (saturation < 92) {
+                triggerAlert("BloodOxygen", patientId, "Low Saturation Alert", timestamp);
             }
-        }
+        });
     }
 
     /**
      * Checks if the patient has both low blood pressure and low oxygen saturation.
      *
-     * @param records   The patient's records to check.
-     * @param patientId The ID of the patient.
+     * @param patient The patient whose records are checked.
+     * @param endTime The end of the time range to check.
      */
-    private void checkCombinedAlert(List<PatientRecord> records, int patientId) {
-        boolean lowSystolic = false;
-        boolean lowSaturation = false;
-
-        for (PatientRecord record : records) {
-            if (record.getRecordType().equals("SystolicPressure") && record.getMeasurementValue() < 90) {
-                lowSystolic = true;
-            }
-            if (record.getRecordType().equals("Saturation") && record.getMeasurementValue() < 92) {
-                lowSaturation = true;
-            }
-        }
+    private void checkCombinedAlert(Patient patient, long endTime) {
+        BelowThreshold lowSystolic = new BelowThreshold(90);
+        BelowThreshold lowSaturation = new BelowThreshold(92);
+        patient.forEachRecord(RecordTypeRegistry.SYSTOLIC_PRESSURE, 0, endTime, lowSystolic);
+        patient.forEachRecord(RecordTypeRegistry.SATURATION, 0, endTime, lowSaturation);
 
         // Trigger an alert if both conditions are true
-        if (lowSystolic && lowSaturation) {
-            triggerAlert("BloodOxygen", String.valueOf(patientId), "Hypotensive Hypoxemia Alert", System.currentTimeMillis());
+        if (lowSystolic.found && lowSaturation.found) {
+            triggerAlert("BloodOxygen", String.valueOf(patient.getPatientId()), "Hypotensive Hypoxemia Alert", System.currentTimeMillis());
         }
     }
 
     /**
      * Checks if the patient's heart rate is too high or too low.
      *
-     * @param records   The patient's records to check.
-     * @param patientId The ID of the patient.
+     * @param patient The patient whose records are checked.
+     * @param endTime The end of the time range to check.
+     */
+    private void checkHeartRateAlerts(Patient patient, long endTime) {
+        String patientId = String.valueOf(patient.getPatientId());
+
+        patient.forEachRecord(RecordTypeRegistry.HEART_RATE, 0, endTime, (timestamp, heartRate) -> {
+            // Trigger an alert if heart rate is abnormal
+            if (heartRate > 120 || heartRate < 50) {
+                triggerAlert("ECG", patientId, "Abnormal Heart Rate Alert", timestamp);
+            }
+        });
+    }
+
+    /**
+     * Checks systolic readings for critical values and for a trend of
+     * large changes over consecutive readings.
+     */
+    private class SystolicCheck implements RecordVisitor {
+        private final String patientId;
+        private int consecutiveTrendCount = 0; // Counts how many times the trend continues
+        private double lastSystolic = 0;
+
+        SystolicCheck(String patientId) {
+            this.patientId = patientId;
+        }
+
+        @Override
+        public void visit(long timestamp, double currentSystolic) {
+            // Check if systolic pressure is too high or too low
+            if (currentSystolic > 180 || currentSystolic < 90) {
+                triggerAlert("BloodPressure", patientId, "Critical Systolic Pressure", timestamp);
+            }
+
+            // Check for trends (e.g., increasing or decreasing)
+            if (Math.abs(currentSystolic - lastSystolic) > 10) {
+                consecutiveTrendCount++;
+            } else {
+                consecutiveTrendCount = 0; // Reset if the trend stops
+            }
+
+            // Trigger an alert if the trend continues for 3 readings
+            if (consecutiveTrendCount >= 3) {
+                triggerAlert("BloodPressure", patientId, "Blood Pressure Trend Alert", timestamp);
+                consecutiveTrendCount = 0; // Reset after triggering
+            }
+
+            lastSystolic = currentSystolic; // Update the last systolic value
+        }
+    }
+
+    /**
+     * Remembers whether any visited value was below a threshold.
      */
-    private void checkHeartRateAlerts(List<PatientRecord> records, int patientId) {
-        for (PatientRecord record : records) {
-            if (record.getRecordType().equals("HeartRate")) {
-                double heartRate = record.getMeasurementValue();
-
-                // Trigger an alert if heart rate is abnormal
-                if (heartRate > 120 || heartRate < 50) {
-                    triggerAlert("ECG", String.valueOf(patientId), "Abnormal Heart Rate Alert", record.getTimestamp());
-                }
+    private static class BelowThreshold implements RecordVisitor {
+        private final double threshold;
+        private boolean found = false;
+
+        BelowThreshold(double threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void visit(long timestamp, double value) {
+            if (value < threshold) {
+                found = true;
             }
         }
     }
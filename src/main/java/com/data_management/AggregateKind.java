@@ -0,0 +1,14 @@
+package com.data_management;
+
+/**
+ * The aggregates DataStorage can compute over a time window of one record type.
+ * For percentiles, see DataStorage.percentile.
+ */
+public enum AggregateKind {
+    MIN,
+    MAX,
+    MEAN,
+    SUM,
+    COUNT,
+    STDDEV // Population standard deviation
+}
@@ -0,0 +1,68 @@
+package com.data_management;
+
+/**
+ * Accumulates count, sum, sum of squares, min and max, either one sample at
+ * a time or from the precomputed summaries of whole chunks.
+ */
+class Aggregator implements RecordVisitor {
+    private long count;
+    private double sum;
+    private double sumOfSquares;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    @Override
+    public void visit(long timestamp, double value) {
+        count++;
+        sum += value;
+        sumOfSquares += value * value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the summary of many samples at once.
+     *
+     * @param count        The number of samples.
+     * @param sum          Their sum.
+     * @param sumOfSquares The sum of their squares.
+     * @param min          Their smallest value.
+     * @param max          Their largest value.
+     */
+    void add(long count, double sum, double sumOfSquares, double min, double max) {
+        this.count += count;
+        this.sum += sum;
+        this.sumOfSquares += sumOfSquares;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+    }
+
+    /**
+     * Returns the requested aggregate of everything added so far.
+     *
+     * @param kind The aggregate to compute.
+     * @return The aggregate, or NaN if nothing was added (0 for COUNT and SUM).
+     */
+    double result(AggregateKind kind) {
+        switch (kind) {
+            case COUNT:
+                return count;
+            case SUM:
+                return sum;
+            case MIN:
+                return count == 0 ? Double.NaN : min;
+            case MAX:
+                return count == 0 ? Double.NaN : max;
+            case MEAN:
+                return count == 0 ? Double.NaN : sum / count;
+            case STDDEV:
+                if (count == 0) {
+                    return Double.NaN;
+                }
+                double mean = sum / count;
+                return Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+            default:
+                throw new IllegalArgumentException("Unknown aggregate: " + kind);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.data_management;
+
+/**
+ * Receives the rows of an as-of join of several record types, one row per
+ * sample of the first type, in timestamp order. Values are handed over as
+ * primitives, so joining does not create any PatientRecord objects.
+ */
+@FunctionalInterface
+public interface AlignedRecordVisitor {
+    /**
+     * Called once for every sample of the first record type in the joined range.
+     *
+     * @param timestamp The time of the sample of the first record type.
+     * @param values    The reading of each joined record type at that time, in
+     *                  the order the types were given: the sample's own value
+     *                  first, then for every other type its newest value at or
+     *                  before the time, or NaN if it has none within the
+     *                  tolerance. The array is reused for the next row.
+     */
+    void visit(long timestamp, double[] values);
+}
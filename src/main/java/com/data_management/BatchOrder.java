@@ -0,0 +1,169 @@
+package com.data_management;
+
+import java.util.Arrays;
+
+/**
+ * Groups a batch of samples by patient and record type without boxing, so
+ * each group can be appended to its series in one operation. Groups are
+ * numbered in the order they first appear in the batch, and samples keep
+ * their batch order within a group. Grouping is a hash pass and a counting
+ * sort, so it costs O(n) however the batch is ordered.
+ */
+final class BatchOrder {
+    private static final int INSERTION_SORT_LIMIT = 64; // Smaller groups are sorted in place
+    private final int[] order; // Sample indexes, group by group
+    private final int[] groupStart; // Index into order of the first sample of each group, plus the end
+    private final int groupCount;
+
+    /**
+     * Groups the first count samples of a batch.
+     *
+     * @param patientIds The patient ID of each sample.
+     * @param typeCodes  The type code of each sample.
+     * @param count      The number of samples.
+     */
+    BatchOrder(int[] patientIds, int[] typeCodes, int count) {
+        int[] groupOf = new int[count];
+        long[] keys = new long[64];
+        int[] ids = new int[64]; // Group number plus one, 0 for an empty slot
+        int groups = 0;
+        for (int i = 0; i < count; i++) {
+            long key = (long) patientIds[i] << 32 | (typeCodes[i] & 0xFFFFFFFFL); // Without sign extension
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (ids[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (ids[slot] == 0) {
+                keys[slot] = key;
+                ids[slot] = ++groups;
+                if (groups * 2 > keys.length) {
+                    long[] oldKeys = keys;
+                    int[] oldIds = ids;
+                    keys = new long[oldKeys.length * 2];
+                    ids = new int[oldKeys.length * 2];
+                    rehash(oldKeys, oldIds, keys, ids);
+                    mask = keys.length - 1;
+                    slot = mix(key) & mask;
+                    while (keys[slot] != key) {
+                        slot = (slot + 1) & mask;
+                    }
+                }
+            }
+            groupOf[i] = ids[slot] - 1;
+        }
+
+        int[] start = new int[groups + 1];
+        for (int i = 0; i < count; i++) {
+            start[groupOf[i] + 1]++;
+        }
+        for (int g = 0; g < groups; g++) {
+            start[g + 1] += start[g];
+        }
+        int[] next = Arrays.copyOf(start, groups);
+        int[] sorted = new int[count];
+        for (int i = 0; i < count; i++) {
+            sorted[next[groupOf[i]]++] = i;
+        }
+        this.order = sorted;
+        this.groupStart = start;
+        this.groupCount = groups;
+    }
+
+    private static void rehash(long[] oldKeys, int[] oldIds, long[] keys, int[] ids) {
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldIds[i] != 0) {
+                int slot = mix(oldKeys[i]) & mask;
+                while (ids[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    int groupCount() {
+        return groupCount;
+    }
+
+    int groupStart(int group) {
+        return groupStart[group];
+    }
+
+    int groupEnd(int group) {
+        return groupStart[group + 1];
+    }
+
+    int sampleAt(int position) {
+        return order[position];
+    }
+
+    /**
+     * Sorts parallel timestamp and value arrays by timestamp, keeping the
+     * order of equal timestamps. Sorted input is only checked, and small
+     * or nearly sorted groups are cheap to sort.
+     *
+     * @param timestamps The timestamps to sort.
+     * @param values     The values, moved along with their timestamps.
+     * @param count      The number of samples, from index 0.
+     */
+    static void sortByTimestamp(long[] timestamps, double[] values, int count) {
+        int firstDescent = 1;
+        while (firstDescent < count && timestamps[firstDescent - 1] <= timestamps[firstDescent]) {
+            firstDescent++;
+        }
+        if (firstDescent >= count) {
+            return; // Already sorted, the usual case
+        }
+        if (count <= INSERTION_SORT_LIMIT) {
+            for (int i = firstDescent; i < count; i++) {
+                long timestamp = timestamps[i];
+                double value = values[i];
+                int j = i;
+                while (j > 0 && timestamps[j - 1] > timestamp) {
+                    timestamps[j] = timestamps[j - 1];
+                    values[j] = values[j - 1];
+                    j--;
+                }
+                timestamps[j] = timestamp;
+                values[j] = value;
+            }
+            return;
+        }
+        mergeSort(timestamps, values, Arrays.copyOf(timestamps, count), Arrays.copyOf(values, count), 0, count);
+    }
+
+    // Sorts [from, to) into timestamps/values, reading from the scratch copies that hold the same samples
+    private static void mergeSort(long[] timestamps, double[] values, long[] scratchTimestamps,
+            double[] scratchValues, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(scratchTimestamps, scratchValues, timestamps, values, from, mid);
+        mergeSort(scratchTimestamps, scratchValues, timestamps, values, mid, to);
+        if (scratchTimestamps[mid - 1] <= scratchTimestamps[mid]) {
+            System.arraycopy(scratchTimestamps, from, timestamps, from, to - from);
+            System.arraycopy(scratchValues, from, values, from, to - from);
+            return;
+        }
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || left < mid && scratchTimestamps[left] <= scratchTimestamps[right]) {
+                timestamps[i] = scratchTimestamps[left];
+                values[i] = scratchValues[left++];
+            } else {
+                timestamps[i] = scratchTimestamps[right];
+                values[i] = scratchValues[right++];
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.data_management;
+
+/**
+ * An immutable block of sealed samples from one series, sorted by timestamp.
+ * Every chunk carries a summary of its values (count, sum, sum of squares,
+ * min and max), so aggregates over whole chunks never touch the samples.
+ */
+abstract class Chunk {
+    private final int count;
+    private final long firstTimestamp;
+    private final long lastTimestamp;
+    private final double min;
+    private final double max;
+    private final double sum;
+    private final double sumOfSquares;
+
+    /**
+     * Summarizes a run of sorted samples.
+     *
+     * @param timestamps The sample timestamps, sorted ascending.
+     * @param values     The sample values.
+     * @param offset     The index of the first sample of the chunk.
+     * @param count      The number of samples in the chunk; at least 1.
+     */
+    Chunk(long[] timestamps, double[] values, int offset, int count) {
+        double chunkMin = Double.POSITIVE_INFINITY;
+        double chunkMax = Double.NEGATIVE_INFINITY;
+        double chunkSum = 0;
+        double chunkSumOfSquares = 0;
+        for (int i = offset; i < offset + count; i++) {
+            double value = values[i];
+            chunkMin = Math.min(chunkMin, value);
+            chunkMax = Math.max(chunkMax, value);
+            chunkSum += value;
+            chunkSumOfSquares += value * value;
+        }
+        this.count = count;
+        this.firstTimestamp = timestamps[offset];
+        this.lastTimestamp = timestamps[offset + count - 1];
+        this.min = chunkMin;
+        this.max = chunkMax;
+        this.sum = chunkSum;
+        this.sumOfSquares = chunkSumOfSquares;
+    }
+
+    /**
+     * Visits the samples with a timestamp in [startTime, endTime], in order.
+     *
+     * @param skip      The number of leading samples to leave out.
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param visitor   The callback that receives each sample.
+     */
+    abstract void forEach(int skip, long startTime, long endTime, RecordVisitor visitor);
+
+    /**
+     * Copies every sample into the given arrays.
+     *
+     * @param timestamps The array that receives the timestamps; at least size() long.
+     * @param values     The array that receives the values; at least size() long.
+     */
+    abstract void decode(long[] timestamps, double[] values);
+
+    /**
+     * Returns the approximate heap size of this chunk.
+     *
+     * @return the size in bytes
+     */
+    abstract long memoryBytes();
+
+    /**
+     * Returns the number of samples in this chunk.
+     *
+     * @return the sample count
+     */
+    int size() {
+        return count;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    double getMin() {
+        return min;
+    }
+
+    double getMax() {
+        return max;
+    }
+
+    double getSum() {
+        return sum;
+    }
+
+    double getSumOfSquares() {
+        return sumOfSquares;
+    }
+}
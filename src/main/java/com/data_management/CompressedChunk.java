@@ -0,0 +1,225 @@
+package com.data_management;
+
+import java.util.Arrays;
+
+/**
+ * An immutable, compressed block of samples from one series, sorted by timestamp.
+ * Uses the encoding from Facebook's Gorilla time-series database:
+ * timestamps are stored as delta-of-deltas, so a fixed cadence costs one bit
+ * per sample, and each value is XORed with the previous one so that unchanged
+ * or slowly varying values only store the few bits that differ.
+ * Samples are decoded one at a time while scanning, without an intermediate array.
+ */
+final class CompressedChunk extends Chunk {
+    private final long[] words;
+
+    /**
+     * Compresses a run of sorted samples.
+     *
+     * @param timestamps The sample timestamps, sorted ascending.
+     * @param values     The sample values.
+     * @param offset     The index of the first sample to compress.
+     * @param count      The number of samples to compress; at least 1.
+     */
+    CompressedChunk(long[] timestamps, double[] values, int offset, int count) {
+        super(timestamps, values, offset, count);
+        this.words = encode(timestamps, values, offset, count);
+    }
+
+    private static long[] encode(long[] timestamps, double[] values, int offset, int count) {
+        BitWriter out = new BitWriter(count);
+        long previousTimestamp = timestamps[offset];
+        long previousDelta = 0;
+        long previousBits = Double.doubleToRawLongBits(values[offset]);
+        int previousLeading = -1;
+        int previousTrailing = 0;
+        out.write(previousTimestamp, 64);
+        out.write(previousBits, 64);
+
+        for (int i = offset + 1; i < offset + count; i++) {
+            // Timestamp: delta-of-delta in the smallest bucket that fits
+            long delta = timestamps[i] - previousTimestamp;
+            long deltaOfDelta = delta - previousDelta;
+            if (deltaOfDelta == 0) {
+                out.write(0b0, 1);
+            } else if (fits(deltaOfDelta, 7)) {
+                out.write(0b10, 2);
+                out.write(deltaOfDelta, 7);
+            } else if (fits(deltaOfDelta, 9)) {
+                out.write(0b110, 3);
+                out.write(deltaOfDelta, 9);
+            } else if (fits(deltaOfDelta, 12)) {
+                out.write(0b1110, 4);
+                out.write(deltaOfDelta, 12);
+            } else {
+                out.write(0b1111, 4);
+                out.write(deltaOfDelta, 64);
+            }
+            previousDelta = delta;
+            previousTimestamp = timestamps[i];
+
+            // Value: XOR with the previous value, storing only the meaningful bits
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ previousBits;
+            if (xor == 0) {
+                out.write(0b0, 1);
+            } else {
+                int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                    // Fits in the previous window of meaningful bits
+                    out.write(0b10, 2);
+                    out.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+                } else {
+                    int meaningful = 64 - leading - trailing;
+                    out.write(0b11, 2);
+                    out.write(leading, 5);
+                    out.write(meaningful & 63, 6); // 64 is stored as 0
+                    out.write(xor >>> trailing, meaningful);
+                    previousLeading = leading;
+                    previousTrailing = trailing;
+                }
+            }
+            previousBits = bits;
+        }
+        return out.toArray();
+    }
+
+    /**
+     * Visits the samples with a timestamp in [startTime, endTime], decoding
+     * them as it goes. Decoding stops at the first sample after endTime.
+     */
+    @Override
+    void forEach(int skip, long startTime, long endTime, RecordVisitor visitor) {
+        BitReader in = new BitReader(words);
+        long timestamp = in.read(64);
+        long bits = in.read(64);
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+
+        int count = size();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                long deltaOfDelta;
+                if (in.read(1) == 0) {
+                    deltaOfDelta = 0;
+                } else if (in.read(1) == 0) {
+                    deltaOfDelta = signExtend(in.read(7), 7);
+                } else if (in.read(1) == 0) {
+                    deltaOfDelta = signExtend(in.read(9), 9);
+                } else if (in.read(1) == 0) {
+                    deltaOfDelta = signExtend(in.read(12), 12);
+                } else {
+                    deltaOfDelta = in.read(64);
+                }
+                delta += deltaOfDelta;
+                timestamp += delta;
+
+                if (in.read(1) == 1) {
+                    if (in.read(1) == 1) {
+                        leading = (int) in.read(5);
+                        int meaningful = (int) in.read(6);
+                        trailing = 64 - leading - (meaningful == 0 ? 64 : meaningful);
+                    }
+                    bits ^= in.read(64 - leading - trailing) << trailing;
+                }
+            }
+            if (timestamp > endTime) {
+                return;
+            }
+            if (i >= skip && timestamp >= startTime) {
+                visitor.visit(timestamp, Double.longBitsToDouble(bits));
+            }
+        }
+    }
+
+    @Override
+    void decode(long[] timestamps, double[] values) {
+        int[] index = new int[1];
+        forEach(0, Long.MIN_VALUE, Long.MAX_VALUE, (timestamp, value) -> {
+            timestamps[index[0]] = timestamp;
+            values[index[0]] = value;
+            index[0]++;
+        });
+    }
+
+    @Override
+    long memoryBytes() {
+        return 16 + 8L * words.length + 64; // Array header and data plus object fields
+    }
+
+    private static boolean fits(long value, int bits) {
+        long limit = 1L << (bits - 1);
+        return value >= -limit && value < limit;
+    }
+
+    private static long signExtend(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+
+    /**
+     * Appends bit fields, most significant bit first, to a growable long array.
+     */
+    private static final class BitWriter {
+        private long[] words;
+        private long bitCount;
+
+        BitWriter(int expectedSamples) {
+            this.words = new long[Math.max(4, expectedSamples / 4)];
+        }
+
+        void write(long value, int bits) {
+            if (bits == 0) {
+                return;
+            }
+            if (bits < 64) {
+                value &= (1L << bits) - 1;
+            }
+            int word = (int) (bitCount >>> 6);
+            int free = 64 - (int) (bitCount & 63);
+            if (word + 1 >= words.length) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+            if (bits <= free) {
+                words[word] |= value << (free - bits);
+            } else {
+                words[word] |= value >>> (bits - free);
+                words[word + 1] |= value << (64 - (bits - free));
+            }
+            bitCount += bits;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(words, (int) ((bitCount + 63) >>> 6));
+        }
+    }
+
+    /**
+     * Reads bit fields written by BitWriter.
+     */
+    private static final class BitReader {
+        private final long[] words;
+        private long position;
+
+        BitReader(long[] words) {
+            this.words = words;
+        }
+
+        long read(int bits) {
+            if (bits == 0) {
+                return 0;
+            }
+            int word = (int) (position >>> 6);
+            int free = 64 - (int) (position & 63);
+            position += bits;
+            if (bits <= free) {
+                long shifted = words[word] >>> (free - bits);
+                return bits == 64 ? shifted : shifted & ((1L << bits) - 1);
+            }
+            int rest = bits - free;
+            long high = words[word] & ((1L << free) - 1);
+            return (high << rest) | (words[word + 1] >>> (64 - rest));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.data_management;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Collects the samples of one record type in a time range from many
+ * patients, in timestamp order. The patients are split in halves with
+ * fork/join; each half is scanned in parallel and the two sorted results are
+ * merged on the way back up, so the total cost is O(n log p) for n samples
+ * from p patients. Samples with equal timestamps keep the order of the
+ * patients they came from. An optional ValuePredicate is evaluated by each
+ * series, so only matching samples are collected and merged.
+ */
+@SuppressWarnings("serial") // Fork/join tasks are never serialized
+class CrossPatientQuery extends RecursiveTask<CrossPatientQuery.Run> {
+    private static final int SEQUENTIAL_PATIENTS = 4; // Below this the halves are not forked
+
+    private final Patient[] patients;
+    private final int from;
+    private final int to;
+    private final int typeCode;
+    private final long startTime;
+    private final long endTime;
+    private final ValuePredicate predicate; // Null to collect every sample
+
+    /**
+     * Creates a query over the given patients.
+     *
+     * @param patients  The patients to scan; null entries are skipped.
+     * @param from      The index of the first patient to scan.
+     * @param to        One past the index of the last patient to scan.
+     * @param typeCode  The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param predicate The condition on the values, or null to collect every sample.
+     */
+    CrossPatientQuery(Patient[] patients, int from, int to, int typeCode, long startTime, long endTime,
+            ValuePredicate predicate) {
+        this.patients = patients;
+        this.from = from;
+        this.to = to;
+        this.typeCode = typeCode;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.predicate = predicate;
+    }
+
+    @Override
+    protected Run compute() {
+        if (to - from == 1) {
+            Run run = new Run();
+            Patient patient = patients[from];
+            if (patient != null) {
+                int patientId = patient.getPatientId();
+                RecordVisitor collector = (timestamp, value) -> run.add(patientId, timestamp, value);
+                if (predicate == null) {
+                    patient.forEachRecord(typeCode, startTime, endTime, collector);
+                } else {
+                    patient.forEachRecord(typeCode, startTime, endTime, predicate, collector);
+                }
+            }
+            return run;
+        }
+        if (to <= from) {
+            return new Run();
+        }
+        int middle = (from + to) >>> 1;
+        CrossPatientQuery left = new CrossPatientQuery(patients, from, middle, typeCode, startTime, endTime,
+                predicate);
+        CrossPatientQuery right = new CrossPatientQuery(patients, middle, to, typeCode, startTime, endTime,
+                predicate);
+        if (to - from < SEQUENTIAL_PATIENTS) {
+            return Run.merge(left.compute(), right.compute());
+        }
+        left.fork();
+        Run rightRun = right.compute();
+        return Run.merge(left.join(), rightRun);
+    }
+
+    /**
+     * Samples from several patients in columnar form, sorted by timestamp.
+     */
+    static final class Run {
+        private int[] patientIds;
+        private long[] timestamps;
+        private double[] values;
+        private int size;
+
+        Run() {
+            this(16);
+        }
+
+        private Run(int capacity) {
+            patientIds = new int[capacity];
+            timestamps = new long[capacity];
+            values = new double[capacity];
+        }
+
+        // Appends a sample; callers add samples in timestamp order
+        void add(int patientId, long timestamp, double value) {
+            if (size == timestamps.length) {
+                int capacity = size * 2;
+                patientIds = Arrays.copyOf(patientIds, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            patientIds[size] = patientId;
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        // Merges two sorted runs, taking from the left one on equal timestamps
+        static Run merge(Run left, Run right) {
+            if (left.size == 0) {
+                return right;
+            }
+            if (right.size == 0) {
+                return left;
+            }
+            Run merged = new Run(left.size + right.size);
+            int i = 0;
+            int j = 0;
+            while (i < left.size && j < right.size) {
+                if (right.timestamps[j] < left.timestamps[i]) {
+                    merged.add(right.patientIds[j], right.timestamps[j], right.values[j]);
+                    j++;
+                } else {
+                    merged.add(left.patientIds[i], left.timestamps[i], left.values[i]);
+                    i++;
+                }
+            }
+            for (; i < left.size; i++) {
+                merged.add(left.patientIds[i], left.timestamps[i], left.values[i]);
+            }
+            for (; j < right.size; j++) {
+                merged.add(right.patientIds[j], right.timestamps[j], right.values[j]);
+            }
+            return merged;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Passes every sample to the visitor, in timestamp order.
+         *
+         * @param visitor The callback that receives each sample.
+         */
+        void forEach(PatientRecordVisitor visitor) {
+            for (int i = 0; i < size; i++) {
+                visitor.visit(patientIds[i], timestamps[i], values[i]);
+            }
+        }
+    }
+}
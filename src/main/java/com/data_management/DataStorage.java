@@ -1,9 +1,20 @@
 package com.data_management;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import com.alerts.AlertGenerator;
 
 /**
@@ -11,15 +22,27 @@ import com.alerts.AlertGenerator;
  * system.
  * This class serves as a repository for all patient records, organized by
  * patient IDs.
+ * It is safe to use from many threads: patients are kept in a lock-free
+ * int-keyed index and every record type of every patient is locked separately, so concurrent
+ * writers only contend when they write the same patient and record type.
  */
 public class DataStorage {
     private static DataStorage instance; // Singleton instance
 
-    private Map<Integer, Patient> patientMap; // Stores patient objects by their ID.
+    private PatientIndex patientMap; // Stores patient objects by their ID.
+    private final SeriesSettings seriesSettings = new SeriesSettings();
+    private volatile WriteAheadLog writeAheadLog; // Null unless a log is open
+    private volatile long restoredCheckpoint; // Newest log checkpoint of the snapshots loaded since clear
+    private ScheduledExecutorService snapshotTimer; // Null unless periodic snapshots are running
+    private volatile TieredStore tieredStore; // Null unless tiered storage is on
+    private ScheduledExecutorService spillTimer; // Runs while tiered storage is on
+    private volatile Subscription[] subscriptions = new Subscription[0]; // Copied on every change
+    private ExecutorService notifier; // Default executor for subscriptions, created on first use
+    private volatile QueryCache queryCache; // Null unless the query cache is on
 
     // Private constructor prevents instantiation from other classes
     private DataStorage() {
-        this.patientMap = new HashMap<>();
+        this.patientMap = new PatientIndex(id -> new Patient(id, seriesSettings));
     }
 
     // Static method to get the singleton instance
@@ -39,16 +62,160 @@ public class DataStorage {
      * @param timestamp The time the measurement was taken.
      */
     public void addPatientData(int patientId, double measurementValue, String recordType, long timestamp) {
-        Patient patient = patientMap.get(patientId);
-        if (patient == null) {
-            patient = new Patient(patientId);
-            patientMap.put(patientId, patient);
+        addPatientData(patientId, measurementValue, RecordTypeRegistry.register(recordType), timestamp);
+    }
+
+    /**
+     * Adds data for a patient. If the patient doesn't exist, a new one is created.
+     * The record is written to the write-ahead log and offered to subscribers
+     * only once its series has accepted it; a record dropped for being older
+     * than the watermark (see setLatenessBound) or as a repeat of a recent one
+     * (see setDeduplicationEnabled) is neither logged nor delivered.
+     *
+     * @param patientId The patient's ID.
+     * @param measurementValue The value of the measurement.
+     * @param typeCode The registry code of the record type (see RecordTypeRegistry).
+     * @param timestamp The time the measurement was taken.
+     * @throws IllegalArgumentException if typeCode is not a registered code
+     */
+    public void addPatientData(int patientId, double measurementValue, int typeCode, long timestamp) {
+        requireTypeCode(typeCode);
+        WriteAheadLog log = writeAheadLog;
+        boolean accepted;
+        TieredStore tiers = tieredStore;
+        if (tiers == null) {
+            accepted = patientMap.getOrCreate(patientId).addRecord(measurementValue, typeCode, timestamp, log);
+        } else {
+            Lock lock = tiers.writeLock(patientId);
+            lock.lock();
+            try {
+                Patient patient = tiers.resident(patientId);
+                accepted = patient.addRecord(measurementValue, typeCode, timestamp, log);
+                patient.setLastWriteMillis(System.currentTimeMillis());
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (!accepted) {
+            return;
+        }
+        if (log != null) {
+            log.commit();
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(patientId, typeCode, timestamp, measurementValue);
+        }
+    }
+
+    /**
+     * Adds a batch of records given as primitive columns. The batch is
+     * grouped by patient and record type, each group is sorted by timestamp
+     * and appended to its series in one operation, which is much faster
+     * than adding the records one at a time. The same index in each
+     * array describes one record; the arrays are not modified.
+     *
+     * As with single records, only the records their series accepted are
+     * written to the write-ahead log and offered to subscribers. They are
+     * passed on group by group, each group in timestamp order.
+     *
+     * @param patientIds The patient ID of each record.
+     * @param timestamps The time each measurement was taken.
+     * @param typeCodes The registry code of the record type of each record (see RecordTypeRegistry).
+     * @param values The value of each measurement.
+     * @param count The number of records to add, from index 0.
+     * @throws IllegalArgumentException if count is out of range or a type code is not a registered code;
+     *         nothing is added then
+     */
+    public void addPatientData(int[] patientIds, long[] timestamps, int[] typeCodes, double[] values, int count) {
+        if (count < 0 || patientIds.length < count || timestamps.length < count || typeCodes.length < count
+                || values.length < count) {
+            throw new IllegalArgumentException("count must not be negative or exceed any array length");
+        }
+        for (int i = 0; i < count; i++) {
+            requireTypeCode(typeCodes[i]);
+        }
+        if (count == 0) {
+            return;
+        }
+        BatchOrder order = new BatchOrder(patientIds, typeCodes, count);
+        long[] groupTimestamps = new long[count];
+        double[] groupValues = new double[count];
+        WriteAheadLog log = writeAheadLog;
+        Subscription[] current = subscriptions;
+        boolean forward = current.length > 0;
+        // The accepted records, gathered group by group for the subscribers
+        int[] acceptedPatients = forward ? new int[count] : null;
+        int[] acceptedTypes = forward ? new int[count] : null;
+        long[] acceptedTimestamps = forward ? new long[count] : null;
+        double[] acceptedValues = forward ? new double[count] : null;
+        int acceptedCount = 0;
+        TieredStore tiers = tieredStore;
+        for (int group = 0; group < order.groupCount(); group++) {
+            int first = order.sampleAt(order.groupStart(group));
+            int patientId = patientIds[first];
+            int typeCode = typeCodes[first];
+            int size = 0;
+            for (int position = order.groupStart(group); position < order.groupEnd(group); position++) {
+                int sample = order.sampleAt(position);
+                groupTimestamps[size] = timestamps[sample];
+                groupValues[size] = values[sample];
+                size++;
+            }
+            BatchOrder.sortByTimestamp(groupTimestamps, groupValues, size);
+            int accepted;
+            if (tiers == null) {
+                accepted = patientMap.getOrCreate(patientId).addRecords(typeCode, groupTimestamps, groupValues, 0,
+                        size, log);
+            } else {
+                Lock lock = tiers.writeLock(patientId);
+                lock.lock();
+                try {
+                    Patient patient = tiers.resident(patientId);
+                    accepted = patient.addRecords(typeCode, groupTimestamps, groupValues, 0, size, log);
+                    patient.setLastWriteMillis(System.currentTimeMillis());
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (forward) {
+                Arrays.fill(acceptedPatients, acceptedCount, acceptedCount + accepted, patientId);
+                Arrays.fill(acceptedTypes, acceptedCount, acceptedCount + accepted, typeCode);
+                System.arraycopy(groupTimestamps, 0, acceptedTimestamps, acceptedCount, accepted);
+                System.arraycopy(groupValues, 0, acceptedValues, acceptedCount, accepted);
+                acceptedCount += accepted;
+            }
+        }
+        if (acceptedCount == 0) {
+            return;
+        }
+        if (log != null) {
+            log.commit();
+        }
+        for (int i = 0; i < acceptedCount; i++) {
+            for (Subscription subscription : current) {
+                subscription.offer(acceptedPatients[i], acceptedTypes[i], acceptedTimestamps[i], acceptedValues[i]);
+            }
+        }
+    }
+
+    // Rejects a code before anything is logged, so the log only holds samples that replay can add
+    private static void requireTypeCode(int typeCode) {
+        if (typeCode < 0 || typeCode >= RecordTypeRegistry.size()) {
+            throw new IllegalArgumentException("Unknown record type code: " + typeCode);
         }
-        patient.addRecord(measurementValue, recordType, timestamp);
+    }
+
+    // Finds a patient for reading, paging it in if it was spilled to disk
+    private Patient findPatient(int patientId) {
+        Patient patient = patientMap.get(patientId);
+        TieredStore tiers = tieredStore;
+        return patient != null || tiers == null ? patient : tiers.page(patientId);
     }
 
     /**
      * Gets records for a patient within a time range.
+     * With the query cache on (see setQueryCacheBudget), the records of each
+     * record type are served from the cached copy of the same window.
      *
      * @param patientId The patient's ID.
      * @param startTime The start of the time range.
@@ -56,25 +223,1110 @@ public class DataStorage {
      * @return A list of records within the time range.
      */
     public List<PatientRecord> getRecords(int patientId, long startTime, long endTime) {
-        Patient patient = patientMap.get(patientId);
+        Patient patient = findPatient(patientId);
         if (patient != null) {
-            return patient.getRecords(startTime, endTime);
+            return patient.getRecords(startTime, endTime, queryCache);
         }
         return new ArrayList<>(); // Return an empty list if no patient is found.
     }
 
+    /**
+     * Summarizes a patient's records of one type within a time range in time
+     * buckets with min, max, sum and count. Uses the finest RollupResolution
+     * that needs at most maxPoints buckets, so a dashboard gets as much detail
+     * as it asked for without reading every record.
+     *
+     * @param patientId The patient's ID.
+     * @param recordType The type of record (e.g., "Saturation").
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param maxPoints The maximum number of buckets wanted.
+     * @return The buckets, oldest first.
+     */
+    public List<RollupPoint> getRollups(int patientId, String recordType, long startTime, long endTime, int maxPoints) {
+        return getRollups(patientId, RecordTypeRegistry.codeOf(recordType), startTime, endTime, maxPoints);
+    }
+
+    /**
+     * Summarizes a patient's records of one type within a time range in time
+     * buckets, using at most maxPoints buckets.
+     *
+     * @param patientId The patient's ID.
+     * @param typeCode The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param maxPoints The maximum number of buckets wanted.
+     * @return The buckets, oldest first.
+     */
+    public List<RollupPoint> getRollups(int patientId, int typeCode, long startTime, long endTime, int maxPoints) {
+        Patient patient = findPatient(patientId);
+        if (patient != null) {
+            return patient.getRollups(typeCode, startTime, endTime, maxPoints);
+        }
+        if (maxPoints < 1) {
+            throw new IllegalArgumentException("maxPoints must be at least 1");
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Summarizes a patient's records of one type within a time range in time
+     * buckets of the given resolution.
+     *
+     * @param patientId The patient's ID.
+     * @param typeCode The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param resolution The bucket length.
+     * @return The buckets, oldest first.
+     */
+    public List<RollupPoint> getRollups(int patientId, int typeCode, long startTime, long endTime, RollupResolution resolution) {
+        Patient patient = findPatient(patientId);
+        if (patient != null) {
+            return patient.getRollups(typeCode, startTime, endTime, resolution);
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Gets the records of one type within a time range from every patient,
+     * for ward-level views such as all saturation of the last five minutes.
+     * Patients are scanned in parallel with fork/join and the results are
+     * merged by timestamp; equal timestamps are ordered by patient.
+     *
+     * @param recordType The type of record (e.g., "Saturation").
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @return The records of all patients, ordered by timestamp.
+     */
+    public List<PatientRecord> getRecordsAcrossPatients(String recordType, long startTime, long endTime) {
+        return toRecords(queryAcrossPatients(null, RecordTypeRegistry.codeOf(recordType), startTime, endTime, null),
+                recordType);
+    }
+
+    /**
+     * Gets the records of one type within a time range from the given
+     * patients, merged by timestamp. Unknown patient IDs are ignored.
+     *
+     * @param patientIds The IDs of the patients to include.
+     * @param recordType The type of record (e.g., "Saturation").
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @return The records of the given patients, ordered by timestamp.
+     */
+    public List<PatientRecord> getRecordsAcrossPatients(int[] patientIds, String recordType, long startTime, long endTime) {
+        return toRecords(queryAcrossPatients(patientIds, RecordTypeRegistry.codeOf(recordType), startTime, endTime,
+                null),
+                recordType);
+    }
+
+    /**
+     * Visits the records of one type within a time range from every patient,
+     * in timestamp order, without creating PatientRecord objects. Patients
+     * are scanned in parallel; the visitor is called from the calling thread.
+     *
+     * @param typeCode The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param visitor The callback that receives each patient ID, timestamp and value.
+     */
+    public void forEachRecordAcrossPatients(int typeCode, long startTime, long endTime, PatientRecordVisitor visitor) {
+        queryAcrossPatients(null, typeCode, startTime, endTime, null).forEach(visitor);
+    }
+
+    /**
+     * Visits the records of one type within a time range from the given
+     * patients, in timestamp order. Unknown patient IDs are ignored.
+     *
+     * @param patientIds The IDs of the patients to include.
+     * @param typeCode The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param visitor The callback that receives each patient ID, timestamp and value.
+     */
+    public void forEachRecordAcrossPatients(int[] patientIds, int typeCode, long startTime, long endTime,
+            PatientRecordVisitor visitor) {
+        queryAcrossPatients(patientIds, typeCode, startTime, endTime, null).forEach(visitor);
+    }
+
+    /**
+     * Gets the records of one type within a time range whose value matches a
+     * predicate, for example saturation below 92 for a group of patients,
+     * merged by timestamp. The predicate is evaluated inside the storage over
+     * primitive columns, and sealed chunks whose minimum and maximum rule out
+     * a match are skipped, so only matching records are ever created.
+     *
+     * @param patientIds The IDs of the patients to include, or null for every patient.
+     * @param recordType The type of record (e.g., "Saturation").
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param predicate The condition on the values, e.g. ValuePredicate.lessThan(92).
+     * @return The matching records, ordered by timestamp.
+     */
+    public List<PatientRecord> getRecordsAcrossPatients(int[] patientIds, String recordType, long startTime,
+            long endTime, ValuePredicate predicate) {
+        return toRecords(queryAcrossPatients(patientIds, RecordTypeRegistry.codeOf(recordType), startTime, endTime,
+                requirePredicate(predicate)), recordType);
+    }
+
+    /**
+     * Visits the records of one type within a time range whose value matches
+     * a predicate, in timestamp order (see the List version).
+     *
+     * @param patientIds The IDs of the patients to include, or null for every patient.
+     * @param typeCode The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param predicate The condition on the values.
+     * @param visitor The callback that receives each patient ID, timestamp and value.
+     */
+    public void forEachRecordAcrossPatients(int[] patientIds, int typeCode, long startTime, long endTime,
+            ValuePredicate predicate, PatientRecordVisitor visitor) {
+        queryAcrossPatients(patientIds, typeCode, startTime, endTime, requirePredicate(predicate)).forEach(visitor);
+    }
+
+    /**
+     * Finds the patients that have a record of one type within a time range
+     * whose value matches a predicate, for example every patient with a heart
+     * rate outside [50, 120] in the last ten minutes. A summary of the value
+     * and time ranges of every patient, kept per record type in blocks of
+     * consecutive IDs, first rules out whole blocks and then single patients
+     * without touching their series. The remaining patients are checked in
+     * parallel, and each one only reads the chunks whose min and max allow a
+     * match, stopping at the first match; the records are never copied.
+     *
+     * @param recordType The type of record (e.g., "HeartRate").
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param predicate The condition on the values, e.g. ValuePredicate.outside(50, 120).
+     * @return The IDs of the matching patients, in ascending order.
+     */
+    public int[] findPatients(String recordType, long startTime, long endTime, ValuePredicate predicate) {
+        return findPatients(RecordTypeRegistry.codeOf(recordType), startTime, endTime, predicate);
+    }
+
+    /**
+     * Finds the patients that have a record of one type within a time range
+     * whose value matches a predicate (see the String version).
+     *
+     * @param typeCode The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param predicate The condition on the values.
+     * @return The IDs of the matching patients, in ascending order.
+     */
+    public int[] findPatients(int typeCode, long startTime, long endTime, ValuePredicate predicate) {
+        requirePredicate(predicate);
+        if (startTime > endTime) {
+            return new int[0];
+        }
+        int[] candidates = seriesSettings.zones().candidates(typeCode, startTime, endTime, predicate);
+        return Arrays.stream(candidates).parallel()
+                .filter(id -> {
+                    Patient patient = patientMap.get(id);
+                    return patient != null && patient.hasRecord(typeCode, startTime, endTime, predicate);
+                })
+                .sorted()
+                .toArray();
+    }
+
+    private static ValuePredicate requirePredicate(ValuePredicate predicate) {
+        if (predicate == null) {
+            throw new IllegalArgumentException("predicate must not be null");
+        }
+        return predicate;
+    }
+
+    // Runs a cross-patient query over the given patients, or all of them if patientIds is null
+    private CrossPatientQuery.Run queryAcrossPatients(int[] patientIds, int typeCode, long startTime, long endTime,
+            ValuePredicate predicate) {
+        if (typeCode < 0 || startTime > endTime) {
+            return new CrossPatientQuery.Run();
+        }
+        Patient[] patients;
+        if (patientIds == null) {
+            patients = streamPatients().toArray(Patient[]::new);
+        } else {
+            patients = new Patient[patientIds.length];
+            for (int i = 0; i < patientIds.length; i++) {
+                patients[i] = findPatient(patientIds[i]);
+            }
+        }
+        return new CrossPatientQuery(patients, 0, patients.length, typeCode, startTime, endTime, predicate).invoke();
+    }
+
+    private static List<PatientRecord> toRecords(CrossPatientQuery.Run run, String recordType) {
+        List<PatientRecord> records = new ArrayList<>(run.size());
+        run.forEach((patientId, timestamp, value) ->
+                records.add(new PatientRecord(patientId, value, recordType, timestamp)));
+        return records;
+    }
+
+    /**
+     * Gets the value of a patient's newest record of one type, for example
+     * the current systolic pressure. Answered from a per-series cache of the
+     * newest records without allocating.
+     *
+     * @param patientId The patient's ID.
+     * @param recordType The type of record (e.g., "SystolicPressure").
+     * @return The newest value, or NaN if there are no records of that type.
+     */
+    public double getLatest(int patientId, String recordType) {
+        return getLatest(patientId, RecordTypeRegistry.codeOf(recordType));
+    }
+
+    /**
+     * Gets the value of a patient's newest record of one type.
+     *
+     * @param patientId The patient's ID.
+     * @param typeCode The registry code of the record type.
+     * @return The newest value, or NaN if there are no records of that type.
+     */
+    public double getLatest(int patientId, int typeCode) {
+        Patient patient = findPatient(patientId);
+        return patient == null ? Double.NaN : patient.getLatest(typeCode);
+    }
+
+    /**
+     * Gets a patient's newest n records of one type, oldest first.
+     *
+     * @param patientId The patient's ID.
+     * @param recordType The type of record (e.g., "HeartRate").
+     * @param n The number of records wanted.
+     * @return The records; fewer than n if fewer are stored.
+     */
+    public List<PatientRecord> getLastN(int patientId, String recordType, int n) {
+        Patient patient = findPatient(patientId);
+        if (patient != null) {
+            return patient.getLastN(RecordTypeRegistry.codeOf(recordType), n);
+        }
+        if (n < 0) {
+            throw new IllegalArgumentException("n must not be negative");
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Copies a patient's newest n records of one type into the given arrays,
+     * oldest first. Up to 32 records are served from a per-series cache
+     * without allocating, so this suits polling the last few readings.
+     *
+     * @param patientId The patient's ID.
+     * @param typeCode The registry code of the record type.
+     * @param n The number of records wanted.
+     * @param timestamps The array that receives the timestamps; at least n long.
+     * @param values The array that receives the values; at least n long.
+     * @return The number of records copied, which is less than n if fewer are stored.
+     */
+    public int getLastN(int patientId, int typeCode, int n, long[] timestamps, double[] values) {
+        Patient patient = findPatient(patientId);
+        if (patient != null) {
+            return patient.getLastN(typeCode, n, timestamps, values);
+        }
+        if (n < 0 || n > timestamps.length || n > values.length) {
+            throw new IllegalArgumentException("n must be between 0 and the length of the arrays");
+        }
+        return 0;
+    }
+
+    /**
+     * Aggregates a patient's records of one type within a time range, for
+     * example the mean heart rate over the last hour. Whole sealed chunks
+     * contribute precomputed summaries, so long ranges do not read every record.
+     *
+     * @param patientId The patient's ID.
+     * @param recordType The type of record (e.g., "HeartRate").
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param kind The aggregate to compute.
+     * @return The aggregate, or NaN if there are no records in range (0 for COUNT and SUM).
+     */
+    public double aggregate(int patientId, String recordType, long startTime, long endTime, AggregateKind kind) {
+        return aggregate(patientId, RecordTypeRegistry.codeOf(recordType), startTime, endTime, kind);
+    }
+
+    /**
+     * Aggregates a patient's records of one type within a time range.
+     *
+     * @param patientId The patient's ID.
+     * @param typeCode The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param kind The aggregate to compute.
+     * @return The aggregate, or NaN if there are no records in range (0 for COUNT and SUM).
+     */
+    public double aggregate(int patientId, int typeCode, long startTime, long endTime, AggregateKind kind) {
+        Patient patient = findPatient(patientId);
+        if (patient != null) {
+            return patient.aggregate(typeCode, startTime, endTime, kind);
+        }
+        return new Aggregator().result(kind);
+    }
+
+    /**
+     * Computes a percentile of a patient's records of one type within a time
+     * range. Unlike aggregate, this reads every record in range.
+     *
+     * @param patientId The patient's ID.
+     * @param recordType The type of record (e.g., "HeartRate").
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param percentile The percentile, between 0 and 100 (50 is the median).
+     * @return The percentile, or NaN if there are no records in range.
+     */
+    public double percentile(int patientId, String recordType, long startTime, long endTime, double percentile) {
+        return percentile(patientId, RecordTypeRegistry.codeOf(recordType), startTime, endTime, percentile);
+    }
+
+    /**
+     * Computes a percentile of a patient's records of one type within a time range.
+     *
+     * @param patientId The patient's ID.
+     * @param typeCode The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param percentile The percentile, between 0 and 100 (50 is the median).
+     * @return The percentile, or NaN if there are no records in range.
+     */
+    public double percentile(int patientId, int typeCode, long startTime, long endTime, double percentile) {
+        Patient patient = findPatient(patientId);
+        if (patient != null) {
+            return patient.percentile(typeCode, startTime, endTime, percentile);
+        }
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Aligns a patient's readings of several record types, for rules that
+     * combine them such as low systolic pressure with low saturation. For
+     * every record of the first type within a time range, the visitor gets
+     * the newest reading of each other type at or before that record's
+     * time, or NaN if there is none within the tolerance. The series are
+     * merged in one streaming pass without creating PatientRecord objects.
+     *
+     * @param patientId The patient's ID.
+     * @param recordTypes The record types (e.g., "SystolicPressure", "Saturation"); the first one drives the join.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param toleranceMillis How much older than a record of the first type a joined reading may be.
+     * @param visitor The callback that receives each timestamp and row of values.
+     */
+    public void joinAsOf(int patientId, String[] recordTypes, long startTime, long endTime, long toleranceMillis,
+            AlignedRecordVisitor visitor) {
+        int[] typeCodes = new int[recordTypes.length];
+        for (int i = 0; i < recordTypes.length; i++) {
+            typeCodes[i] = RecordTypeRegistry.codeOf(recordTypes[i]);
+        }
+        joinAsOf(patientId, typeCodes, startTime, endTime, toleranceMillis, visitor);
+    }
+
+    /**
+     * Aligns a patient's readings of several record types as of the records
+     * of the first type (see the String version).
+     *
+     * @param patientId The patient's ID.
+     * @param typeCodes The registry codes of the record types; the first one drives the join.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param toleranceMillis How much older than a record of the first type a joined reading may be.
+     * @param visitor The callback that receives each timestamp and row of values.
+     */
+    public void joinAsOf(int patientId, int[] typeCodes, long startTime, long endTime, long toleranceMillis,
+            AlignedRecordVisitor visitor) {
+        Patient patient = findPatient(patientId);
+        if (patient != null) {
+            patient.joinAsOf(typeCodes, startTime, endTime, toleranceMillis, visitor);
+        } else {
+            Patient.checkJoin(typeCodes, toleranceMillis);
+        }
+    }
+
     /**
      * Gets all patients stored in the system.
+     * Copies the patient set; forEachPatient and streamPatients do not.
      *
      * @return A list of all patients.
      */
     public List<Patient> getAllPatients() {
-        return new ArrayList<>(patientMap.values());
+        return patientMap.values();
+    }
+
+    /**
+     * Runs an action for every patient without copying the patient set.
+     * Patients added while this runs may or may not be visited.
+     *
+     * @param action The action to run for each patient.
+     */
+    public void forEachPatient(Consumer<? super Patient> action) {
+        patientMap.forEach(action);
+    }
+
+    /**
+     * Streams all patients without copying the patient set. The stream
+     * splits the population for parallel processing, e.g.
+     * {@code streamPatients().parallel().filter(...)}.
+     *
+     * @return A sequential stream of all patients.
+     */
+    public Stream<Patient> streamPatients() {
+        return StreamSupport.stream(patientMap.spliterator(), false);
+    }
+
+    /**
+     * Visits a patient's records of one type within a time range, in
+     * timestamp order, without creating a list or PatientRecord objects.
+     * The visitor must not add data to the same patient and record type.
+     *
+     * @param patientId The patient's ID.
+     * @param recordType The type of record (e.g., "HeartRate").
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param visitor The callback that receives each timestamp and value.
+     */
+    public void forEachRecord(int patientId, String recordType, long startTime, long endTime, RecordVisitor visitor) {
+        forEachRecord(patientId, RecordTypeRegistry.codeOf(recordType), startTime, endTime, visitor);
+    }
+
+    /**
+     * Visits a patient's records of one type within a time range, in
+     * timestamp order, without creating a list or PatientRecord objects.
+     *
+     * @param patientId The patient's ID.
+     * @param typeCode The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param visitor The callback that receives each timestamp and value.
+     */
+    public void forEachRecord(int patientId, int typeCode, long startTime, long endTime, RecordVisitor visitor) {
+        Patient patient = findPatient(patientId);
+        if (patient != null) {
+            patient.forEachRecord(typeCode, startTime, endTime, visitor);
+        }
+    }
+
+    /**
+     * Visits a patient's records of one type within a time range whose value
+     * matches a predicate, in timestamp order, testing the values inside the
+     * storage without creating PatientRecord objects.
+     *
+     * @param patientId The patient's ID.
+     * @param typeCode The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime The end of the time range.
+     * @param predicate The condition on the values, e.g. ValuePredicate.lessThan(92).
+     * @param visitor The callback that receives each matching timestamp and value.
+     */
+    public void forEachRecord(int patientId, int typeCode, long startTime, long endTime, ValuePredicate predicate,
+            RecordVisitor visitor) {
+        requirePredicate(predicate);
+        Patient patient = findPatient(patientId);
+        if (patient != null) {
+            patient.forEachRecord(typeCode, startTime, endTime, predicate, visitor);
+        }
+    }
+
+    /**
+     * Sets how much history is kept per patient and record type.
+     * Existing data is trimmed to the new policy right away.
+     *
+     * @param policy The retention policy; RetentionPolicy.unlimited() keeps everything.
+     */
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        seriesSettings.setPolicy(policy);
+        enforceRetention();
+        QueryCache cache = queryCache;
+        if (cache != null) {
+            cache.clear(); // A longer age limit shows stored samples that cached windows left out
+        }
+    }
+
+    /**
+     * Gets the current retention policy.
+     *
+     * @return The retention policy.
+     */
+    public RetentionPolicy getRetentionPolicy() {
+        return seriesSettings.getPolicy();
+    }
+
+    /**
+     * Sets a memory budget for the samples of all patients together.
+     * The budget is shared evenly by all patient and record type series, and
+     * each series overwrites its oldest samples once it uses up its share.
+     * The share shrinks as new series are created; call enforceRetention to
+     * trim series that are not being written to.
+     *
+     * The budget counts what getMemoryUsage counts: 16 bytes per slot of the
+     * buffer of newest samples, the sealed chunks, and the fixed-size caches
+     * of each series; a series always keeps its newest sample.
+     *
+     * @param bytes The budget in bytes, or 0 for no budget.
+     */
+    public void setMemoryBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Memory budget must not be negative");
+        }
+        seriesSettings.setMemoryBudgetBytes(bytes);
+        enforceRetention();
+    }
+
+    /**
+     * Gets the memory budget for the samples of all patients together.
+     *
+     * @return The budget in bytes, or 0 if there is none.
+     */
+    public long getMemoryBudget() {
+        return seriesSettings.getMemoryBudgetBytes();
+    }
+
+    /**
+     * Turns compression of older samples on or off.
+     * With compression on, each patient and record type keeps its newest
+     * samples uncompressed and seals older ones into compressed chunks, which
+     * typically need one to two bytes per sample instead of sixteen.
+     * Existing data is compressed right away; turning compression off keeps
+     * already compressed data as it is.
+     *
+     * @param enabled Whether older samples should be compressed.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        seriesSettings.setCompressionEnabled(enabled);
+        enforceRetention();
+    }
+
+    /**
+     * Tells whether older samples are compressed.
+     *
+     * @return true if compression is enabled.
+     */
+    public boolean isCompressionEnabled() {
+        return seriesSettings.isCompressionEnabled();
+    }
+
+    /**
+     * Turns maintained rollups on or off.
+     * With rollups on, every added record also updates min, max, sum and
+     * count per second, minute and hour bucket, so getRollups answers from
+     * those buckets instead of the records. Existing records are rolled up
+     * right away.
+     *
+     * @param enabled Whether rollups should be maintained at ingest.
+     */
+    public void setRollupsEnabled(boolean enabled) {
+        seriesSettings.setRollupsEnabled(enabled);
+        enforceRetention();
+    }
+
+    /**
+     * Tells whether rollups are maintained at ingest.
+     *
+     * @return true if rollups are enabled.
+     */
+    public boolean isRollupsEnabled() {
+        return seriesSettings.isRollupsEnabled();
+    }
+
+    /**
+     * Turns deduplication of repeated records on or off.
+     * With deduplication on, a record is rejected if its patient, type,
+     * timestamp and value are the same as those of a recently added record,
+     * as happens when redundant feeds deliver the same readings. Each
+     * patient and record type remembers the keys of its last 64 distinct
+     * records in a fixed-size table, so the check is O(1) and uses about
+     * 1.5 KB per series; repeats of older records are not caught.
+     *
+     * @param enabled Whether repeated records should be rejected.
+     */
+    public void setDeduplicationEnabled(boolean enabled) {
+        seriesSettings.setDeduplicationEnabled(enabled);
+    }
+
+    /**
+     * Tells whether repeated records are rejected.
+     *
+     * @return true if deduplication is enabled.
+     */
+    public boolean isDeduplicationEnabled() {
+        return seriesSettings.isDeduplicationEnabled();
+    }
+
+    /**
+     * Gets the number of records rejected as duplicates since the storage
+     * was last cleared.
+     *
+     * @return The duplicate record count.
+     */
+    public long getDuplicateRecordCount() {
+        return seriesSettings.getDuplicateSamples();
+    }
+
+    /**
+     * Sets the length of the time partitions that sealed chunks are aligned
+     * to. Age retention drops data one chunk at a time, so shorter partitions
+     * free expired data sooner at the cost of smaller chunks. Applies to
+     * chunks sealed from now on.
+     *
+     * @param millis The partition length in milliseconds; one hour by default.
+     */
+    public void setTimePartition(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Time partition must be positive");
+        }
+        seriesSettings.setPartitionMillis(millis);
+    }
+
+    /**
+     * Gets the length of the time partitions that sealed chunks are aligned to.
+     *
+     * @return The partition length in milliseconds.
+     */
+    public long getTimePartition() {
+        return seriesSettings.getPartitionMillis();
+    }
+
+    /**
+     * Sets how late a record may arrive. Each patient and record type keeps
+     * a watermark, the newest timestamp added minus this bound; records
+     * older than their watermark are dropped and counted, and newer late
+     * records are merged into place. Records newer than the watermark are
+     * held back from compression, so late records within the bound are
+     * merged cheaply. With no bound, late records of any age are merged.
+     *
+     * @param millis The lateness bound in milliseconds, or 0 for no bound.
+     */
+    public void setLatenessBound(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Lateness bound must not be negative");
+        }
+        seriesSettings.setLatenessMillis(millis);
+    }
+
+    /**
+     * Gets how late a record may arrive.
+     *
+     * @return The lateness bound in milliseconds, or 0 if there is none.
+     */
+    public long getLatenessBound() {
+        return seriesSettings.getLatenessMillis();
+    }
+
+    /**
+     * Gets the watermark of a patient's records of one type: the newest
+     * timestamp added minus the lateness bound.
+     *
+     * @param patientId The patient's ID.
+     * @param recordType The type of record (e.g., "HeartRate").
+     * @return The watermark, or Long.MIN_VALUE if there is no lateness bound or no such record.
+     */
+    public long getWatermark(int patientId, String recordType) {
+        return getWatermark(patientId, RecordTypeRegistry.codeOf(recordType));
+    }
+
+    /**
+     * Gets the watermark of a patient's records of one type: the newest
+     * timestamp added minus the lateness bound.
+     *
+     * @param patientId The patient's ID.
+     * @param typeCode The registry code of the record type (see RecordTypeRegistry).
+     * @return The watermark, or Long.MIN_VALUE if there is no lateness bound or no such record.
+     */
+    public long getWatermark(int patientId, int typeCode) {
+        Patient patient = findPatient(patientId);
+        return patient == null ? Long.MIN_VALUE : patient.getWatermark(typeCode);
+    }
+
+    /**
+     * Gets the number of records that arrived after a newer record of the
+     * same patient and type and were merged into place, since the storage
+     * was last cleared.
+     *
+     * @return The late record count.
+     */
+    public long getLateRecordCount() {
+        return seriesSettings.getLateSamples();
+    }
+
+    /**
+     * Gets the number of records dropped for arriving later than the
+     * lateness bound, since the storage was last cleared.
+     *
+     * @return The dropped record count.
+     */
+    public long getDroppedRecordCount() {
+        return seriesSettings.getDroppedSamples();
+    }
+
+    /**
+     * Gets the approximate heap size of all stored samples.
+     *
+     * @return The size in bytes.
+     */
+    public long getMemoryUsage() {
+        return streamPatients().mapToLong(Patient::memoryBytes).sum();
+    }
+
+    /**
+     * Trims every patient's data to the retention policy and memory budget,
+     * and compresses and rolls it up if those are enabled.
+     * Writes apply the settings as they go, so this is only needed for
+     * patients that stopped receiving data.
+     */
+    public void enforceRetention() {
+        patientMap.forEach(Patient::maintain);
+    }
+
+    /**
+     * Opens a write-ahead log and logs every record added from now on, so
+     * the data survives a restart. Records already in the log are replayed
+     * into this storage first, on several threads; the log is binary and
+     * replays much faster than re-reading text output files. The log only
+     * holds records that were accepted when they were added, so replay adds
+     * them without the watermark and duplicate checks.
+     *
+     * To restart from a snapshot, load it with loadSnapshot first and then
+     * open the log it was written with: replay skips the records the
+     * snapshot already holds. writeSnapshot cuts those records from the log,
+     * so the log only grows between snapshots.
+     *
+     * @param path The log file; created if it does not exist.
+     * @param policy When logged records are forced to disk.
+     * @param syncIntervalMillis How often to sync with FsyncPolicy.INTERVAL; ignored otherwise.
+     * @return The number of records replayed from the log.
+     * @throws IOException if the log cannot be read or created.
+     */
+    public synchronized long openWriteAheadLog(Path path, FsyncPolicy policy, long syncIntervalMillis)
+            throws IOException {
+        closeWriteAheadLog();
+        long checkpoint = restoredCheckpoint;
+        long firstSequence = Math.max(checkpoint, streamPatients().mapToLong(Patient::loggedThrough).max().orElse(0));
+        WriteAheadLog log = new WriteAheadLog(path, policy, syncIntervalMillis, checkpoint, firstSequence,
+                patientMap::getOrCreate);
+        writeAheadLog = log;
+        return log.getRecoveredRecords();
+    }
+
+    /**
+     * Writes and forces every logged record to disk, whatever the fsync policy.
+     *
+     * @throws IOException if the log cannot be written.
+     */
+    public void syncWriteAheadLog() throws IOException {
+        WriteAheadLog log = writeAheadLog;
+        if (log != null) {
+            log.sync();
+        }
+    }
+
+    /**
+     * Syncs and closes the write-ahead log, if one is open. Records added
+     * afterwards are not logged.
+     *
+     * @throws IOException if the log cannot be written.
+     */
+    public synchronized void closeWriteAheadLog() throws IOException {
+        WriteAheadLog log = writeAheadLog;
+        if (log != null) {
+            writeAheadLog = null;
+            log.close();
+        }
+    }
+
+    /**
+     * Writes a binary snapshot of all stored records. Ingest keeps running
+     * while the snapshot is written; each record type of each patient is
+     * copied consistently, under its own lock. The file is replaced
+     * atomically once the snapshot is complete. With tiered storage on,
+     * spilled patients are read from their segment files and included too.
+     *
+     * With a write-ahead log open, the snapshot is a checkpoint of the log.
+     * It records the log position it started at, and for each record type
+     * of each patient the newest logged record its copy holds. Once the
+     * file is in place, the records up to that position are cut from the
+     * log, which then only holds what the snapshot may lack. To restart,
+     * load the snapshot and then open the log (see openWriteAheadLog).
+     *
+     * @param path The snapshot file.
+     * @return The number of records written.
+     * @throws IOException if the snapshot cannot be written.
+     */
+    public long writeSnapshot(Path path) throws IOException {
+        WriteAheadLog log = writeAheadLog;
+        long checkpoint = log == null ? 0 : log.sequence();
+        TieredStore tiers = tieredStore;
+        long written = tiers == null ? Snapshot.write(path, streamPatients(), checkpoint)
+                : tiers.snapshot(path, checkpoint);
+        if (log != null) {
+            log.truncate(checkpoint);
+        }
+        return written;
+    }
+
+    /**
+     * Loads a snapshot written by writeSnapshot, adding its records to this
+     * storage. The file is memory-mapped and loaded on several threads.
+     * Load it before opening the write-ahead log it was written with, so
+     * replay adds only the records the snapshot lacks.
+     *
+     * @param path The snapshot file.
+     * @return The number of records loaded.
+     * @throws IOException if the file cannot be read or is not a snapshot.
+     */
+    public long loadSnapshot(Path path) throws IOException {
+        long checkpoint = Snapshot.checkpoint(path);
+        long loaded = Snapshot.load(path, patientMap::getOrCreate);
+        restoredCheckpoint = Math.max(restoredCheckpoint, checkpoint);
+        return loaded;
+    }
+
+    /**
+     * Writes a snapshot to the given file every intervalMillis on a
+     * background thread, replacing any periodic snapshots started before.
+     * Failures are reported on standard error and retried at the next interval.
+     *
+     * @param path The snapshot file.
+     * @param intervalMillis The time between snapshots in milliseconds.
+     */
+    public synchronized void startSnapshots(Path path, long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Snapshot interval must be positive");
+        }
+        stopSnapshots();
+        snapshotTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotTimer.scheduleWithFixedDelay(() -> {
+            try {
+                writeSnapshot(path);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Snapshot failed: " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops periodic snapshots. A snapshot that is being written is finished.
+     */
+    public synchronized void stopSnapshots() {
+        if (snapshotTimer != null) {
+            snapshotTimer.shutdown();
+            snapshotTimer = null;
+        }
+    }
+
+    /**
+     * Turns on tiered storage. Patients without new records for idleMillis
+     * are written to a segment file in the given directory and dropped from
+     * memory. Reads of such a patient page it in through an LRU cache of
+     * cacheCapacity patients; a new record for it moves it back into memory.
+     * Spilled patients are left out of getAllPatients, forEachPatient,
+     * streamPatients and the all-patient queries, which cover the patients
+     * in memory. Snapshots include them.
+     *
+     * @param directory The directory for segment files.
+     * @param idleMillis How long a patient must go without records before it is spilled.
+     * @param cacheCapacity The number of spilled patients kept in memory for reads.
+     * @throws IOException if the directory cannot be created.
+     */
+    public synchronized void enableTieredStorage(Path directory, long idleMillis, int cacheCapacity)
+            throws IOException {
+        if (idleMillis <= 0 || cacheCapacity < 0) {
+            throw new IllegalArgumentException("idleMillis must be positive and cacheCapacity not negative");
+        }
+        disableTieredStorage();
+        tieredStore = new TieredStore(directory, idleMillis, cacheCapacity, patientMap, seriesSettings);
+        spillTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spill");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, idleMillis / 2);
+        spillTimer.scheduleWithFixedDelay(() -> {
+            try {
+                spillIdlePatients();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Spilling idle patients failed: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Spills idle patients right away instead of waiting for the background
+     * pass. Does nothing if tiered storage is off.
+     *
+     * @return The number of patients spilled.
+     * @throws IOException if a segment file cannot be written.
+     */
+    public int spillIdlePatients() throws IOException {
+        TieredStore tiers = tieredStore;
+        return tiers == null ? 0 : tiers.spillIdle();
+    }
+
+    /**
+     * Turns off tiered storage, moving every spilled patient back into memory.
+     */
+    public synchronized void disableTieredStorage() {
+        TieredStore tiers = tieredStore;
+        if (tiers == null) {
+            return;
+        }
+        spillTimer.shutdown();
+        try {
+            spillTimer.awaitTermination(1, TimeUnit.MINUTES); // Let a running spill pass finish
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        spillTimer = null;
+        tiers.restoreAll();
+        tieredStore = null;
+    }
+
+    /**
+     * Turns the query cache on or off. The cache keeps the records returned
+     * by getRecords for each patient, record type and time window, so a
+     * window that is requested again, such as a dashboard polling the last
+     * few minutes, is not copied from the stored samples again. Records
+     * appended since a window was cached are added to the cached copy, so it
+     * stays valid while data streams in. Only late records merged into the
+     * window, or retention dropping part of it, make the window be copied
+     * again. When the copies take more than the budget, the least recently
+     * used ones are evicted. Changing the budget empties the cache.
+     *
+     * @param bytes The budget in bytes (about 44 bytes per cached record), or 0 to turn the cache off.
+     */
+    public void setQueryCacheBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Query cache budget must not be negative");
+        }
+        queryCache = bytes == 0 ? null : new QueryCache(bytes);
+    }
+
+    /**
+     * Gets the budget of the query cache.
+     *
+     * @return The budget in bytes, or 0 if the cache is off.
+     */
+    public long getQueryCacheBudget() {
+        QueryCache cache = queryCache;
+        return cache == null ? 0 : cache.maxBytes();
+    }
+
+    /**
+     * Gets the query cache counters: hits, misses, invalidations and
+     * evictions, and the current number and size of the cached windows.
+     *
+     * @return The counters, or null if the cache is off.
+     */
+    public QueryCacheStats getQueryCacheStats() {
+        QueryCache cache = queryCache;
+        return cache == null ? null : cache.stats();
+    }
+
+    /**
+     * Gets the tiered storage counters: cache hits and misses for reads of
+     * spilled patients, spills, restores and the current number of spilled
+     * and cached patients.
+     *
+     * @return The counters, or null if tiered storage is off.
+     */
+    public TieredStorageStats getTieredStorageStats() {
+        TieredStore tiers = tieredStore;
+        return tiers == null ? null : tiers.stats();
+    }
+
+    /**
+     * Subscribes to records added from now on. Every record accepted by
+     * addPatientData whose patient ID and type code match the filters is
+     * handed to the listener shortly after it is stored, in batches, on a
+     * background thread shared by all subscriptions made this way. Records
+     * come in the order each writing thread added them; records from
+     * concurrent writers may interleave differently than they were stored
+     * (see Subscription).
+     * Records loaded from snapshots or replayed from the write-ahead log are
+     * not delivered.
+     *
+     * @param patientFilter Selects patient IDs, or null for every patient.
+     * @param typeFilter Selects type codes (see RecordTypeRegistry), or null for every type.
+     * @param listener Receives the batches.
+     * @return The subscription, used to cancel it.
+     */
+    public Subscription subscribe(IntPredicate patientFilter, IntPredicate typeFilter, SampleListener listener) {
+        return subscribe(patientFilter, typeFilter, listener, defaultNotifier());
+    }
+
+    /**
+     * Subscribes to records added from now on, delivering batches on the
+     * given executor. A listener that blocks only delays its own
+     * subscription if the executor has a thread to spare for it.
+     *
+     * @param patientFilter Selects patient IDs, or null for every patient.
+     * @param typeFilter Selects type codes (see RecordTypeRegistry), or null for every type.
+     * @param listener Receives the batches.
+     * @param executor Runs the deliveries.
+     * @return The subscription, used to cancel it.
+     */
+    public Subscription subscribe(IntPredicate patientFilter, IntPredicate typeFilter, SampleListener listener,
+            Executor executor) {
+        if (listener == null || executor == null) {
+            throw new IllegalArgumentException("listener and executor must not be null");
+        }
+        Subscription subscription = new Subscription(patientFilter == null ? id -> true : patientFilter,
+                typeFilter == null ? code -> true : typeFilter, listener, executor, this::unsubscribe);
+        synchronized (this) {
+            Subscription[] current = subscriptions;
+            Subscription[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = subscription;
+            subscriptions = next;
+        }
+        return subscription;
+    }
+
+    // Removes a cancelled subscription so writers stop offering it records
+    private synchronized void unsubscribe(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                Subscription[] next = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, next.length - i);
+                subscriptions = next;
+                return;
+            }
+        }
     }
 
-    // clears all patient data from the storage
+    private synchronized Executor defaultNotifier() {
+        if (notifier == null) {
+            notifier = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "notifier");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return notifier;
+    }
+
+    // clears all patient data from the storage; subscriptions stay active and receive records added afterwards
     public void clear() {
+        TieredStore tiers = tieredStore;
+        if (tiers != null) {
+            try {
+                tiers.clear();
+            } catch (IOException e) {
+                System.err.println("Could not delete segment files: " + e.getMessage());
+            }
+        }
         patientMap.clear();
+        seriesSettings.reset();
+        restoredCheckpoint = 0;
+        QueryCache cache = queryCache;
+        if (cache != null) {
+            queryCache = new QueryCache(cache.maxBytes());
+        }
     }
 
     /**
@@ -102,9 +1354,7 @@ public class DataStorage {
 
             // Initialize AlertGenerator and evaluate data
             AlertGenerator alertGenerator = new AlertGenerator(storage);
-            for (Patient patient : storage.getAllPatients()) {
-                alertGenerator.evaluateData(patient);
-            }
+            storage.forEachPatient(alertGenerator::evaluateData);
         } catch (Exception e) {
             System.err.println("An error occurred: " + e.getMessage());
             e.printStackTrace();
@@ -4,6 +4,8 @@ import java.io.*;
 import java.nio.file.*;
 
 public class FileDataReader implements DataReader {
+    private static final int BATCH_SIZE = 8192; // Records handed to DataStorage at a time
+
     private String directoryPath;
 
     public FileDataReader(String directoryPath) {
@@ -12,6 +14,7 @@ public class FileDataReader implements DataReader {
 
     @Override
     public void readData(DataStorage dataStorage) throws IOException {
+        SampleBuffer batch = new SampleBuffer(BATCH_SIZE);
         // Get all the files in the selected directory
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(directoryPath))) {
             for (Path file : stream) {
@@ -24,15 +27,19 @@ public class FileDataReader implements DataReader {
                             String[] parts = line.split(",");
                             int patientId = Integer.parseInt(parts[0].split(":")[1].trim());
                             long timestamp = Long.parseLong(parts[1].split(":")[1].trim());
-                            String label = parts[2].split(":")[1].trim();
                             double value = Double.parseDouble(parts[3].split(":")[1].trim());
+                            int typeCode = RecordTypeRegistry.register(parts[2].split(":")[1].trim());
 
-                            // Finally add the data to DataStorage
-                            dataStorage.addPatientData(patientId, value, label, timestamp);
+                            // Collect the data and add it to DataStorage a batch at a time
+                            if (batch.add(patientId, timestamp, typeCode, value)) {
+                                batch.flushTo(dataStorage);
+                            }
                         }
                     }
                 }
             }
+        } finally {
+            batch.flushTo(dataStorage);
         }
     }
 
@@ -0,0 +1,22 @@
+package com.data_management;
+
+/**
+ * When the write-ahead log forces appended records to disk.
+ */
+public enum FsyncPolicy {
+    /**
+     * addPatientData returns only after its record is on disk. Writers that
+     * arrive while a sync is running are committed together by the next one.
+     */
+    ALWAYS,
+    /**
+     * Records are written and forced to disk on a timer, so a crash loses at
+     * most one sync interval.
+     */
+    INTERVAL,
+    /**
+     * Records are written when a frame fills up and when the log is closed;
+     * the operating system decides when they reach the disk.
+     */
+    NEVER
+}
@@ -1,15 +1,24 @@
 package com.data_management;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * This class represents a patient.
  * It stores the patient's ID and their medical records.
+ * Records are kept in one columnar TimeSeries per record type; PatientRecord
+ * objects are only created when records are requested as a list.
+ * Record types are addressed by their RecordTypeRegistry code; the String
+ * methods translate the label and delegate.
+ * A patient can be written and read by several threads at once.
  */
 public class Patient {
-    private int patientId;
-    private List<PatientRecord> patientRecords;
+    private final int patientId;
+    private final SeriesSettings settings;
+    private volatile TimeSeries[] seriesByCode; // Indexed by record type code, replaced on change
+    private volatile TimeSeries[] allSeries; // Every series in creation order, replaced on change
+    private long lastWriteMillis; // Set by DataStorage when tiered storage is on, under its patient lock
 
     /**
      * Creates a new patient with the given ID.
@@ -18,8 +27,20 @@ public class Patient {
      * @param patientId The patient's unique ID.
      */
     public Patient(int patientId) {
+        this(patientId, new SeriesSettings());
+    }
+
+    /**
+     * Creates a new patient whose records follow the given storage settings.
+     *
+     * @param patientId The patient's unique ID.
+     * @param settings  The series settings shared with the owning DataStorage.
+     */
+    Patient(int patientId, SeriesSettings settings) {
         this.patientId = patientId;
-        this.patientRecords = new ArrayList<>();
+        this.settings = settings;
+        this.seriesByCode = new TimeSeries[0];
+        this.allSeries = new TimeSeries[0];
     }
 
     /**
@@ -28,28 +49,187 @@ public class Patient {
      * @param measurementValue The value of the measurement.
      * @param recordType       The type of record (e.g., "HeartRate").
      * @param timestamp        When the measurement was taken.
+     * @return false if the record was dropped, as older than the watermark or as a duplicate
+     */
+    public boolean addRecord(double measurementValue, String recordType, long timestamp) {
+        return addRecord(measurementValue, RecordTypeRegistry.register(recordType), timestamp);
+    }
+
+    /**
+     * Adds a new record for this patient.
+     *
+     * @param measurementValue The value of the measurement.
+     * @param typeCode         The registry code of the record type.
+     * @param timestamp        When the measurement was taken.
+     * @return false if the record was dropped, as older than the watermark or as a duplicate
+     */
+    public boolean addRecord(double measurementValue, int typeCode, long timestamp) {
+        return addRecord(measurementValue, typeCode, timestamp, null);
+    }
+
+    /**
+     * Adds a new record and, if it is accepted, appends it to the
+     * write-ahead log while its series is locked (see TimeSeries.add).
+     *
+     * @param measurementValue The value of the measurement.
+     * @param typeCode         The registry code of the record type.
+     * @param timestamp        When the measurement was taken.
+     * @param log              The log to append to, or null.
+     * @return false if the record was dropped, as older than the watermark or as a duplicate
+     */
+    boolean addRecord(double measurementValue, int typeCode, long timestamp, WriteAheadLog log) {
+        TimeSeries series = getSeries(typeCode);
+        if (series == null) {
+            series = createSeries(typeCode);
+        }
+        return series.add(timestamp, measurementValue, log, patientId);
+    }
+
+    /**
+     * Adds many records of one type at once, locking the series only once.
+     * The accepted records are moved to the front of the given range (see
+     * TimeSeries.addAll).
+     *
+     * @param typeCode   The registry code of the record type.
+     * @param timestamps The timestamps of the records.
+     * @param values     The values of the records.
+     * @param offset     The index of the first record to add.
+     * @param count      The number of records to add.
+     * @param log        The write-ahead log the accepted records are appended to, or null.
+     * @return the number of records accepted
+     */
+    int addRecords(int typeCode, long[] timestamps, double[] values, int offset, int count, WriteAheadLog log) {
+        TimeSeries series = getSeries(typeCode);
+        if (series == null) {
+            series = createSeries(typeCode);
+        }
+        return series.addAll(timestamps, values, offset, count, log, patientId);
+    }
+
+    /**
+     * Adds records of one type loaded from a snapshot (see TimeSeries.load).
+     *
+     * @param typeCode    The registry code of the record type.
+     * @param timestamps  The timestamps of the records.
+     * @param values      The values of the records.
+     * @param count       The number of records to add, from index 0.
+     * @param logSequence The write-ahead log sequence number stored with the records.
+     */
+    void loadRecords(int typeCode, long[] timestamps, double[] values, int count, long logSequence) {
+        TimeSeries series = getSeries(typeCode);
+        if (series == null) {
+            series = createSeries(typeCode);
+        }
+        series.load(timestamps, values, count, logSequence);
+    }
+
+    /**
+     * Adds a record replayed from the write-ahead log, unless a loaded
+     * snapshot already holds it (see TimeSeries.restore).
+     *
+     * @param typeCode    The registry code of the record type.
+     * @param timestamp   When the measurement was taken.
+     * @param value       The value of the measurement.
+     * @param logSequence The sequence number of the record in the log.
+     * @return true if the record was added
+     */
+    boolean restoreRecord(int typeCode, long timestamp, double value, long logSequence) {
+        TimeSeries series = getSeries(typeCode);
+        if (series == null) {
+            series = createSeries(typeCode);
+        }
+        return series.restore(timestamp, value, logSequence);
+    }
+
+    /**
+     * Returns the newest write-ahead log sequence number any series of this
+     * patient has recorded.
+     *
+     * @return the sequence number, or 0 if there is none
      */
-    public void addRecord(double measurementValue, String recordType, long timestamp) {
-        PatientRecord record = new PatientRecord(this.patientId, measurementValue, recordType, timestamp);
-        this.patientRecords.add(record);
+    long loggedThrough() {
+        long newest = 0;
+        for (TimeSeries series : allSeries) {
+            newest = Math.max(newest, series.loggedThrough());
+        }
+        return newest;
+    }
+
+    // Returns the series for a record type code, or null if there is none
+    private TimeSeries getSeries(int typeCode) {
+        TimeSeries[] current = seriesByCode;
+        return typeCode >= 0 && typeCode < current.length ? current[typeCode] : null;
+    }
+
+    // Creates the series for a new record type; only runs once per type
+    private synchronized TimeSeries createSeries(int typeCode) {
+        TimeSeries series = getSeries(typeCode);
+        if (series == null) {
+            series = new TimeSeries(typeCode, settings, settings.zones().slot(typeCode, patientId));
+            settings.seriesCreated();
+            TimeSeries[] updatedByCode = Arrays.copyOf(seriesByCode, Math.max(seriesByCode.length, typeCode + 1));
+            updatedByCode[typeCode] = series;
+            TimeSeries[] updatedAll = Arrays.copyOf(allSeries, allSeries.length + 1);
+            updatedAll[allSeries.length] = series;
+            allSeries = updatedAll;
+            seriesByCode = updatedByCode;
+        }
+        return series;
     }
 
     /**
      * Gets all records for this patient within a time range.
+     * The records are ordered by timestamp. Each record type is already
+     * sorted, so the matching ranges are found with binary search and merged.
      *
      * @param startTime The start of the time range.
      * @param endTime   The end of the time range.
      * @return A list of records within the time range.
      */
     public List<PatientRecord> getRecords(long startTime, long endTime) {
-        List<PatientRecord> filteredRecords = new ArrayList<>();
+        return getRecords(startTime, endTime, null);
+    }
+
+    /**
+     * Gets all records for this patient within a time range, reading each
+     * record type through the given cache.
+     *
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param cache     The query cache, or null to read the series directly.
+     * @return A list of records within the time range.
+     */
+    List<PatientRecord> getRecords(long startTime, long endTime, QueryCache cache) {
+        if (startTime > endTime) {
+            return new ArrayList<>();
+        }
+        TimeSeries[] series = allSeries;
+        List<List<PatientRecord>> runs = new ArrayList<>(series.length);
+        int total = 0;
+        for (TimeSeries typeSeries : series) {
+            List<PatientRecord> run = new ArrayList<>();
+            if (cache != null) {
+                cache.collect(patientId, typeSeries, startTime, endTime, run);
+            } else {
+                typeSeries.collect(patientId, startTime, endTime, run);
+            }
+            runs.add(run);
+            total += run.size();
+        }
 
-        // Iterate through all patient records
-        for (PatientRecord record : patientRecords) {
-            // Check if the record's timestamp falls within the specified range
-            if (record.getTimestamp() >= startTime && record.getTimestamp() <= endTime) {
-                filteredRecords.add(record);
+        // Merge the sorted per-type runs by always taking the earliest next record
+        List<PatientRecord> filteredRecords = new ArrayList<>(total);
+        int[] positions = new int[runs.size()];
+        while (filteredRecords.size() < total) {
+            int next = -1;
+            for (int i = 0; i < runs.size(); i++) {
+                if (positions[i] < runs.get(i).size() && (next < 0
+                        || runs.get(i).get(positions[i]).getTimestamp()
+                                < runs.get(next).get(positions[next]).getTimestamp())) {
+                    next = i;
+                }
             }
+            filteredRecords.add(runs.get(next).get(positions[next]++));
         }
         return filteredRecords;
     }
@@ -63,6 +243,353 @@ public class Patient {
         return getRecords(0, System.currentTimeMillis());
     }
 
+    /**
+     * Visits every record of one type within a time range without creating
+     * PatientRecord objects.
+     *
+     * @param recordType The type of record to scan (e.g., "HeartRate").
+     * @param startTime  The start of the time range.
+     * @param endTime    The end of the time range.
+     * @param visitor    The callback that receives each timestamp and value.
+     */
+    public void forEachRecord(String recordType, long startTime, long endTime, RecordVisitor visitor) {
+        forEachRecord(RecordTypeRegistry.codeOf(recordType), startTime, endTime, visitor);
+    }
+
+    /**
+     * Visits every record of one type within a time range without creating
+     * PatientRecord objects.
+     *
+     * @param typeCode  The registry code of the record type to scan.
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param visitor   The callback that receives each timestamp and value.
+     */
+    public void forEachRecord(int typeCode, long startTime, long endTime, RecordVisitor visitor) {
+        TimeSeries series = getSeries(typeCode);
+        if (series != null) {
+            series.forEach(startTime, endTime, visitor);
+        }
+    }
+
+    /**
+     * Visits the records of one type within a time range whose value
+     * matches a predicate, without creating PatientRecord objects. The
+     * values are tested inside the series, which skips sealed chunks whose
+     * minimum and maximum rule out a match.
+     *
+     * @param typeCode  The registry code of the record type to scan.
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param predicate The condition on the values, e.g. ValuePredicate.lessThan(92).
+     * @param visitor   The callback that receives each matching timestamp and value.
+     */
+    public void forEachRecord(int typeCode, long startTime, long endTime, ValuePredicate predicate,
+            RecordVisitor visitor) {
+        TimeSeries series = getSeries(typeCode);
+        if (series != null) {
+            series.forEachMatching(startTime, endTime, predicate, visitor);
+        }
+    }
+
+    /**
+     * Tells whether the patient has a record of one type within a time range
+     * whose value matches a predicate, for example a reading outside the
+     * normal range. Answered from the min and max of the stored chunks where
+     * possible, so only chunks that may hold a match are read.
+     *
+     * @param typeCode  The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param predicate The condition on the values, e.g. ValuePredicate.outside(60, 120).
+     * @return true if a matching record exists
+     */
+    public boolean hasRecord(int typeCode, long startTime, long endTime, ValuePredicate predicate) {
+        TimeSeries series = getSeries(typeCode);
+        return series != null && series.anyMatch(startTime, endTime, predicate);
+    }
+
+    /**
+     * Joins several record types as of the samples of the first one: for
+     * every sample of the first type within a time range, the visitor gets
+     * the newest value of each other type at or before the sample's time,
+     * unless it is more than toleranceMillis older. All series are read
+     * through cursors and merged in one pass, so no lists are built and the
+     * cost is linear in the number of samples read.
+     *
+     * @param typeCodes       The registry codes of the record types; the first one drives the join.
+     * @param startTime       The start of the time range.
+     * @param endTime         The end of the time range.
+     * @param toleranceMillis How much older than a sample of the first type a joined reading may be.
+     * @param visitor         The callback that receives each row.
+     */
+    public void joinAsOf(int[] typeCodes, long startTime, long endTime, long toleranceMillis,
+            AlignedRecordVisitor visitor) {
+        checkJoin(typeCodes, toleranceMillis);
+        TimeSeries driving = getSeries(typeCodes[0]);
+        if (driving == null || startTime > endTime) {
+            return;
+        }
+        long lookback = startTime - toleranceMillis;
+        if (lookback > startTime) {
+            lookback = Long.MIN_VALUE; // Clamp on overflow
+        }
+        int width = typeCodes.length;
+        TimeSeries.Cursor[] cursors = new TimeSeries.Cursor[width];
+        boolean[] pending = new boolean[width]; // The cursor is on a sample not yet taken
+        boolean[] found = new boolean[width];
+        long[] lastTimestamps = new long[width];
+        double[] lastValues = new double[width];
+        for (int k = 1; k < width; k++) {
+            TimeSeries series = getSeries(typeCodes[k]);
+            if (series != null) {
+                cursors[k] = series.cursor(lookback, endTime);
+                pending[k] = cursors[k].next();
+            }
+        }
+
+        TimeSeries.Cursor cursor = driving.cursor(startTime, endTime);
+        double[] row = new double[width];
+        while (cursor.next()) {
+            long timestamp = cursor.timestamp();
+            long oldest = timestamp - toleranceMillis;
+            if (oldest > timestamp) {
+                oldest = Long.MIN_VALUE;
+            }
+            row[0] = cursor.value();
+            for (int k = 1; k < width; k++) {
+                TimeSeries.Cursor other = cursors[k];
+                while (pending[k] && other.timestamp() <= timestamp) {
+                    found[k] = true;
+                    lastTimestamps[k] = other.timestamp();
+                    lastValues[k] = other.value();
+                    pending[k] = other.next();
+                }
+                row[k] = found[k] && lastTimestamps[k] >= oldest ? lastValues[k] : Double.NaN;
+            }
+            visitor.visit(timestamp, row);
+        }
+    }
+
+    // Validates the arguments of an as-of join
+    static void checkJoin(int[] typeCodes, long toleranceMillis) {
+        if (typeCodes.length < 2) {
+            throw new IllegalArgumentException("An as-of join needs at least two record types");
+        }
+        if (toleranceMillis < 0) {
+            throw new IllegalArgumentException("tolerance must not be negative");
+        }
+    }
+
+    /**
+     * Summarizes the records of one type within a time range in time buckets.
+     * Uses the finest RollupResolution that needs at most maxPoints buckets,
+     * or the coarsest one if none does.
+     *
+     * @param typeCode  The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param maxPoints The maximum number of buckets wanted.
+     * @return The buckets, oldest first.
+     */
+    public List<RollupPoint> getRollups(int typeCode, long startTime, long endTime, int maxPoints) {
+        if (maxPoints < 1) {
+            throw new IllegalArgumentException("maxPoints must be at least 1");
+        }
+        List<RollupPoint> points = new ArrayList<>();
+        TimeSeries series = getSeries(typeCode);
+        if (series != null && startTime <= endTime) {
+            series.collectRollups(startTime, endTime, maxPoints, points);
+        }
+        return points;
+    }
+
+    /**
+     * Summarizes the records of one type within a time range in time buckets
+     * of the given resolution.
+     *
+     * @param typeCode   The registry code of the record type.
+     * @param startTime  The start of the time range.
+     * @param endTime    The end of the time range.
+     * @param resolution The bucket length.
+     * @return The buckets, oldest first.
+     */
+    public List<RollupPoint> getRollups(int typeCode, long startTime, long endTime, RollupResolution resolution) {
+        List<RollupPoint> points = new ArrayList<>();
+        TimeSeries series = getSeries(typeCode);
+        if (series != null && startTime <= endTime) {
+            series.collectRollups(startTime, endTime, resolution, points);
+        }
+        return points;
+    }
+
+    /**
+     * Gets the value of the newest record of one type. Does not allocate and
+     * does not wait for readers or writers of other series.
+     *
+     * @param typeCode The registry code of the record type.
+     * @return The newest value, or NaN if there are no records of that type.
+     */
+    public double getLatest(int typeCode) {
+        TimeSeries series = getSeries(typeCode);
+        return series == null ? Double.NaN : series.latest();
+    }
+
+    /**
+     * Gets the watermark of one record type: the newest timestamp added
+     * minus the lateness bound. Records older than the watermark are dropped.
+     *
+     * @param typeCode The registry code of the record type.
+     * @return The watermark, or Long.MIN_VALUE if there is no lateness bound or no record of that type.
+     */
+    public long getWatermark(int typeCode) {
+        TimeSeries series = getSeries(typeCode);
+        return series == null ? Long.MIN_VALUE : series.getWatermark();
+    }
+
+    /**
+     * Copies the newest n records of one type into the given arrays, oldest
+     * first. Does not allocate when n is at most 32.
+     *
+     * @param typeCode   The registry code of the record type.
+     * @param n          The number of records wanted.
+     * @param timestamps The array that receives the timestamps; at least n long.
+     * @param values     The array that receives the values; at least n long.
+     * @return The number of records copied, which is less than n if fewer are stored.
+     */
+    public int getLastN(int typeCode, int n, long[] timestamps, double[] values) {
+        if (n < 0 || n > timestamps.length || n > values.length) {
+            throw new IllegalArgumentException("n must be between 0 and the length of the arrays");
+        }
+        TimeSeries series = getSeries(typeCode);
+        return series == null || n == 0 ? 0 : series.lastN(n, timestamps, values);
+    }
+
+    /**
+     * Gets the newest n records of one type, oldest first.
+     *
+     * @param typeCode The registry code of the record type.
+     * @param n        The number of records wanted.
+     * @return The records; fewer than n if fewer are stored.
+     */
+    public List<PatientRecord> getLastN(int typeCode, int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n must not be negative");
+        }
+        long[] timestamps = new long[n];
+        double[] values = new double[n];
+        int count = getLastN(typeCode, n, timestamps, values);
+        List<PatientRecord> records = new ArrayList<>(count);
+        if (count == 0) {
+            return records;
+        }
+        String recordType = RecordTypeRegistry.labelOf(typeCode);
+        for (int i = 0; i < count; i++) {
+            records.add(new PatientRecord(patientId, values[i], recordType, timestamps[i]));
+        }
+        return records;
+    }
+
+    /**
+     * Aggregates the values of one record type within a time range. Runs in
+     * time logarithmic in the number of stored records plus the size of one
+     * sealed chunk, using the summaries kept per chunk.
+     *
+     * @param typeCode  The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param kind      The aggregate to compute.
+     * @return The aggregate, or NaN if there are no records in range (0 for COUNT and SUM).
+     */
+    public double aggregate(int typeCode, long startTime, long endTime, AggregateKind kind) {
+        TimeSeries series = getSeries(typeCode);
+        if (series == null || startTime > endTime) {
+            return new Aggregator().result(kind);
+        }
+        return series.aggregate(startTime, endTime).result(kind);
+    }
+
+    /**
+     * Computes a percentile of the values of one record type within a time
+     * range, interpolating linearly between the nearest ranks.
+     *
+     * @param typeCode   The registry code of the record type.
+     * @param startTime  The start of the time range.
+     * @param endTime    The end of the time range.
+     * @param percentile The percentile, between 0 and 100 (50 is the median).
+     * @return The percentile, or NaN if there are no records in range.
+     */
+    public double percentile(int typeCode, long startTime, long endTime, double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        TimeSeries series = getSeries(typeCode);
+        if (series == null || startTime > endTime) {
+            return Double.NaN;
+        }
+        return series.percentile(startTime, endTime, percentile);
+    }
+
+    /**
+     * Gets the number of stored records of one type.
+     *
+     * @param recordType The type of record (e.g., "HeartRate").
+     * @return The number of records of that type.
+     */
+    public int getRecordCount(String recordType) {
+        return getRecordCount(RecordTypeRegistry.codeOf(recordType));
+    }
+
+    /**
+     * Gets the number of stored records of one type.
+     *
+     * @param typeCode The registry code of the record type.
+     * @return The number of records of that type.
+     */
+    public int getRecordCount(int typeCode) {
+        TimeSeries series = getSeries(typeCode);
+        return series == null ? 0 : series.size();
+    }
+
+    /**
+     * Applies the current storage settings to records that are already stored.
+     */
+    void maintain() {
+        for (TimeSeries series : allSeries) {
+            series.maintain();
+        }
+    }
+
+    long getLastWriteMillis() {
+        return lastWriteMillis;
+    }
+
+    void setLastWriteMillis(long lastWriteMillis) {
+        this.lastWriteMillis = lastWriteMillis;
+    }
+
+    /**
+     * Returns every series of this patient. The array must not be modified.
+     *
+     * @return The series in creation order.
+     */
+    TimeSeries[] series() {
+        return allSeries;
+    }
+
+    /**
+     * Gets the approximate heap size of this patient's records.
+     *
+     * @return The size in bytes.
+     */
+    long memoryBytes() {
+        long bytes = 0;
+        for (TimeSeries series : allSeries) {
+            bytes += series.memoryBytes();
+        }
+        return bytes;
+    }
+
     /**
      * Gets the patient's ID.
      *
@@ -0,0 +1,326 @@
+package com.data_management;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Maps patient IDs to Patient objects without boxing the ID.
+ * Small non-negative IDs, such as the simulator's 1..N, go into a dense array
+ * indexed directly by ID. Any other ID goes into an open-addressing hash table
+ * keyed by the primitive int.
+ *
+ * Lookups never lock and never allocate. Inserts take a lock, and grown tables
+ * are published as new arrays, so a reader either sees the patient or falls
+ * through to the locked path.
+ *
+ * Iteration walks the current tables in place instead of copying them, so
+ * it sees patients added before it starts and may or may not see patients
+ * added while it runs.
+ */
+class PatientIndex {
+    private static final int DENSE_LIMIT = 1 << 20; // IDs below this use the dense array
+    private static final int INITIAL_CAPACITY = 64;
+    private static final Patient REMOVED = new Patient(-1); // Marks a sparse slot whose patient was removed
+
+    private final IntFunction<Patient> factory;
+    private volatile AtomicReferenceArray<Patient> dense;
+    private volatile SparseTable sparse;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param factory Creates the Patient for an ID that is not in the index yet.
+     */
+    PatientIndex(IntFunction<Patient> factory) {
+        this.factory = factory;
+        this.dense = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        this.sparse = new SparseTable(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Looks up a patient by ID.
+     *
+     * @param patientId The patient's ID.
+     * @return The patient, or null if there is no patient with this ID.
+     */
+    Patient get(int patientId) {
+        if (patientId >= 0 && patientId < DENSE_LIMIT) {
+            AtomicReferenceArray<Patient> table = dense;
+            return patientId < table.length() ? table.get(patientId) : null;
+        }
+        return sparse.get(patientId);
+    }
+
+    /**
+     * Looks up a patient by ID and creates it if it does not exist yet.
+     *
+     * @param patientId The patient's ID.
+     * @return The existing or newly created patient.
+     */
+    Patient getOrCreate(int patientId) {
+        Patient patient = get(patientId);
+        return patient != null ? patient : create(patientId);
+    }
+
+    private synchronized Patient create(int patientId) {
+        Patient patient = get(patientId);
+        if (patient != null) {
+            return patient;
+        }
+        patient = factory.apply(patientId);
+        put(patientId, patient);
+        return patient;
+    }
+
+    /**
+     * Adds an existing patient, for example one paged back in from disk.
+     *
+     * @param patient The patient to add.
+     * @return The patient now in the index, which is an existing one if its ID was already taken.
+     */
+    synchronized Patient insert(Patient patient) {
+        Patient existing = get(patient.getPatientId());
+        if (existing != null) {
+            return existing;
+        }
+        put(patient.getPatientId(), patient);
+        return patient;
+    }
+
+    /**
+     * Removes a patient. Lookups that already found it keep their reference.
+     *
+     * @param patientId The patient's ID.
+     * @return The removed patient, or null if there was none.
+     */
+    synchronized Patient remove(int patientId) {
+        if (patientId >= 0 && patientId < DENSE_LIMIT) {
+            AtomicReferenceArray<Patient> table = dense;
+            return patientId < table.length() ? table.getAndSet(patientId, null) : null;
+        }
+        return sparse.remove(patientId);
+    }
+
+    // Stores a patient whose ID is not in the index; must be called while holding the lock
+    private void put(int patientId, Patient patient) {
+        if (patientId >= 0 && patientId < DENSE_LIMIT) {
+            AtomicReferenceArray<Patient> table = dense;
+            if (patientId >= table.length()) {
+                int newLength = Math.min(DENSE_LIMIT, Math.max(patientId + 1, table.length() * 2));
+                AtomicReferenceArray<Patient> grown = new AtomicReferenceArray<>(newLength);
+                for (int i = 0; i < table.length(); i++) {
+                    grown.set(i, table.get(i));
+                }
+                table = grown;
+                dense = grown;
+            }
+            table.set(patientId, patient);
+        } else {
+            SparseTable table = sparse;
+            if ((table.size + 1) * 4 > table.capacity() * 3) {
+                table = table.grow();
+                sparse = table;
+            }
+            table.put(patientId, patient);
+        }
+    }
+
+    /**
+     * Returns all patients, dense IDs in ascending order first.
+     *
+     * @return A new list of all patients.
+     */
+    List<Patient> values() {
+        List<Patient> patients = new ArrayList<>();
+        forEach(patients::add);
+        return patients;
+    }
+
+    /**
+     * Runs an action for every patient, dense IDs in ascending order first,
+     * without copying the index.
+     *
+     * @param action The action to run for each patient.
+     */
+    void forEach(Consumer<? super Patient> action) {
+        spliterator().forEachRemaining(action);
+    }
+
+    /**
+     * Creates a spliterator over all patients, dense IDs in ascending order
+     * first. It splits by table slots, so parallel streams divide the
+     * population without copying it.
+     *
+     * @return A spliterator over the current tables.
+     */
+    Spliterator<Patient> spliterator() {
+        AtomicReferenceArray<Patient> denseTable = dense;
+        AtomicReferenceArray<Patient> sparseTable = sparse.values;
+        return new PatientSpliterator(denseTable, sparseTable, 0, denseTable.length() + sparseTable.length());
+    }
+
+    /**
+     * Removes all patients.
+     */
+    synchronized void clear() {
+        dense = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        sparse = new SparseTable(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Open-addressing table with linear probing for IDs outside the dense range.
+     * A slot is taken once its value is set; the key is written before the
+     * value, so a reader that sees the value also sees the key. Removed
+     * patients leave REMOVED in their slot so probe chains stay intact. The
+     * slot is never reused, since a reader may hold the old value while it
+     * checks the key: tombstones count as taken until the table is rebuilt
+     * by grow, so each key is written once per table.
+     */
+    private static final class SparseTable {
+        private final int[] keys;
+        private final AtomicReferenceArray<Patient> values;
+        private final int mask;
+        private int size; // Taken slots, including REMOVED ones
+        private int removed;
+
+        SparseTable(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        Patient get(int key) {
+            for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+                Patient patient = values.get(slot);
+                if (patient == null) {
+                    return null;
+                }
+                if (patient != REMOVED && keys[slot] == key) {
+                    return patient;
+                }
+            }
+        }
+
+        void put(int key, Patient patient) {
+            int slot = mix(key) & mask;
+            while (values.get(slot) != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values.set(slot, patient);
+            size++;
+        }
+
+        Patient remove(int key) {
+            for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+                Patient patient = values.get(slot);
+                if (patient == null) {
+                    return null;
+                }
+                if (patient != REMOVED && keys[slot] == key) {
+                    values.set(slot, REMOVED);
+                    removed++;
+                    return patient;
+                }
+            }
+        }
+
+        // Copies the live patients into a new table without tombstones, twice as large only if they need it
+        SparseTable grow() {
+            int live = size - removed;
+            int capacity = keys.length;
+            while ((live + 1) * 2 > capacity) {
+                capacity *= 2;
+            }
+            SparseTable grown = new SparseTable(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                Patient patient = values.get(i);
+                if (patient != null && patient != REMOVED) {
+                    grown.put(keys[i], patient);
+                }
+            }
+            return grown;
+        }
+
+        // Spreads sequential IDs across the table
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * Walks a range of slots across the dense table followed by the sparse
+     * one, skipping empty slots.
+     */
+    private static final class PatientSpliterator implements Spliterator<Patient> {
+        private final AtomicReferenceArray<Patient> dense;
+        private final AtomicReferenceArray<Patient> sparse;
+        private int position; // Next slot; slots past the dense table index the sparse one
+        private final int end;
+
+        PatientSpliterator(AtomicReferenceArray<Patient> dense, AtomicReferenceArray<Patient> sparse,
+                int position, int end) {
+            this.dense = dense;
+            this.sparse = sparse;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Patient> action) {
+            while (position < end) {
+                Patient patient = slot(position++);
+                if (patient != null) {
+                    action.accept(patient);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Patient> action) {
+            for (; position < end; position++) {
+                Patient patient = slot(position);
+                if (patient != null) {
+                    action.accept(patient);
+                }
+            }
+        }
+
+        @Override
+        public Spliterator<Patient> trySplit() {
+            int middle = (position + end) >>> 1;
+            if (middle - position < 64) {
+                return null;
+            }
+            Spliterator<Patient> prefix = new PatientSpliterator(dense, sparse, position, middle);
+            position = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - position;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+
+        private Patient slot(int index) {
+            Patient patient = index < dense.length() ? dense.get(index) : sparse.get(index - dense.length());
+            return patient == REMOVED ? null : patient;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.data_management;
+
+/**
+ * Receives stored samples of many patients one at a time, in timestamp order.
+ * Values are handed over as primitives, so visiting does not create any
+ * PatientRecord objects.
+ */
+@FunctionalInterface
+public interface PatientRecordVisitor {
+    /**
+     * Called once for every sample that falls inside the queried range.
+     *
+     * @param patientId The ID of the patient the sample belongs to.
+     * @param timestamp The time the measurement was taken.
+     * @param value     The value of the measurement.
+     */
+    void visit(int patientId, long timestamp, double value);
+}
@@ -0,0 +1,215 @@
+package com.data_management;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the records of getRecords windows, one run of records per patient,
+ * record type and time window, within a byte budget. Once the runs hold
+ * more than the budget, the least recently used ones are evicted.
+ *
+ * A run is not thrown away when its series changes. Samples appended since
+ * it was filled are added to its end, and samples that expired by age are
+ * trimmed from its front (see TimeSeries.refresh), so a window that is
+ * polled while data streams in stays cached. Only late samples merged into
+ * the series, or retention drops that reach into the run, make it copy the
+ * window again.
+ */
+final class QueryCache {
+    private static final long RUN_BYTES = 160; // Run, key and map entry
+    private static final long RECORD_BYTES = 40; // A PatientRecord
+
+    private final long maxBytes;
+    private final Map<Key, Run> runs = new LinkedHashMap<>(16, 0.75f, true); // Guarded by this; in access order
+    private long bytes; // Guarded by this
+    private long evictions; // Guarded by this
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxBytes The approximate heap size the cached runs may use.
+     */
+    QueryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Adds the records of one series in [startTime, endTime] to the given
+     * list, in timestamp order, from the cached run of that window if it can
+     * be brought up to date, and from the series otherwise.
+     *
+     * @param patientId The ID of the patient that owns the series.
+     * @param series    The series to read.
+     * @param startTime The start of the time range; not after endTime.
+     * @param endTime   The end of the time range.
+     * @param out       The list the records are added to.
+     */
+    void collect(int patientId, TimeSeries series, long startTime, long endTime, List<PatientRecord> out) {
+        Key key = new Key(patientId, series.getTypeCode(), startTime, endTime);
+        Run run;
+        synchronized (this) {
+            run = runs.computeIfAbsent(key, k -> new Run(patientId, startTime, endTime));
+        }
+        long runBytes;
+        synchronized (run) {
+            if (series.refresh(run)) {
+                hits.increment();
+            } else {
+                if (run.seriesId != 0) {
+                    invalidations.increment();
+                }
+                misses.increment();
+                series.fill(run);
+            }
+            run.copyTo(out);
+            runBytes = run.memoryBytes();
+        }
+        synchronized (this) {
+            if (runs.get(key) == run) {
+                bytes += runBytes - run.accountedBytes;
+                run.accountedBytes = runBytes;
+                evict();
+            }
+        }
+    }
+
+    // Evicts the least recently used runs until the cache fits its budget; must hold this
+    private void evict() {
+        Iterator<Run> iterator = runs.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Run eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.accountedBytes;
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops every cached run. The counters are kept.
+     */
+    synchronized void clear() {
+        runs.clear();
+        bytes = 0;
+    }
+
+    QueryCacheStats stats() {
+        synchronized (this) {
+            return new QueryCacheStats(hits.sum(), misses.sum(), invalidations.sum(), evictions, runs.size(), bytes,
+                    maxBytes);
+        }
+    }
+
+    /**
+     * The cached records of one series in one time window, oldest first.
+     * Guarded by its own monitor; filled and refreshed by TimeSeries.
+     */
+    static final class Run {
+        final int patientId;
+        final long startTime;
+        final long endTime;
+        long seriesId; // The TimeSeries instance the run was filled from, 0 before the first fill
+        long appends; // The change counters of the series that the run reflects
+        long rewrites;
+        long droppedThrough;
+        private PatientRecord[] records = new PatientRecord[0];
+        private int first; // Index of the oldest record; the ones before it were trimmed
+        private int end;
+        private long accountedBytes; // The size counted in the cache total, guarded by the cache
+
+        Run(int patientId, long startTime, long endTime) {
+            this.patientId = patientId;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        void reset(List<PatientRecord> filled, long seriesId, long appends, long rewrites, long droppedThrough) {
+            this.records = filled.toArray(new PatientRecord[0]);
+            this.first = 0;
+            this.end = records.length;
+            this.seriesId = seriesId;
+            this.appends = appends;
+            this.rewrites = rewrites;
+            this.droppedThrough = droppedThrough;
+        }
+
+        int size() {
+            return end - first;
+        }
+
+        long firstTimestamp() {
+            return records[first].getTimestamp();
+        }
+
+        void add(PatientRecord record) {
+            if (end == records.length) {
+                int live = end - first;
+                // Reuse the array if trimming freed most of it
+                PatientRecord[] target = first > live ? records : new PatientRecord[Math.max(16, live + (live >> 1))];
+                System.arraycopy(records, first, target, 0, live);
+                if (target == records) {
+                    Arrays.fill(records, live, end, null);
+                }
+                records = target;
+                first = 0;
+                end = live;
+            }
+            records[end++] = record;
+        }
+
+        // Forgets the records older than the given time
+        void trimBefore(long timestamp) {
+            while (first < end && records[first].getTimestamp() < timestamp) {
+                records[first++] = null;
+            }
+        }
+
+        void copyTo(List<PatientRecord> out) {
+            out.addAll(Arrays.asList(records).subList(first, end));
+        }
+
+        long memoryBytes() {
+            return RUN_BYTES + (long) records.length * Integer.BYTES + (end - first) * RECORD_BYTES;
+        }
+    }
+
+    private static final class Key {
+        private final int patientId;
+        private final int typeCode;
+        private final long startTime;
+        private final long endTime;
+
+        Key(int patientId, int typeCode, long startTime, long endTime) {
+            this.patientId = patientId;
+            this.typeCode = typeCode;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return patientId == key.patientId && typeCode == key.typeCode && startTime == key.startTime
+                    && endTime == key.endTime;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(patientId, typeCode, startTime, endTime);
+        }
+    }
+}
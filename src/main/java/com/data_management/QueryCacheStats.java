@@ -0,0 +1,110 @@
+package com.data_management;
+
+/**
+ * A point-in-time view of the query cache counters.
+ */
+public class QueryCacheStats {
+    private final long hits;
+    private final long misses;
+    private final long invalidations;
+    private final long evictions;
+    private final int entries;
+    private final long memoryBytes;
+    private final long maxBytes;
+
+    /**
+     * Constructs a view of the counters.
+     *
+     * @param hits          reads answered from a cached run, including runs extended by appends
+     * @param misses        reads that copied the window from the series
+     * @param invalidations misses of a cached run that could not be brought up to date
+     * @param evictions     runs evicted to stay within the budget
+     * @param entries       runs currently cached, one per patient, record type and window
+     * @param memoryBytes   the approximate heap size of the cached runs
+     * @param maxBytes      the budget of the cache
+     */
+    public QueryCacheStats(long hits, long misses, long invalidations, long evictions, int entries,
+            long memoryBytes, long maxBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.invalidations = invalidations;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.memoryBytes = memoryBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the number of reads answered from a cached run.
+     *
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of reads that had to copy the window from the stored samples.
+     *
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the share of reads answered from a cached run.
+     *
+     * @return the hit rate between 0 and 1, or 0 if there were no reads
+     */
+    public double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the number of cached runs that had to be copied again because
+     * late records were merged into their window or retention dropped part of it.
+     *
+     * @return the invalidation count
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Returns the number of runs evicted to keep the cache within its budget.
+     *
+     * @return the eviction count
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of runs currently cached.
+     *
+     * @return the entry count
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the approximate heap size of the cached runs.
+     *
+     * @return the size in bytes
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * Returns the budget of the cache.
+     *
+     * @return the budget in bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
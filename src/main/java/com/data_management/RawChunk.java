@@ -0,0 +1,54 @@
+package com.data_management;
+
+import java.util.Arrays;
+
+/**
+ * A sealed chunk that keeps its samples uncompressed in exactly sized arrays.
+ * Used when compression is disabled.
+ */
+final class RawChunk extends Chunk {
+    private final long[] timestamps;
+    private final double[] values;
+
+    /**
+     * Copies a run of sorted samples into a new chunk.
+     *
+     * @param timestamps The sample timestamps, sorted ascending.
+     * @param values     The sample values.
+     * @param offset     The index of the first sample to copy.
+     * @param count      The number of samples to copy; at least 1.
+     */
+    RawChunk(long[] timestamps, double[] values, int offset, int count) {
+        super(timestamps, values, offset, count);
+        this.timestamps = Arrays.copyOfRange(timestamps, offset, offset + count);
+        this.values = Arrays.copyOfRange(values, offset, offset + count);
+    }
+
+    @Override
+    void forEach(int skip, long startTime, long endTime, RecordVisitor visitor) {
+        int low = skip;
+        int high = timestamps.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < startTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < timestamps.length && timestamps[i] <= endTime; i++) {
+            visitor.visit(timestamps[i], values[i]);
+        }
+    }
+
+    @Override
+    void decode(long[] timestamps, double[] values) {
+        System.arraycopy(this.timestamps, 0, timestamps, 0, this.timestamps.length);
+        System.arraycopy(this.values, 0, values, 0, this.values.length);
+    }
+
+    @Override
+    long memoryBytes() {
+        return 2 * 16 + (long) timestamps.length * SeriesSettings.BYTES_PER_SAMPLE + 64; // Arrays plus object fields
+    }
+}
@@ -0,0 +1,86 @@
+package com.data_management;
+
+/**
+ * Remembers the (timestamp, value) keys of the last WINDOW distinct samples
+ * of one series, to reject exact duplicates in O(1). The keys live in a
+ * fixed ring, oldest overwritten first, indexed by a small open-addressing
+ * hash table, so memory stays fixed however many samples are added. Keys
+ * are compared exactly: a sample is only rejected if the same key is among
+ * the last WINDOW distinct keys.
+ * Not thread-safe; the owning TimeSeries locks it.
+ */
+class RecentKeyFilter {
+    static final int WINDOW = 64;
+    private static final int TABLE_MASK = 2 * WINDOW - 1;
+
+    private final long[] timestamps = new long[WINDOW];
+    private final long[] valueBits = new long[WINDOW];
+    private final int[] table = new int[2 * WINDOW]; // Ring index plus one, 0 for an empty slot
+    private int next; // Ring index the next key is stored at
+    private int size;
+
+    /**
+     * Records a key unless it is among the recent keys.
+     *
+     * @param timestamp The sample timestamp.
+     * @param value     The sample value; all NaNs count as the same value.
+     * @return true if the key is new, false if it is a duplicate
+     */
+    boolean add(long timestamp, double value) {
+        long bits = Double.doubleToLongBits(value);
+        for (int slot = home(timestamp, bits); table[slot] != 0; slot = (slot + 1) & TABLE_MASK) {
+            int index = table[slot] - 1;
+            if (timestamps[index] == timestamp && valueBits[index] == bits) {
+                return false;
+            }
+        }
+        if (size == WINDOW) {
+            remove(next); // Forget the oldest key
+        } else {
+            size++;
+        }
+        timestamps[next] = timestamp;
+        valueBits[next] = bits;
+        int slot = home(timestamp, bits);
+        while (table[slot] != 0) {
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        table[slot] = next + 1;
+        next = (next + 1) % WINDOW;
+        return true;
+    }
+
+    // Removes the key at a ring index from the table, shifting later keys of its probe run back
+    private void remove(int index) {
+        int hole = home(timestamps[index], valueBits[index]);
+        while (table[hole] != index + 1) {
+            hole = (hole + 1) & TABLE_MASK;
+        }
+        table[hole] = 0;
+        for (int slot = (hole + 1) & TABLE_MASK; table[slot] != 0; slot = (slot + 1) & TABLE_MASK) {
+            int entry = table[slot] - 1;
+            int home = home(timestamps[entry], valueBits[entry]);
+            // The entry may fill the hole unless its home lies cyclically in (hole, slot]
+            boolean movable = hole <= slot ? home <= hole || home > slot : home <= hole && home > slot;
+            if (movable) {
+                table[hole] = table[slot];
+                table[slot] = 0;
+                hole = slot;
+            }
+        }
+    }
+
+    private static int home(long timestamp, long bits) {
+        long h = (timestamp ^ Long.rotateLeft(bits, 32)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & TABLE_MASK;
+    }
+
+    /**
+     * Returns the approximate heap size of this filter.
+     *
+     * @return the size in bytes
+     */
+    long memoryBytes() {
+        return 2L * WINDOW * Long.BYTES + 2L * WINDOW * Integer.BYTES;
+    }
+}
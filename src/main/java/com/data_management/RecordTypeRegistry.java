@@ -0,0 +1,90 @@
+package com.data_management;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns record type labels (e.g., "HeartRate") to small integer codes.
+ * Data readers translate a label once at ingest; storage, queries and alert
+ * checks then work on the code, and the label is only looked up again when
+ * a PatientRecord is handed out. Codes are dense, start at 0 and never change
+ * while the program runs.
+ */
+public final class RecordTypeRegistry {
+    private static final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private static volatile String[] labels = new String[0];
+
+    public static final int ECG = register("ECG");
+    public static final int SATURATION = register("Saturation");
+    public static final int SYSTOLIC_PRESSURE = register("SystolicPressure");
+    public static final int DIASTOLIC_PRESSURE = register("DiastolicPressure");
+    public static final int HEART_RATE = register("HeartRate");
+    public static final int CHOLESTEROL = register("Cholesterol");
+    public static final int WHITE_BLOOD_CELLS = register("WhiteBloodCells");
+    public static final int RED_BLOOD_CELLS = register("RedBloodCells");
+
+    private RecordTypeRegistry() {
+    }
+
+    /**
+     * Returns the code for a label, assigning a new code if the label has not
+     * been seen before.
+     *
+     * @param label The record type label (e.g., "HeartRate").
+     * @return The code of the label.
+     */
+    public static int register(String label) {
+        Integer code = codes.get(label);
+        return code != null ? code : assign(label);
+    }
+
+    /**
+     * Returns the code for a label without assigning a new one.
+     * Use this for queries, so unknown labels do not grow the registry.
+     *
+     * @param label The record type label (e.g., "HeartRate").
+     * @return The code of the label, or -1 if the label is unknown.
+     */
+    public static int codeOf(String label) {
+        Integer code = codes.get(label);
+        return code != null ? code : -1;
+    }
+
+    /**
+     * Returns the label for a code.
+     *
+     * @param code A code returned by register.
+     * @return The label of the code.
+     * @throws IllegalArgumentException if the code was never assigned
+     */
+    public static String labelOf(int code) {
+        String[] current = labels;
+        if (code < 0 || code >= current.length) {
+            throw new IllegalArgumentException("Unknown record type code: " + code);
+        }
+        return current[code];
+    }
+
+    /**
+     * Returns the number of codes assigned so far.
+     *
+     * @return the number of known record types
+     */
+    public static int size() {
+        return labels.length;
+    }
+
+    private static synchronized int assign(String label) {
+        Integer existing = codes.get(label);
+        if (existing != null) {
+            return existing;
+        }
+        int code = labels.length;
+        String[] updated = Arrays.copyOf(labels, code + 1);
+        updated[code] = label;
+        labels = updated; // Publish the label before the code can be found
+        codes.put(label, code);
+        return code;
+    }
+}
@@ -0,0 +1,17 @@
+package com.data_management;
+
+/**
+ * Receives stored samples one at a time during a range scan.
+ * Values are handed over as primitives, so scanning does not create any
+ * PatientRecord objects.
+ */
+@FunctionalInterface
+public interface RecordVisitor {
+    /**
+     * Called once for every sample that falls inside the scanned range.
+     *
+     * @param timestamp The time the measurement was taken.
+     * @param value     The value of the measurement.
+     */
+    void visit(long timestamp, double value);
+}
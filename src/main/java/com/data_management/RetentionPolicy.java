@@ -0,0 +1,56 @@
+package com.data_management;
+
+/**
+ * Describes how much history DataStorage keeps for each patient and record type.
+ * Samples can be limited by age, by count, or both. Age is measured against
+ * the newest timestamp of the same series, so replayed or simulated data is
+ * expired by its own clock rather than the wall clock.
+ */
+public class RetentionPolicy {
+    private static final RetentionPolicy UNLIMITED = new RetentionPolicy(0, 0);
+
+    private final long maxAgeMillis;
+    private final int maxSamplesPerSeries;
+
+    /**
+     * Creates a retention policy.
+     *
+     * @param maxAgeMillis        The maximum age of a sample in milliseconds, or 0 for no age limit.
+     * @param maxSamplesPerSeries The maximum number of samples per patient and record type, or 0 for no limit.
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public RetentionPolicy(long maxAgeMillis, int maxSamplesPerSeries) {
+        if (maxAgeMillis < 0 || maxSamplesPerSeries < 0) {
+            throw new IllegalArgumentException("Retention limits must not be negative");
+        }
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxSamplesPerSeries = maxSamplesPerSeries;
+    }
+
+    /**
+     * Returns the policy that keeps every sample.
+     *
+     * @return the unlimited policy
+     */
+    public static RetentionPolicy unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * Returns the maximum age of a sample.
+     *
+     * @return the age limit in milliseconds, or 0 if there is none
+     */
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * Returns the maximum number of samples per patient and record type.
+     *
+     * @return the sample limit, or 0 if there is none
+     */
+    public int getMaxSamplesPerSeries() {
+        return maxSamplesPerSeries;
+    }
+}
@@ -0,0 +1,96 @@
+package com.data_management;
+
+/**
+ * Summarizes the samples of one record type that fall into one time bucket:
+ * their minimum, maximum, sum and count.
+ */
+public class RollupPoint {
+    private final long startTime;
+    private final RollupResolution resolution;
+    private final double min;
+    private final double max;
+    private final double sum;
+    private final long count;
+
+    /**
+     * Constructs a summary of one bucket.
+     *
+     * @param startTime  the start of the bucket, in milliseconds since epoch
+     * @param resolution the length of the bucket
+     * @param min        the smallest value in the bucket
+     * @param max        the largest value in the bucket
+     * @param sum        the sum of the values in the bucket
+     * @param count      the number of values in the bucket
+     */
+    public RollupPoint(long startTime, RollupResolution resolution, double min, double max, double sum, long count) {
+        this.startTime = startTime;
+        this.resolution = resolution;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.count = count;
+    }
+
+    /**
+     * Returns the start of the bucket.
+     *
+     * @return the start time in milliseconds since epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns the length of the bucket.
+     *
+     * @return the resolution
+     */
+    public RollupResolution getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Returns the smallest value in the bucket.
+     *
+     * @return the minimum
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the largest value in the bucket.
+     *
+     * @return the maximum
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the sum of the values in the bucket.
+     *
+     * @return the sum
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * Returns the number of values in the bucket.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the mean of the values in the bucket.
+     *
+     * @return the average
+     */
+    public double getAverage() {
+        return sum / count;
+    }
+}
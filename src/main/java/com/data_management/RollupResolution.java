@@ -0,0 +1,48 @@
+package com.data_management;
+
+/**
+ * The bucket sizes at which DataStorage keeps rolled-up summaries of each
+ * patient and record type. Finer resolutions keep a shorter history.
+ */
+public enum RollupResolution {
+    SECOND(1_000L, 3_600),             // One hour of one-second buckets
+    MINUTE(60_000L, 7 * 24 * 60),      // One week of one-minute buckets
+    HOUR(3_600_000L, 365 * 24);        // One year of one-hour buckets
+
+    private final long millis;
+    private final int maxBuckets;
+
+    RollupResolution(long millis, int maxBuckets) {
+        this.millis = millis;
+        this.maxBuckets = maxBuckets;
+    }
+
+    /**
+     * Returns the length of one bucket.
+     *
+     * @return the bucket length in milliseconds
+     */
+    public long getMillis() {
+        return millis;
+    }
+
+    /**
+     * Returns how many of the newest buckets are kept.
+     *
+     * @return the maximum number of buckets
+     */
+    int getMaxBuckets() {
+        return maxBuckets;
+    }
+
+    /**
+     * Returns the start of the bucket that contains a timestamp.
+     *
+     * @param timestamp The time to look up.
+     * @return the start time of its bucket
+     */
+    long bucketStart(long timestamp) {
+        long start = timestamp - Math.floorMod(timestamp, millis);
+        return start > timestamp ? Long.MIN_VALUE : start; // Clamp timestamps near Long.MIN_VALUE
+    }
+}
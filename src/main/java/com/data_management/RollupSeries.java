@@ -0,0 +1,187 @@
+package com.data_management;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps min, max, sum and count per time bucket for one series at one
+ * resolution. Buckets are sorted by start time; samples for the newest
+ * bucket update it in O(1), and late samples update or insert their bucket
+ * after a binary search. Only the newest buckets up to the resolution's
+ * limit are kept. Not thread-safe; the owning TimeSeries locks it.
+ */
+class RollupSeries implements RecordVisitor {
+    private final RollupResolution resolution;
+    private final int maxBuckets;
+    private long[] starts = new long[8];
+    private double[] mins = new double[8];
+    private double[] maxs = new double[8];
+    private double[] sums = new double[8];
+    private long[] counts = new long[8];
+    private int first; // Index of the oldest kept bucket
+    private int end; // One past the index of the newest bucket
+    private boolean truncated; // Whether old buckets were dropped
+
+    /**
+     * Creates an empty rollup.
+     *
+     * @param resolution The bucket length.
+     * @param maxBuckets The number of newest buckets to keep.
+     */
+    RollupSeries(RollupResolution resolution, int maxBuckets) {
+        this.resolution = resolution;
+        this.maxBuckets = maxBuckets;
+    }
+
+    /**
+     * Adds a sample to the bucket that contains its timestamp.
+     *
+     * @param timestamp When the measurement was taken.
+     * @param value     The value of the measurement.
+     */
+    @Override
+    public void visit(long timestamp, double value) {
+        long bucket = resolution.bucketStart(timestamp);
+        if (end > first && starts[end - 1] == bucket) {
+            update(end - 1, value);
+        } else if (end == first || bucket > starts[end - 1]) {
+            insert(end, bucket, value);
+        } else {
+            int index = lowerBound(bucket);
+            if (starts[index] == bucket) {
+                update(index, value);
+            } else if (index > first || !truncated) {
+                insert(index, bucket, value);
+            }
+            // Otherwise the bucket is older than the kept history
+        }
+    }
+
+    private void update(int index, double value) {
+        mins[index] = Math.min(mins[index], value);
+        maxs[index] = Math.max(maxs[index], value);
+        sums[index] += value;
+        counts[index]++;
+    }
+
+    private void insert(int index, long bucket, double value) {
+        if (end == starts.length) {
+            if (first >= starts.length / 2) {
+                // Reuse the space of dropped buckets
+                shift(first, 0, end - first);
+                index -= first;
+                end -= first;
+                first = 0;
+            } else {
+                int capacity = starts.length * 2;
+                starts = Arrays.copyOf(starts, capacity);
+                mins = Arrays.copyOf(mins, capacity);
+                maxs = Arrays.copyOf(maxs, capacity);
+                sums = Arrays.copyOf(sums, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+        }
+        shift(index, index + 1, end - index);
+        starts[index] = bucket;
+        mins[index] = value;
+        maxs[index] = value;
+        sums[index] = value;
+        counts[index] = 1;
+        end++;
+        if (end - first > maxBuckets) {
+            first++;
+            truncated = true;
+        }
+    }
+
+    private void shift(int from, int to, int length) {
+        System.arraycopy(starts, from, starts, to, length);
+        System.arraycopy(mins, from, mins, to, length);
+        System.arraycopy(maxs, from, maxs, to, length);
+        System.arraycopy(sums, from, sums, to, length);
+        System.arraycopy(counts, from, counts, to, length);
+    }
+
+    // Index of the first bucket starting at or after the given time
+    private int lowerBound(long bucket) {
+        int low = first;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] < bucket) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Index of the first bucket starting after the given time
+    private int upperBound(long time) {
+        int low = first;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Tells whether this rollup still has all buckets from the given time on.
+     *
+     * @param startTime The start of the time range.
+     * @return true if no bucket at or after the time was dropped
+     */
+    boolean covers(long startTime) {
+        return !truncated || (end > first && starts[first] <= resolution.bucketStart(startTime));
+    }
+
+    /**
+     * Counts the buckets that overlap [startTime, endTime].
+     *
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @return the number of buckets
+     */
+    int count(long startTime, long endTime) {
+        return upperBound(endTime) - lowerBound(resolution.bucketStart(startTime));
+    }
+
+    /**
+     * Adds a RollupPoint for every bucket that overlaps [startTime, endTime].
+     *
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param out       The list the points are added to.
+     */
+    void collect(long startTime, long endTime, List<RollupPoint> out) {
+        int last = upperBound(endTime);
+        for (int i = lowerBound(resolution.bucketStart(startTime)); i < last; i++) {
+            out.add(new RollupPoint(starts[i], resolution, mins[i], maxs[i], sums[i], counts[i]));
+        }
+    }
+
+    /**
+     * Returns the approximate heap size of this rollup.
+     *
+     * @return the size in bytes
+     */
+    long memoryBytes() {
+        return (long) starts.length * (4 * Long.BYTES + Double.BYTES);
+    }
+
+    /**
+     * Returns the resolution of this rollup.
+     *
+     * @return the resolution
+     */
+    RollupResolution getResolution() {
+        return resolution;
+    }
+}
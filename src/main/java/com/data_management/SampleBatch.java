@@ -0,0 +1,106 @@
+package com.data_management;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of added samples delivered to a subscription. The samples are
+ * kept in primitive columns and read by index, so a batch does not create
+ * any PatientRecord objects unless toRecords is called.
+ */
+public class SampleBatch {
+    private final int[] patientIds;
+    private final int[] typeCodes;
+    private final long[] timestamps;
+    private final double[] values;
+    private final int size;
+
+    // The batch takes ownership of the arrays
+    SampleBatch(int[] patientIds, int[] typeCodes, long[] timestamps, double[] values, int size) {
+        this.patientIds = patientIds;
+        this.typeCodes = typeCodes;
+        this.timestamps = timestamps;
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * Returns the number of samples in this batch.
+     *
+     * @return the sample count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the patient ID of a sample.
+     *
+     * @param index The index of the sample, from 0 to size() - 1.
+     * @return the patient ID
+     */
+    public int getPatientId(int index) {
+        return patientIds[checkIndex(index)];
+    }
+
+    /**
+     * Returns the registry code of the record type of a sample.
+     *
+     * @param index The index of the sample, from 0 to size() - 1.
+     * @return the type code (see RecordTypeRegistry)
+     */
+    public int getTypeCode(int index) {
+        return typeCodes[checkIndex(index)];
+    }
+
+    /**
+     * Returns the record type label of a sample.
+     *
+     * @param index The index of the sample, from 0 to size() - 1.
+     * @return the record type, e.g. "HeartRate"
+     */
+    public String getRecordType(int index) {
+        return RecordTypeRegistry.labelOf(typeCodes[checkIndex(index)]);
+    }
+
+    /**
+     * Returns the timestamp of a sample.
+     *
+     * @param index The index of the sample, from 0 to size() - 1.
+     * @return the time the measurement was taken
+     */
+    public long getTimestamp(int index) {
+        return timestamps[checkIndex(index)];
+    }
+
+    /**
+     * Returns the value of a sample.
+     *
+     * @param index The index of the sample, from 0 to size() - 1.
+     * @return the measurement value
+     */
+    public double getValue(int index) {
+        return values[checkIndex(index)];
+    }
+
+    /**
+     * Copies the samples of this batch into record objects.
+     *
+     * @return the records, in the order they were added
+     */
+    public List<PatientRecord> toRecords() {
+        List<PatientRecord> records = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            records.add(new PatientRecord(patientIds[i], values[i], RecordTypeRegistry.labelOf(typeCodes[i]),
+                    timestamps[i]));
+        }
+        return records;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for batch of " + size);
+        }
+        return index;
+    }
+}
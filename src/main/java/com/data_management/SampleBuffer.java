@@ -0,0 +1,64 @@
+package com.data_management;
+
+/**
+ * A fixed-size buffer of samples in primitive columns, used by the readers
+ * to hand records to DataStorage in batches instead of one at a time.
+ * Not thread-safe.
+ */
+final class SampleBuffer {
+    private final int[] patientIds;
+    private final long[] timestamps;
+    private final int[] typeCodes;
+    private final double[] values;
+    private int size;
+    private long lost; // Samples of batches the storage failed to add
+
+    SampleBuffer(int capacity) {
+        patientIds = new int[capacity];
+        timestamps = new long[capacity];
+        typeCodes = new int[capacity];
+        values = new double[capacity];
+    }
+
+    /**
+     * Buffers a sample.
+     *
+     * @return true if the buffer is full afterwards and should be flushed
+     */
+    boolean add(int patientId, long timestamp, int typeCode, double value) {
+        patientIds[size] = patientId;
+        timestamps[size] = timestamp;
+        typeCodes[size] = typeCode;
+        values[size] = value;
+        return ++size == patientIds.length;
+    }
+
+    /**
+     * Adds the buffered samples to the storage as one batch and empties the buffer.
+     * A failed batch is not retried, since the storage may have added part of
+     * it before failing; its samples are counted as lost instead.
+     *
+     * @throws RuntimeException if the storage fails, for example to write its log
+     */
+    void flushTo(DataStorage storage) {
+        if (size > 0) {
+            int count = size;
+            size = 0;
+            try {
+                storage.addPatientData(patientIds, timestamps, typeCodes, values, count);
+            } catch (RuntimeException e) {
+                lost += count;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of samples in batches the storage failed to add.
+     *
+     * @return the lost sample count
+     */
+    long lost() {
+        return lost;
+    }
+}
@@ -0,0 +1,16 @@
+package com.data_management;
+
+/**
+ * Receives newly added samples from a subscription, a batch at a time.
+ * See DataStorage.subscribe.
+ */
+@FunctionalInterface
+public interface SampleListener {
+    /**
+     * Called with the samples added since the previous batch, in the order
+     * they were added. Calls for one subscription never overlap.
+     *
+     * @param batch The samples; never empty.
+     */
+    void onSamples(SampleBatch batch);
+}
@@ -0,0 +1,240 @@
+package com.data_management;
+
+import java.util.Arrays;
+
+/**
+ * The sealed chunks of one series, oldest first, with an index over their
+ * summaries. Prefix sums of count, sum and sum of squares and a segment tree
+ * of min and max answer "aggregate chunks i..j" in O(log n), so a window
+ * aggregate only has to read the samples of the partial chunks at its edges.
+ * The same tree serves as a zone map for value predicates: runs of chunks
+ * whose min and max rule out a match are skipped without being looked at.
+ *
+ * Chunks are appended at the end and dropped from the front, both in
+ * amortized O(1). Replacing a chunk in the middle, which only happens for
+ * late samples, rebuilds the prefix sums after it. Not thread-safe; the owning
+ * TimeSeries locks it.
+ */
+class SealedChunks {
+    private Chunk[] chunks;
+    private int first; // Slot of the oldest chunk
+    private int end; // One past the slot of the newest chunk
+    private long[] prefixCount; // prefixCount[i] is the count of the chunks in slots [0, i)
+    private double[] prefixSum;
+    private double[] prefixSumOfSquares;
+    private double[] minTree; // Segment trees over slots, leaves at [capacity, 2 * capacity)
+    private double[] maxTree;
+
+    SealedChunks() {
+        allocate(8);
+    }
+
+    int size() {
+        return end - first;
+    }
+
+    boolean isEmpty() {
+        return end == first;
+    }
+
+    Chunk get(int index) {
+        return chunks[first + index];
+    }
+
+    Chunk last() {
+        return chunks[end - 1];
+    }
+
+    /**
+     * Appends a chunk that is newer than every chunk already present.
+     *
+     * @param chunk The chunk to append.
+     */
+    void add(Chunk chunk) {
+        if (end == chunks.length) {
+            rebuild(first >= chunks.length / 2 ? chunks.length : chunks.length * 2);
+        }
+        chunks[end] = chunk;
+        updateSlot(end);
+        end++;
+    }
+
+    /**
+     * Drops the oldest chunk.
+     *
+     * @return the dropped chunk
+     */
+    Chunk removeFirst() {
+        Chunk chunk = chunks[first];
+        chunks[first] = null;
+        setLeaf(first, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+        first++;
+        if (first == end) {
+            first = 0;
+            end = 0;
+        }
+        return chunk;
+    }
+
+    /**
+     * Replaces a chunk, for example after merging a late sample into it.
+     *
+     * @param index The position of the chunk, 0 being the oldest.
+     * @param chunk The new chunk covering the same time range.
+     */
+    void set(int index, Chunk chunk) {
+        int slot = first + index;
+        chunks[slot] = chunk;
+        for (int i = slot; i < end; i++) {
+            updateSlot(i);
+        }
+    }
+
+    /**
+     * Adds the summaries of the chunks at positions [from, to) to an aggregator.
+     *
+     * @param from       The position of the first chunk, 0 being the oldest.
+     * @param to         One past the position of the last chunk.
+     * @param aggregator The aggregator to add the summaries to.
+     */
+    void summarize(int from, int to, Aggregator aggregator) {
+        if (from >= to) {
+            return;
+        }
+        int low = first + from;
+        int high = first + to;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int capacity = chunks.length;
+        for (int l = low + capacity, r = high + capacity; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) == 1) {
+                min = Math.min(min, minTree[l]);
+                max = Math.max(max, maxTree[l]);
+                l++;
+            }
+            if ((r & 1) == 1) {
+                r--;
+                min = Math.min(min, minTree[r]);
+                max = Math.max(max, maxTree[r]);
+            }
+        }
+        aggregator.add(prefixCount[high] - prefixCount[low], prefixSum[high] - prefixSum[low],
+                prefixSumOfSquares[high] - prefixSumOfSquares[low], min, max);
+    }
+
+    /**
+     * Finds the first chunk in positions [from, to) whose min and max do not
+     * rule out a match for a predicate. Subtrees of the index that rule it
+     * out are skipped whole, so each candidate is found in O(log n).
+     *
+     * @param from      The position of the first chunk to consider, 0 being the oldest.
+     * @param to        One past the position of the last chunk to consider.
+     * @param predicate The condition on the values.
+     * @return the position of the candidate, or to if there is none
+     */
+    int firstCandidate(int from, int to, ValuePredicate predicate) {
+        if (from >= to) {
+            return to;
+        }
+        int slot = firstCandidate(1, 0, chunks.length, first + from, first + to, predicate);
+        return slot < 0 ? to : slot - first;
+    }
+
+    // Searches the subtree of a node covering slots [nodeLow, nodeHigh); -1 if it holds no candidate
+    private int firstCandidate(int node, int nodeLow, int nodeHigh, int low, int high, ValuePredicate predicate) {
+        if (nodeHigh <= low || nodeLow >= high || predicate.excludes(minTree[node], maxTree[node])) {
+            return -1;
+        }
+        if (nodeHigh - nodeLow == 1) {
+            return nodeLow;
+        }
+        int mid = (nodeLow + nodeHigh) >>> 1;
+        int found = firstCandidate(2 * node, nodeLow, mid, low, high, predicate);
+        return found >= 0 ? found : firstCandidate(2 * node + 1, mid, nodeHigh, low, high, predicate);
+    }
+
+    /**
+     * Finds the position of the first chunk whose first timestamp is at
+     * least the given time.
+     *
+     * @param timestamp The time to search for.
+     * @return the position, or size() if there is none
+     */
+    int firstStartingAtOrAfter(long timestamp) {
+        int low = first;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (chunks[mid].getFirstTimestamp() < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - first;
+    }
+
+    /**
+     * Finds the position of the first chunk whose last timestamp is after
+     * the given time.
+     *
+     * @param timestamp The time to search for.
+     * @return the position, or size() if there is none
+     */
+    int firstEndingAfter(long timestamp) {
+        int low = first;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (chunks[mid].getLastTimestamp() <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - first;
+    }
+
+    // Recomputes the prefix sums and tree leaf of one slot from the slot before it
+    private void updateSlot(int slot) {
+        Chunk chunk = chunks[slot];
+        prefixCount[slot + 1] = prefixCount[slot] + chunk.size();
+        prefixSum[slot + 1] = prefixSum[slot] + chunk.getSum();
+        prefixSumOfSquares[slot + 1] = prefixSumOfSquares[slot] + chunk.getSumOfSquares();
+        setLeaf(slot, chunk.getMin(), chunk.getMax());
+    }
+
+    private void setLeaf(int slot, double min, double max) {
+        int node = slot + chunks.length;
+        minTree[node] = min;
+        maxTree[node] = max;
+        for (node >>= 1; node > 0; node >>= 1) {
+            minTree[node] = Math.min(minTree[2 * node], minTree[2 * node + 1]);
+            maxTree[node] = Math.max(maxTree[2 * node], maxTree[2 * node + 1]);
+        }
+    }
+
+    // Moves the live chunks to the front of new arrays and recomputes the index
+    private void rebuild(int capacity) {
+        Chunk[] live = Arrays.copyOfRange(chunks, first, end);
+        allocate(capacity);
+        for (Chunk chunk : live) {
+            chunks[end] = chunk;
+            updateSlot(end);
+            end++;
+        }
+    }
+
+    private void allocate(int capacity) {
+        chunks = new Chunk[capacity];
+        first = 0;
+        end = 0;
+        prefixCount = new long[capacity + 1];
+        prefixSum = new double[capacity + 1];
+        prefixSumOfSquares = new double[capacity + 1];
+        minTree = new double[2 * capacity];
+        maxTree = new double[2 * capacity];
+        Arrays.fill(minTree, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxTree, Double.NEGATIVE_INFINITY);
+    }
+}
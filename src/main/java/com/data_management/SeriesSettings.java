@@ -0,0 +1,203 @@
+package com.data_management;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The settings shared by every series of one DataStorage.
+ * Combines the configured RetentionPolicy with an optional global memory
+ * budget, the time partition length, the lateness bound and the
+ * compression, rollup and deduplication switches, and counts late and
+ * duplicate samples. The budget is split evenly over all
+ * series, so each series can enforce it locally without a global counter on
+ * the write path.
+ */
+class SeriesSettings {
+    static final int BYTES_PER_SAMPLE = Long.BYTES + Double.BYTES;
+    static final long DEFAULT_PARTITION_MILLIS = 3_600_000;
+
+    private volatile RetentionPolicy policy = RetentionPolicy.unlimited();
+    private volatile long memoryBudgetBytes; // 0 means no budget
+    private volatile boolean compressionEnabled;
+    private volatile boolean rollupsEnabled;
+    private volatile boolean deduplicationEnabled;
+    private volatile long partitionMillis = DEFAULT_PARTITION_MILLIS;
+    private volatile long latenessMillis; // 0 means late samples are never dropped
+    private final AtomicInteger seriesCount = new AtomicInteger();
+    private final LongAdder lateSamples = new LongAdder();
+    private final LongAdder droppedSamples = new LongAdder();
+    private final LongAdder duplicateSamples = new LongAdder();
+    private final ZoneSummary zones = new ZoneSummary();
+
+    RetentionPolicy getPolicy() {
+        return policy;
+    }
+
+    void setPolicy(RetentionPolicy policy) {
+        this.policy = policy;
+    }
+
+    long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    void setMemoryBudgetBytes(long memoryBudgetBytes) {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    boolean isRollupsEnabled() {
+        return rollupsEnabled;
+    }
+
+    void setRollupsEnabled(boolean rollupsEnabled) {
+        this.rollupsEnabled = rollupsEnabled;
+    }
+
+    boolean isDeduplicationEnabled() {
+        return deduplicationEnabled;
+    }
+
+    void setDeduplicationEnabled(boolean deduplicationEnabled) {
+        this.deduplicationEnabled = deduplicationEnabled;
+    }
+
+    long getPartitionMillis() {
+        return partitionMillis;
+    }
+
+    void setPartitionMillis(long partitionMillis) {
+        this.partitionMillis = partitionMillis;
+    }
+
+    long getLatenessMillis() {
+        return latenessMillis;
+    }
+
+    void setLatenessMillis(long latenessMillis) {
+        this.latenessMillis = latenessMillis;
+    }
+
+    /**
+     * Returns the value and time ranges of every series, by record type and patient.
+     *
+     * @return the zone summary
+     */
+    ZoneSummary zones() {
+        return zones;
+    }
+
+    /**
+     * Records a sample that arrived after a newer one of the same series and was merged in.
+     */
+    void sampleLate() {
+        lateSamples.increment();
+    }
+
+    /**
+     * Records a sample dropped for arriving later than the lateness bound.
+     */
+    void sampleDropped() {
+        droppedSamples.increment();
+    }
+
+    /**
+     * Records a sample rejected as a duplicate of a recent one.
+     */
+    void sampleDuplicated() {
+        duplicateSamples.increment();
+    }
+
+    long getDuplicateSamples() {
+        return duplicateSamples.sum();
+    }
+
+    long getLateSamples() {
+        return lateSamples.sum();
+    }
+
+    long getDroppedSamples() {
+        return droppedSamples.sum();
+    }
+
+    /**
+     * Returns the start of the time partition that contains a timestamp.
+     *
+     * @param timestamp The timestamp.
+     * @return the partition start, clamped to Long.MIN_VALUE
+     */
+    long partitionStart(long timestamp) {
+        long millis = partitionMillis;
+        long start = timestamp - Math.floorMod(timestamp, millis);
+        return start > timestamp ? Long.MIN_VALUE : start; // Clamp timestamps near Long.MIN_VALUE
+    }
+
+    /**
+     * Records that a new series was created, which shrinks every series'
+     * share of the memory budget.
+     */
+    void seriesCreated() {
+        seriesCount.incrementAndGet();
+    }
+
+    /**
+     * Records that series were dropped from memory, which grows every
+     * remaining series' share of the memory budget.
+     *
+     * @param count The number of series dropped.
+     */
+    void seriesRemoved(int count) {
+        seriesCount.addAndGet(-count);
+    }
+
+    /**
+     * Forgets all series, their zone summary and late and duplicate sample
+     * counts, for when the storage is cleared.
+     */
+    void reset() {
+        seriesCount.set(0);
+        zones.clear();
+        lateSamples.reset();
+        droppedSamples.reset();
+        duplicateSamples.reset();
+    }
+
+    /**
+     * Returns the maximum age of a sample.
+     *
+     * @return the age limit in milliseconds, or 0 if there is none
+     */
+    long maxAgeMillis() {
+        return policy.getMaxAgeMillis();
+    }
+
+    /**
+     * Returns how many samples a single series may hold.
+     *
+     * @return the sample limit, or 0 if there is none
+     */
+    int maxSamplesPerSeries() {
+        return policy.getMaxSamplesPerSeries();
+    }
+
+    /**
+     * Returns how many bytes a single series may use: its even share of the
+     * memory budget.
+     *
+     * @return the byte limit, or 0 if there is no budget
+     */
+    long maxBytesPerSeries() {
+        long budget = memoryBudgetBytes;
+        if (budget == 0) {
+            return 0;
+        }
+        return Math.max(BYTES_PER_SAMPLE, budget / Math.max(1, seriesCount.get()));
+    }
+}
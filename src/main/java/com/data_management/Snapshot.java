@@ -0,0 +1,304 @@
+package com.data_management;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Writes and loads binary snapshots of all stored samples.
+ *
+ * A snapshot is a 24-byte header (magic, version, section count, checkpoint)
+ * followed by sections of one series each: [patient ID][label length][UTF-8
+ * label][sample count][log sequence], then all timestamps and then all
+ * values. Long series are split into sections of at most SECTION_SAMPLES
+ * samples.
+ *
+ * The checkpoint is the write-ahead log sequence number when the snapshot
+ * started: every sample logged up to it is in the snapshot. The log
+ * sequence of a section is the sequence number of the newest logged sample
+ * of its series when the series was copied, so replaying the log after
+ * loading the snapshot skips the samples the copy already holds (see
+ * TimeSeries.restore). Both are 0 without a log.
+ *
+ * Writing takes a consistent copy of one series at a time, holding its
+ * read lock only to copy the chunk list and the hot samples, so ingest keeps
+ * running and only waits for that copy of the series it writes to. Each
+ * series is consistent, but different series are copied at slightly
+ * different times. The file is written under a temporary name and then
+ * renamed, so a crash never leaves a partial snapshot in place.
+ *
+ * Loading maps the file and bulk-copies the timestamp and value columns.
+ * The sections are loaded on several threads, each owning a share of the
+ * patients.
+ */
+final class Snapshot {
+    private static final int MAGIC = 0x50534E50; // "PSNP"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 24;
+    private static final int SECTION_HEADER_BYTES = 18; // Without the label
+    static final int SECTION_SAMPLES = 1 << 20;
+    private static final long MAX_REGION_BYTES = 1L << 30; // Largest mapping used while loading
+    private static final int MAX_SECTION_HEADER_BYTES = SECTION_HEADER_BYTES + 0xFFFF;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the given patients.
+     *
+     * @param path       The snapshot file; replaced if it exists.
+     * @param patients   The patients to include.
+     * @param checkpoint The write-ahead log sequence number through which every logged sample is in the
+     *                   patients, or 0.
+     * @return The number of samples written.
+     * @throws IOException if the file cannot be written
+     */
+    static long write(Path path, Stream<Patient> patients, long checkpoint) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        long samples = 0;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(0).putLong(checkpoint);
+            long sections = 0;
+            SeriesCopy copy = new SeriesCopy();
+            for (Patient patient : (Iterable<Patient>) patients::iterator) {
+                for (TimeSeries series : patient.series()) {
+                    copy.size = 0;
+                    long logSequence = series.copyAll(copy);
+                    byte[] label = RecordTypeRegistry.labelOf(series.getTypeCode()).getBytes(StandardCharsets.UTF_8);
+                    for (int from = 0; from < copy.size; from += SECTION_SAMPLES) {
+                        int count = Math.min(SECTION_SAMPLES, copy.size - from);
+                        ensureRoom(channel, buffer, SECTION_HEADER_BYTES + label.length);
+                        buffer.putInt(patient.getPatientId()).putShort((short) label.length).put(label).putInt(count)
+                                .putLong(logSequence);
+                        putLongs(channel, buffer, copy.timestamps, from, count);
+                        putDoubles(channel, buffer, copy.values, from, count);
+                        sections++;
+                        samples += count;
+                    }
+                }
+            }
+            drain(channel, buffer);
+            buffer.putLong(sections).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, 8 + buffer.position());
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return samples;
+    }
+
+    private static void ensureRoom(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain(channel, buffer);
+        }
+    }
+
+    private static void putLongs(FileChannel channel, ByteBuffer buffer, long[] column, int from, int count)
+            throws IOException {
+        while (count > 0) {
+            int room = Math.min(count, buffer.remaining() / 8);
+            if (room == 0) {
+                drain(channel, buffer);
+                continue;
+            }
+            buffer.asLongBuffer().put(column, from, room);
+            buffer.position(buffer.position() + 8 * room);
+            from += room;
+            count -= room;
+        }
+    }
+
+    private static void putDoubles(FileChannel channel, ByteBuffer buffer, double[] column, int from, int count)
+            throws IOException {
+        while (count > 0) {
+            int room = Math.min(count, buffer.remaining() / 8);
+            if (room == 0) {
+                drain(channel, buffer);
+                continue;
+            }
+            buffer.asDoubleBuffer().put(column, from, room);
+            buffer.position(buffer.position() + 8 * room);
+            from += room;
+            count -= room;
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Loads a snapshot, adding its samples to the patients returned by the
+     * given function.
+     *
+     * @param path     The snapshot file.
+     * @param patients Finds or creates the patient that loaded samples are added to.
+     * @return The number of samples loaded.
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    static long load(Path path, IntFunction<Patient> patients) throws IOException {
+        List<Section> sections = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Not a snapshot: " + path);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a snapshot of a supported version: " + path);
+            }
+            long sectionCount = header.getLong(8);
+
+            // Map the file in regions of whole sections and note where each section starts
+            long position = HEADER_BYTES;
+            long regionStart = position;
+            MappedByteBuffer region = null;
+            for (long s = 0; s < sectionCount; s++) {
+                if (region == null || position + MAX_SECTION_HEADER_BYTES > regionStart + region.capacity()) {
+                    region = map(channel, position, size);
+                    regionStart = position;
+                }
+                int offset = (int) (position - regionStart);
+                if (offset + 6 > region.capacity()) {
+                    throw new IOException("Truncated snapshot: " + path);
+                }
+                int patientId = region.getInt(offset);
+                int labelLength = region.getShort(offset + 4) & 0xFFFF;
+                if (offset + SECTION_HEADER_BYTES + labelLength > region.capacity()) {
+                    throw new IOException("Truncated snapshot: " + path);
+                }
+                byte[] label = new byte[labelLength];
+                region.get(offset + 6, label);
+                int count = region.getInt(offset + 6 + labelLength);
+                long logSequence = region.getLong(offset + 10 + labelLength);
+                long sectionBytes = SECTION_HEADER_BYTES + labelLength + 16L * count;
+                if (count < 0 || count > SECTION_SAMPLES || position + sectionBytes > size) {
+                    throw new IOException("Truncated snapshot: " + path);
+                }
+                if (offset + sectionBytes > region.capacity()) {
+                    // The columns run past this region; map a new one starting at the section
+                    region = map(channel, position, size);
+                    regionStart = position;
+                    offset = 0;
+                }
+                int typeCode = RecordTypeRegistry.register(new String(label, StandardCharsets.UTF_8));
+                sections.add(new Section(region, offset + SECTION_HEADER_BYTES + labelLength, patientId, typeCode,
+                        count, logSequence));
+                position += sectionBytes;
+            }
+        }
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        AtomicLong loaded = new AtomicLong();
+        IntStream.range(0, workers).parallel().forEach(worker -> {
+            long[] timestamps = new long[0];
+            double[] values = new double[0];
+            for (Section section : sections) {
+                if (Math.floorMod(section.patientId, workers) != worker) {
+                    continue;
+                }
+                if (timestamps.length < section.count) {
+                    timestamps = new long[section.count];
+                    values = new double[section.count];
+                }
+                ByteBuffer columns = section.region.duplicate();
+                columns.position(section.offset);
+                columns.asLongBuffer().get(timestamps, 0, section.count);
+                columns.position(section.offset + 8 * section.count);
+                columns.asDoubleBuffer().get(values, 0, section.count);
+                patients.apply(section.patientId).loadRecords(section.typeCode, timestamps, values, section.count,
+                        section.logSequence);
+                loaded.addAndGet(section.count);
+            }
+        });
+        return loaded.get();
+    }
+
+    /**
+     * Reads the checkpoint of a snapshot: the write-ahead log sequence number
+     * through which every logged sample is in the snapshot.
+     *
+     * @param path The snapshot file.
+     * @return The checkpoint, or 0 if the snapshot was written without a log.
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    static long checkpoint(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Not a snapshot: " + path);
+                }
+            }
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a snapshot of a supported version: " + path);
+            }
+            return header.getLong(16);
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAX_REGION_BYTES));
+    }
+
+    /**
+     * Collects the samples of one series in growable arrays.
+     */
+    private static final class SeriesCopy implements RecordVisitor {
+        long[] timestamps = new long[1024];
+        double[] values = new double[1024];
+        int size;
+
+        @Override
+        public void visit(long timestamp, double value) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+    }
+
+    /**
+     * Where the columns of one section are in a mapped region.
+     */
+    private static final class Section {
+        final MappedByteBuffer region;
+        final int offset; // Offset of the timestamp column in the region
+        final int patientId;
+        final int typeCode;
+        final int count;
+        final long logSequence;
+
+        Section(MappedByteBuffer region, int offset, int patientId, int typeCode, int count, long logSequence) {
+            this.region = region;
+            this.offset = offset;
+            this.patientId = patientId;
+            this.typeCode = typeCode;
+            this.count = count;
+            this.logSequence = logSequence;
+        }
+    }
+}
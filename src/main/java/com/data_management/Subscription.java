@@ -0,0 +1,190 @@
+package com.data_management;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+/**
+ * A registration for samples added to DataStorage, returned by
+ * DataStorage.subscribe. Matching samples are buffered as they are added
+ * and handed to the listener in batches on the subscription's executor.
+ * While the listener is busy, new samples collect into the next batch, so a
+ * slow listener gets fewer, larger batches instead of falling behind one
+ * sample at a time. At most one batch per subscription is delivered at a
+ * time.
+ *
+ * Samples are offered after their series lock is released and the
+ * write-ahead log is committed, so subscribers never see a sample before it
+ * is logged. Samples added by one thread are delivered in the order that
+ * thread added them. Samples added concurrently by different threads may be
+ * delivered in a different order than they were stored, even for the same
+ * patient and record type; a subscriber that needs the stored order sorts
+ * by timestamp or reads the series.
+ */
+public class Subscription {
+    static final int MAX_PENDING = 1 << 20; // Samples buffered beyond this are dropped
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final IntPredicate patientFilter;
+    private final IntPredicate typeFilter;
+    private final SampleListener listener;
+    private final Executor executor;
+    private final Consumer<Subscription> onCancel;
+
+    // Guarded by this
+    private int[] pendingPatients = new int[INITIAL_CAPACITY];
+    private int[] pendingTypes = new int[INITIAL_CAPACITY];
+    private long[] pendingTimestamps = new long[INITIAL_CAPACITY];
+    private double[] pendingValues = new double[INITIAL_CAPACITY];
+    private int pendingSize;
+    private boolean scheduled; // A drain task is queued or running
+    private boolean cancelled;
+    private long delivered;
+    private long dropped;
+
+    Subscription(IntPredicate patientFilter, IntPredicate typeFilter, SampleListener listener, Executor executor,
+            Consumer<Subscription> onCancel) {
+        this.patientFilter = patientFilter;
+        this.typeFilter = typeFilter;
+        this.listener = listener;
+        this.executor = executor;
+        this.onCancel = onCancel;
+    }
+
+    /**
+     * Buffers a sample if it passes the filters and schedules a delivery if
+     * none is pending. Called by writers after the sample is stored and logged.
+     */
+    void offer(int patientId, int typeCode, long timestamp, double value) {
+        if (!patientFilter.test(patientId) || !typeFilter.test(typeCode)) {
+            return;
+        }
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            if (pendingSize == MAX_PENDING) {
+                dropped++;
+                return;
+            }
+            if (pendingSize == pendingPatients.length) {
+                int capacity = Math.min(MAX_PENDING, pendingSize * 2);
+                pendingPatients = Arrays.copyOf(pendingPatients, capacity);
+                pendingTypes = Arrays.copyOf(pendingTypes, capacity);
+                pendingTimestamps = Arrays.copyOf(pendingTimestamps, capacity);
+                pendingValues = Arrays.copyOf(pendingValues, capacity);
+            }
+            pendingPatients[pendingSize] = patientId;
+            pendingTypes[pendingSize] = typeCode;
+            pendingTimestamps[pendingSize] = timestamp;
+            pendingValues[pendingSize] = value;
+            pendingSize++;
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            System.err.println("Subscription cancelled, its executor rejected a delivery: " + e.getMessage());
+            cancel();
+        }
+    }
+
+    // Delivers pending samples until none are left
+    private void drain() {
+        while (true) {
+            SampleBatch batch;
+            synchronized (this) {
+                if (pendingSize == 0 || cancelled) {
+                    scheduled = false;
+                    notifyAll();
+                    return;
+                }
+                batch = new SampleBatch(pendingPatients, pendingTypes, pendingTimestamps, pendingValues,
+                        pendingSize);
+                pendingPatients = new int[INITIAL_CAPACITY];
+                pendingTypes = new int[INITIAL_CAPACITY];
+                pendingTimestamps = new long[INITIAL_CAPACITY];
+                pendingValues = new double[INITIAL_CAPACITY];
+                pendingSize = 0;
+            }
+            try {
+                listener.onSamples(batch);
+            } catch (RuntimeException e) {
+                System.err.println("Subscription listener failed: " + e.getMessage());
+            }
+            synchronized (this) {
+                delivered += batch.size();
+            }
+        }
+    }
+
+    /**
+     * Waits until every sample buffered so far has been delivered.
+     *
+     * @param timeoutMillis The longest time to wait in milliseconds.
+     * @return true if nothing is left to deliver, false if the time ran out.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public synchronized boolean awaitDelivery(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (scheduled) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the subscription. Buffered samples that were not delivered yet
+     * are discarded; a batch that is being delivered is finished.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            pendingSize = 0;
+            if (!scheduled) {
+                notifyAll();
+            }
+        }
+        onCancel.accept(this);
+    }
+
+    /**
+     * Returns whether the subscription was cancelled.
+     *
+     * @return true once cancel was called
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the number of samples handed to the listener so far.
+     *
+     * @return the delivered sample count
+     */
+    public synchronized long getDeliveredSamples() {
+        return delivered;
+    }
+
+    /**
+     * Returns the number of matching samples dropped because the listener
+     * fell more than a million samples behind.
+     *
+     * @return the dropped sample count
+     */
+    public synchronized long getDroppedSamples() {
+        return dropped;
+    }
+}
@@ -0,0 +1,86 @@
+package com.data_management;
+
+/**
+ * Keeps the newest CAPACITY samples of one series, sorted by timestamp, in
+ * a fixed ring. In-order samples are added in O(1); a late sample that is
+ * newer than the oldest cached one is merged into place, and older ones are
+ * ignored. The arrays never change size and every index is masked, so
+ * readers can copy from the cache under an optimistic read without risking
+ * out-of-bounds access; they must validate the read before using the data.
+ * Not thread-safe; the owning TimeSeries locks it.
+ */
+class TailCache {
+    static final int CAPACITY = 32;
+    private static final int MASK = CAPACITY - 1;
+
+    private final long[] timestamps = new long[CAPACITY];
+    private final double[] values = new double[CAPACITY];
+    private int head; // Slot of the oldest cached sample
+    private int size;
+
+    /**
+     * Adds a sample if it is among the newest CAPACITY samples seen.
+     *
+     * @param timestamp When the measurement was taken.
+     * @param value     The value of the measurement.
+     */
+    void add(long timestamp, double value) {
+        if (size == CAPACITY) {
+            if (timestamp < timestamps[head]) {
+                return; // Older than the cached tail
+            }
+            head = (head + 1) & MASK;
+            size--;
+        }
+        int index = size;
+        while (index > 0 && timestamps[(head + index - 1) & MASK] > timestamp) {
+            int to = (head + index) & MASK;
+            int from = (head + index - 1) & MASK;
+            timestamps[to] = timestamps[from];
+            values[to] = values[from];
+            index--;
+        }
+        int slot = (head + index) & MASK;
+        timestamps[slot] = timestamp;
+        values[slot] = value;
+        size++;
+    }
+
+    /**
+     * Returns the number of cached samples.
+     *
+     * @return the sample count, at most CAPACITY
+     */
+    int size() {
+        return Math.min(size, CAPACITY);
+    }
+
+    /**
+     * Returns the timestamp of the n-th newest cached sample.
+     *
+     * @param n The position from the newest sample, 0 being the newest.
+     * @return the timestamp
+     */
+    long timestampFromEnd(int n) {
+        return timestamps[(head + size - 1 - n) & MASK];
+    }
+
+    /**
+     * Returns the value of the n-th newest cached sample.
+     *
+     * @param n The position from the newest sample, 0 being the newest.
+     * @return the value
+     */
+    double valueFromEnd(int n) {
+        return values[(head + size - 1 - n) & MASK];
+    }
+
+    /**
+     * Returns the approximate heap size of this cache.
+     *
+     * @return the size in bytes
+     */
+    long memoryBytes() {
+        return 24 + 2 * (16 + CAPACITY * 8L);
+    }
+}
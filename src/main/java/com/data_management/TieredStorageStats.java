@@ -0,0 +1,97 @@
+package com.data_management;
+
+/**
+ * A point-in-time view of the tiered storage counters.
+ */
+public class TieredStorageStats {
+    private final long cacheHits;
+    private final long cacheMisses;
+    private final long spills;
+    private final long restores;
+    private final int spilledPatients;
+    private final int cachedPatients;
+
+    /**
+     * Constructs a view of the counters.
+     *
+     * @param cacheHits       reads of spilled patients answered from the cache
+     * @param cacheMisses     reads of spilled patients that loaded a segment file
+     * @param spills          patients written to segment files so far
+     * @param restores        spilled patients moved back into memory by a write
+     * @param spilledPatients patients currently on disk only
+     * @param cachedPatients  spilled patients currently held by the cache
+     */
+    public TieredStorageStats(long cacheHits, long cacheMisses, long spills, long restores,
+            int spilledPatients, int cachedPatients) {
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+        this.spills = spills;
+        this.restores = restores;
+        this.spilledPatients = spilledPatients;
+        this.cachedPatients = cachedPatients;
+    }
+
+    /**
+     * Returns the number of reads of spilled patients answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Returns the number of reads of spilled patients that had to load a segment file.
+     *
+     * @return the miss count
+     */
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Returns the share of reads of spilled patients answered from the cache.
+     *
+     * @return the hit rate between 0 and 1, or 0 if there were no such reads
+     */
+    public double getHitRate() {
+        long total = cacheHits + cacheMisses;
+        return total == 0 ? 0 : (double) cacheHits / total;
+    }
+
+    /**
+     * Returns the number of patients written to segment files so far.
+     *
+     * @return the spill count
+     */
+    public long getSpills() {
+        return spills;
+    }
+
+    /**
+     * Returns the number of spilled patients moved back into memory by a write.
+     *
+     * @return the restore count
+     */
+    public long getRestores() {
+        return restores;
+    }
+
+    /**
+     * Returns the number of patients currently held on disk only.
+     *
+     * @return the spilled patient count
+     */
+    public int getSpilledPatients() {
+        return spilledPatients;
+    }
+
+    /**
+     * Returns the number of spilled patients currently held by the cache.
+     *
+     * @return the cached patient count
+     */
+    public int getCachedPatients() {
+        return cachedPatients;
+    }
+}
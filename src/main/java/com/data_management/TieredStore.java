@@ -0,0 +1,309 @@
+package com.data_management;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Moves patients that stopped receiving data out of the heap and into one
+ * segment file each, in the snapshot format.
+ *
+ * Spilled patients are no longer in the resident PatientIndex. Reads page
+ * them in through a bounded LRU cache of read-only copies; a write moves the
+ * patient back into the index and deletes its segment file.
+ *
+ * Writers of a patient hold the shared side of one of STRIPES locks, picked
+ * by patient ID. Spilling takes the exclusive side only to check that no
+ * write arrived while the segment was written and to remove the patient,
+ * so no write can go to a patient that is being evicted.
+ */
+class TieredStore {
+    private static final int STRIPES = 64;
+
+    private final Path directory;
+    private final long idleMillis;
+    private final int cacheCapacity;
+    private final PatientIndex resident;
+    private final SeriesSettings settings;
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+    private final Set<Integer> spilled = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, Patient> cache; // Guarded by itself; in access order
+    private final Object spillLock = new Object(); // One spill pass at a time
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+    private final AtomicLong restores = new AtomicLong();
+
+    /**
+     * Creates a tiered store that spills into the given directory.
+     *
+     * @param directory     The directory for segment files; created if needed.
+     * @param idleMillis    How long a patient must go without writes before it is spilled.
+     * @param cacheCapacity The number of spilled patients kept in memory for reads.
+     * @param resident      The index of patients in memory.
+     * @param settings      The series settings of the owning DataStorage.
+     * @throws IOException if the directory cannot be created
+     */
+    TieredStore(Path directory, long idleMillis, int cacheCapacity, PatientIndex resident, SeriesSettings settings)
+            throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.idleMillis = idleMillis;
+        this.cacheCapacity = cacheCapacity;
+        this.resident = resident;
+        this.settings = settings;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.cache = new LinkedHashMap<Integer, Patient>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Patient> eldest) {
+                if (size() > TieredStore.this.cacheCapacity) {
+                    settings.seriesRemoved(eldest.getValue().series().length);
+                    return true;
+                }
+                return false;
+            }
+        };
+        long now = System.currentTimeMillis();
+        resident.forEach(patient -> patient.setLastWriteMillis(now));
+    }
+
+    /**
+     * Returns the lock a writer of the given patient must hold while it
+     * looks the patient up with resident and adds data.
+     *
+     * @param patientId The patient's ID.
+     * @return the shared side of the patient's stripe
+     */
+    Lock writeLock(int patientId) {
+        return stripes[patientId & (STRIPES - 1)].readLock();
+    }
+
+    /**
+     * Returns the patient in memory, moving it back from disk if it was
+     * spilled and creating it if it does not exist. Must be called while
+     * holding writeLock(patientId).
+     *
+     * @param patientId The patient's ID.
+     * @return the resident patient
+     */
+    Patient resident(int patientId) {
+        Patient patient = resident.get(patientId);
+        if (patient != null) {
+            return patient;
+        }
+        if (spilled.contains(patientId)) {
+            synchronized (this) {
+                patient = resident.get(patientId);
+                if (patient == null && spilled.contains(patientId)) {
+                    patient = restore(patientId);
+                }
+            }
+            if (patient != null) {
+                return patient;
+            }
+        }
+        return resident.getOrCreate(patientId);
+    }
+
+    // Loads a spilled patient into the resident index and deletes its segment
+    private Patient restore(int patientId) {
+        Patient patient;
+        synchronized (cache) {
+            patient = cache.remove(patientId);
+        }
+        try {
+            if (patient == null) {
+                patient = load(patientId);
+            }
+            patient = resident.insert(patient);
+            spilled.remove(patientId);
+            Files.deleteIfExists(segment(patientId));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not restore patient " + patientId, e);
+        }
+        restores.incrementAndGet();
+        return patient;
+    }
+
+    /**
+     * Finds a spilled patient for reading, through the cache.
+     * The returned copy must not be written to.
+     *
+     * @param patientId The patient's ID.
+     * @return the patient, or null if it is not spilled
+     */
+    Patient page(int patientId) {
+        if (!spilled.contains(patientId)) {
+            return null;
+        }
+        synchronized (cache) {
+            Patient cached = cache.get(patientId);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        misses.incrementAndGet();
+        Patient patient;
+        try {
+            patient = load(patientId);
+        } catch (NoSuchFileException e) {
+            return resident.get(patientId); // Restored by a write meanwhile
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not page in patient " + patientId, e);
+        }
+        synchronized (cache) {
+            Patient raced = cache.putIfAbsent(patientId, patient);
+            if (raced != null) {
+                settings.seriesRemoved(patient.series().length);
+                return raced;
+            }
+        }
+        return patient;
+    }
+
+    private Patient load(int patientId) throws IOException {
+        Patient patient = new Patient(patientId, settings);
+        Snapshot.load(segment(patientId), id -> patient);
+        return patient;
+    }
+
+    /**
+     * Writes every resident patient without writes for the idle period to
+     * its segment file and removes it from memory.
+     *
+     * @return the number of patients spilled
+     * @throws IOException if a segment file cannot be written
+     */
+    int spillIdle() throws IOException {
+        synchronized (spillLock) {
+            return spillIdle(System.currentTimeMillis() - idleMillis);
+        }
+    }
+
+    private int spillIdle(long cutoff) throws IOException {
+        List<Patient> idle = new ArrayList<>();
+        resident.forEach(patient -> {
+            if (patient.getLastWriteMillis() < cutoff) {
+                idle.add(patient);
+            }
+        });
+        int count = 0;
+        for (Patient patient : idle) {
+            int patientId = patient.getPatientId();
+            Path file = segment(patientId);
+            Snapshot.write(file, Stream.of(patient), 0);
+            Lock lock = stripes[patientId & (STRIPES - 1)].writeLock();
+            lock.lock();
+            try {
+                if (patient.getLastWriteMillis() < cutoff && resident.get(patientId) == patient) {
+                    spilled.add(patientId);
+                    resident.remove(patientId);
+                    synchronized (cache) {
+                        Patient stale = cache.remove(patientId); // Paged in before the last restore
+                        if (stale != null) {
+                            settings.seriesRemoved(stale.series().length);
+                        }
+                    }
+                    settings.seriesRemoved(patient.series().length);
+                    spills.incrementAndGet();
+                    count++;
+                } else {
+                    Files.deleteIfExists(file); // Written to while the segment was being written
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes a snapshot of every patient, resident or spilled. Spill passes
+     * wait until it is written, and spilled patients are read through the
+     * cache (see page). A patient that a write moves back into memory
+     * meanwhile is written once, from memory.
+     *
+     * @param path       The snapshot file; replaced if it exists.
+     * @param checkpoint The write-ahead log checkpoint to record (see Snapshot.write).
+     * @return the number of samples written
+     * @throws IOException if the snapshot cannot be written
+     */
+    long snapshot(Path path, long checkpoint) throws IOException {
+        synchronized (spillLock) {
+            Set<Integer> pending = new HashSet<>(spilled);
+            Stream<Patient> residents = StreamSupport.stream(resident.spliterator(), false)
+                    .peek(patient -> pending.remove(patient.getPatientId()));
+            Stream<Patient> spilledPatients = Stream.of(pending).flatMap(ids -> ids.stream()
+                    .map(patientId -> {
+                        Patient patient = page(patientId);
+                        return patient != null ? patient : resident.get(patientId);
+                    })
+                    .filter(Objects::nonNull));
+            return Snapshot.write(path, Stream.concat(residents, spilledPatients), checkpoint);
+        }
+    }
+
+    /**
+     * Moves every spilled patient back into memory.
+     */
+    void restoreAll() {
+        for (Integer patientId : spilled) {
+            Lock lock = writeLock(patientId);
+            lock.lock();
+            try {
+                resident(patientId);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Forgets every spilled patient and deletes the segment files.
+     *
+     * @throws IOException if a segment file cannot be deleted
+     */
+    void clear() throws IOException {
+        synchronized (cache) {
+            cache.clear();
+        }
+        for (Integer patientId : spilled) {
+            Files.deleteIfExists(segment(patientId));
+        }
+        spilled.clear();
+    }
+
+    /**
+     * Returns the current counters.
+     *
+     * @return the counters
+     */
+    TieredStorageStats stats() {
+        int cached;
+        synchronized (cache) {
+            cached = cache.size();
+        }
+        return new TieredStorageStats(hits.get(), misses.get(), spills.get(), restores.get(), spilled.size(), cached);
+    }
+
+    private Path segment(int patientId) {
+        return directory.resolve("patient-" + patientId + ".seg");
+    }
+}
@@ -0,0 +1,1566 @@
+package com.data_management;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Stores the samples of one record type for one patient in columnar form.
+ * Timestamps and values live in two growable primitive arrays instead of one
+ * PatientRecord object per sample, which keeps the per-sample cost at 16 bytes.
+ * Samples are kept sorted by timestamp so range queries can use binary search.
+ *
+ * Every series has its own lock, so writers to different patients or record
+ * types never contend with each other. Readers share the lock and only wait
+ * for a writer of the same series. The lock doubles as a sequence lock: each
+ * write bumps its stamp, so reads of recent samples copy them under an
+ * optimistic read and only take the lock if a writer got in the way. Range
+ * reads hold the lock at most while copying, never while visiting.
+ *
+ * The newest samples are hot: they live uncompressed in arrays used as a ring
+ * buffer, where retention drops old samples by moving the head forward and a
+ * full series overwrites its oldest sample in place. Older samples are sealed
+ * into chunks of up to CHUNK_SAMPLES samples each: CompressedChunks with
+ * compression enabled, RawChunks otherwise. Every chunk keeps a summary of its
+ * values, so aggregates only read the samples of the chunks at the edges of
+ * the window.
+ *
+ * Chunks are cut at time partition boundaries (hourly by default): a chunk
+ * holds whole partitions, or part of one partition if that partition alone
+ * has more than CHUNK_SAMPLES samples. Age retention therefore expires whole
+ * chunks from the front in O(1), and range queries that cover many chunks
+ * decode them in parallel.
+ *
+ * With a lateness bound set, the hot samples double as a reorder buffer:
+ * samples are only sealed once they fall below the watermark, the newest
+ * timestamp seen minus the bound, so late samples within the bound are
+ * merged into the hot arrays instead of into a sealed chunk. Samples older
+ * than the watermark are dropped.
+ *
+ * With deduplication enabled, a RecentKeyFilter rejects samples whose
+ * timestamp and value repeat a recently added sample.
+ *
+ * A TailCache keeps the newest samples apart, so the latest value and the
+ * last few samples are read without taking the lock in the common case.
+ *
+ * With rollups enabled, each sample also updates a RollupSeries per
+ * RollupResolution. Rollups keep their own history and are not affected by
+ * retention of the samples.
+ *
+ * Every series counts its appends and its other changes, so a QueryCache run
+ * copied from it can be brought up to date instead of being copied again.
+ */
+class TimeSeries {
+    static final int CHUNK_SAMPLES = 512;
+    private static final int PARALLEL_CHUNKS = 8; // Range queries over at least this many chunks decode in parallel
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_REORDER_SAMPLES = 16 * CHUNK_SAMPLES; // Hot samples above the watermark sealed anyway
+    private static final AtomicLong SERIES_IDS = new AtomicLong();
+
+    private final int typeCode;
+    private final String recordType;
+    private final SeriesSettings settings;
+    private final ZoneSummary.Slot zone;
+    private final StampedLock lock = new StampedLock();
+    private final long id = SERIES_IDS.incrementAndGet(); // Tells cached runs of this series from runs of a replaced one
+
+    // Hot samples, newest data, uncompressed in a ring buffer
+    private long[] timestamps;
+    private double[] values;
+    private int head; // Physical index of the oldest hot sample
+    private int size;
+    private double hotMin = Double.POSITIVE_INFINITY; // Bounds of the hot values, possibly wider; NaN if one is NaN
+    private double hotMax = Double.NEGATIVE_INFINITY;
+    private long newestSeen = Long.MIN_VALUE; // Newest timestamp ever added, even if dropped since
+
+    // Sealed samples, older than every hot sample, oldest chunk first
+    private final SealedChunks sealed = new SealedChunks();
+    private int rawChunks; // Sealed chunks that are not compressed
+    private int sealedSkip; // Leading samples of the first chunk dropped by retention
+    private int sealedSize; // Samples in sealed chunks, not counting sealedSkip
+    private long sealedBytes;
+
+    private final TailCache tail = new TailCache();
+    private RecentKeyFilter recentKeys; // Null unless deduplication is enabled
+    private RollupSeries[] rollups; // One per RollupResolution, or null if rollups are disabled
+
+    // Change counters for QueryCache runs
+    private long appends; // Samples added at the newest end
+    private long rewrites; // Samples merged in before the newest one
+    private long droppedThrough = Long.MIN_VALUE; // At least the newest timestamp dropped by retention
+
+    private long loggedThrough; // Write-ahead log sequence number of the newest logged sample, 0 if none
+
+    /**
+     * Creates an empty series for the given record type.
+     *
+     * @param typeCode The registry code of the record type stored in this series.
+     * @param settings The storage settings this series follows.
+     * @param zone     The entry of the zone summary this series widens as it accepts samples.
+     */
+    TimeSeries(int typeCode, SeriesSettings settings, ZoneSummary.Slot zone) {
+        this.typeCode = typeCode;
+        this.recordType = RecordTypeRegistry.labelOf(typeCode);
+        this.settings = settings;
+        this.zone = zone;
+        this.timestamps = new long[INITIAL_CAPACITY];
+        this.values = new double[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds a sample, keeping the series sorted by timestamp.
+     * In-order samples are appended in O(1). A sample older than the newest
+     * hot one is merged in after any samples with the same timestamp, shifting
+     * the newer samples one slot to the right. A sample older than the newest
+     * sealed one is merged by decoding and re-encoding the chunk it falls into.
+     * A sample older than the watermark (see getWatermark) is dropped instead,
+     * and so is a repeat of a recent sample if deduplication is enabled.
+     *
+     * Afterwards the retention limits are applied: the oldest samples are
+     * dropped first, so a late sample older than everything kept after
+     * retention dropped samples is dropped too, and counted as dropped.
+     *
+     * @param timestamp When the measurement was taken.
+     * @param value     The value of the measurement.
+     * @return false if the sample was dropped, as older than the watermark or
+     *         than everything retention kept, or as a duplicate
+     */
+    boolean add(long timestamp, double value) {
+        return add(timestamp, value, null, 0);
+    }
+
+    /**
+     * Adds a sample as add does and, if it is accepted, appends it to the
+     * write-ahead log before the lock is released. The log then holds the
+     * samples of this series in the order they were added, and a copy of
+     * the series knows which logged samples it holds (see copyAll). The
+     * caller commits the log (see WriteAheadLog.commit) after this returns.
+     *
+     * @param timestamp When the measurement was taken.
+     * @param value     The value of the measurement.
+     * @param log       The log to append to, or null.
+     * @param patientId The ID of the patient that owns this series, for the log.
+     * @return false if the sample was dropped, as older than the watermark or as a duplicate
+     */
+    boolean add(long timestamp, double value, WriteAheadLog log, int patientId) {
+        long stamp = lock.writeLock();
+        try {
+            boolean accepted = insert(timestamp, value, true);
+            if (accepted && log != null) {
+                loggedThrough = log.append(patientId, typeCode, timestamp, value);
+            }
+            applySettings();
+            return accepted;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds many samples under one acquisition of the lock. Each sample is
+     * merged in as by add, so the input does not have to be sorted, but
+     * sorted input is appended in O(1) per sample. The retention limits
+     * are applied once, after the last sample.
+     *
+     * The accepted samples are moved to the front of the given range, in the
+     * order they were added, so the caller can pass on exactly those.
+     *
+     * @param sampleTimestamps The sample timestamps.
+     * @param sampleValues     The sample values.
+     * @param offset           The index of the first sample to add.
+     * @param count            The number of samples to add.
+     * @return the number of samples accepted, now at [offset, offset + accepted)
+     */
+    int addAll(long[] sampleTimestamps, double[] sampleValues, int offset, int count) {
+        return addAll(sampleTimestamps, sampleValues, offset, count, null, 0);
+    }
+
+    /**
+     * Adds many samples as addAll does and appends the accepted ones to the
+     * write-ahead log before the lock is released, like add with a log.
+     *
+     * @param sampleTimestamps The sample timestamps.
+     * @param sampleValues     The sample values.
+     * @param offset           The index of the first sample to add.
+     * @param count            The number of samples to add.
+     * @param log              The log to append to, or null.
+     * @param patientId        The ID of the patient that owns this series, for the log.
+     * @return the number of samples accepted, now at [offset, offset + accepted)
+     */
+    int addAll(long[] sampleTimestamps, double[] sampleValues, int offset, int count, WriteAheadLog log,
+            int patientId) {
+        long stamp = lock.writeLock();
+        try {
+            int accepted = 0;
+            for (int i = offset; i < offset + count; i++) {
+                if (insert(sampleTimestamps[i], sampleValues[i], true)) {
+                    sampleTimestamps[offset + accepted] = sampleTimestamps[i];
+                    sampleValues[offset + accepted] = sampleValues[i];
+                    accepted++;
+                }
+            }
+            if (accepted > 0 && log != null) {
+                loggedThrough = log.appendAll(patientId, typeCode, sampleTimestamps, sampleValues, offset, accepted);
+            }
+            applySettings();
+            return accepted;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds samples loaded from a snapshot, as addAll does, and records the
+     * write-ahead log sequence number the snapshot copy of this series was
+     * taken at, so replaying the log skips the samples loaded here.
+     *
+     * @param sampleTimestamps The sample timestamps.
+     * @param sampleValues     The sample values.
+     * @param count            The number of samples to add, from index 0.
+     * @param logSequence      The sequence number stored with the samples.
+     */
+    void load(long[] sampleTimestamps, double[] sampleValues, int count, long logSequence) {
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < count; i++) {
+                insert(sampleTimestamps[i], sampleValues[i], true);
+            }
+            loggedThrough = Math.max(loggedThrough, logSequence);
+            applySettings();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds a sample replayed from the write-ahead log, unless the series
+     * already holds it: a sample with a sequence number up to the one
+     * recorded for this series came with a loaded snapshot. The sample was
+     * accepted when it was logged, so the watermark and duplicate checks are
+     * skipped.
+     *
+     * @param timestamp   When the measurement was taken.
+     * @param value       The value of the measurement.
+     * @param logSequence The sequence number of the sample in the log.
+     * @return true if the sample was added
+     */
+    boolean restore(long timestamp, double value, long logSequence) {
+        long stamp = lock.writeLock();
+        try {
+            if (logSequence <= loggedThrough) {
+                return false;
+            }
+            boolean added = insert(timestamp, value, false);
+            loggedThrough = logSequence;
+            applySettings();
+            return added;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the write-ahead log sequence number of the newest sample this
+     * series has logged, restored or loaded.
+     *
+     * @return the sequence number, or 0 if there is none
+     */
+    long loggedThrough() {
+        long stamp = lock.readLock();
+        try {
+            return loggedThrough;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Adds one sample without applying the settings; must be called while holding the write lock.
+    // Returns false if the sample was rejected. Only samples that retention would drop as older than everything
+    // kept are rejected when admit is false, and then nothing is counted.
+    private boolean insert(long timestamp, double value, boolean admit) {
+        if (settings.isDeduplicationEnabled()) {
+            if (recentKeys == null) {
+                recentKeys = new RecentKeyFilter();
+            }
+            if (!recentKeys.add(timestamp, value) && admit) {
+                settings.sampleDuplicated();
+                return false;
+            }
+        } else {
+            recentKeys = null;
+        }
+        boolean late = timestamp < newestSeen;
+        if (late && admit && timestamp < watermark()) {
+            settings.sampleDropped();
+            return false;
+        }
+        boolean stored = sealed.isEmpty() || timestamp >= sealed.last().getLastTimestamp()
+                ? addHot(timestamp, value) : addSealed(timestamp, value);
+        if (!stored) {
+            if (admit) {
+                settings.sampleDropped();
+            }
+            return false;
+        }
+        if (late) {
+            if (admit) {
+                settings.sampleLate();
+            }
+            rewrites++;
+        } else {
+            newestSeen = timestamp;
+            appends++;
+        }
+        tail.add(timestamp, value);
+        if (rollups != null) {
+            for (RollupSeries rollup : rollups) {
+                rollup.visit(timestamp, value);
+            }
+        }
+        zone.widen(timestamp, value);
+        return true;
+    }
+
+    /**
+     * Applies the current settings to samples that are already stored:
+     * drops samples over the retention limits and compresses sealed samples
+     * if compression is enabled. Writes do this as they go; this is for series
+     * that are not being written to when the settings change.
+     */
+    void maintain() {
+        long stamp = lock.writeLock();
+        try {
+            applySettings();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Returns false, storing nothing, if nothing is sealed and retention would drop the sample right away
+    private boolean addHot(long timestamp, double value) {
+        boolean oldest = sealed.isEmpty() && size > 0 && timestamp < timestampAt(0);
+        if (oldest && (timestamp < droppedThrough || atSampleLimit())) {
+            return false; // Older than everything kept
+        }
+        if (size == timestamps.length) {
+            int grown = Math.max(size + 1, timestamps.length + (timestamps.length >> 1));
+            long room = sealed.isEmpty() ? (sampleBytesLimit() - sealedBytes) / SeriesSettings.BYTES_PER_SAMPLE
+                    : Long.MAX_VALUE; // Sealed chunks are dropped first, by applySettings
+            if (size >= room && oldest) {
+                return false; // It would be overwritten first
+            } else if (size >= room) {
+                dropOldestHot(1); // The ring buffer uses up the memory budget: overwrite the oldest sample
+            } else {
+                resize((int) Math.min(grown, room));
+            }
+        }
+        if (size == 0 || timestamp >= timestampAt(size - 1)) {
+            int slot = physical(size);
+            timestamps[slot] = timestamp;
+            values[slot] = value;
+        } else {
+            // Out-of-order sample: merge it into its sorted position
+            int index = upperBound(timestamp);
+            for (int i = size; i > index; i--) {
+                int to = physical(i);
+                int from = physical(i - 1);
+                timestamps[to] = timestamps[from];
+                values[to] = values[from];
+            }
+            int slot = physical(index);
+            timestamps[slot] = timestamp;
+            values[slot] = value;
+        }
+        size++;
+        hotMin = Math.min(hotMin, value); // Math.min and max keep NaN
+        hotMax = Math.max(hotMax, value);
+        return true;
+    }
+
+    // Merges a late sample into the sealed chunk covering its timestamp; returns false, storing nothing, if
+    // retention dropped that part of the chunk or would drop the sample right away
+    private boolean addSealed(long timestamp, double value) {
+        int chunkIndex = sealed.firstEndingAfter(timestamp);
+        Chunk chunk = sealed.get(chunkIndex);
+        int count = chunk.size();
+        long[] chunkTimestamps = new long[count + 1];
+        double[] chunkValues = new double[count + 1];
+        chunk.decode(chunkTimestamps, chunkValues);
+
+        int index = count;
+        while (index > 0 && chunkTimestamps[index - 1] > timestamp) {
+            chunkTimestamps[index] = chunkTimestamps[index - 1];
+            chunkValues[index] = chunkValues[index - 1];
+            index--;
+        }
+        if (chunkIndex == 0 && (index < sealedSkip || index == sealedSkip && atSampleLimit())) {
+            return false; // Older than everything kept
+        }
+        chunkTimestamps[index] = timestamp;
+        chunkValues[index] = value;
+
+        Chunk merged = newChunk(chunkTimestamps, chunkValues, 0, count + 1);
+        if (chunk instanceof RawChunk) {
+            rawChunks--;
+        }
+        sealed.set(chunkIndex, merged);
+        sealedBytes += merged.memoryBytes() - chunk.memoryBytes();
+        sealedSize++;
+        return true;
+    }
+
+    private void applySettings() {
+        if (settings.isRollupsEnabled() && rollups == null) {
+            // Build the rollups from the samples stored so far
+            RollupResolution[] resolutions = RollupResolution.values();
+            rollups = new RollupSeries[resolutions.length];
+            for (int i = 0; i < resolutions.length; i++) {
+                rollups[i] = new RollupSeries(resolutions[i], resolutions[i].getMaxBuckets());
+                scan(Long.MIN_VALUE, Long.MAX_VALUE, rollups[i]);
+            }
+        } else if (!settings.isRollupsEnabled()) {
+            rollups = null;
+        }
+
+        long sealBelow = settings.getLatenessMillis() > 0 ? watermark() : Long.MAX_VALUE;
+        boolean sealedAny = false;
+        while (size >= 2 * CHUNK_SAMPLES) {
+            int length = chunkLength();
+            if (timestampAt(length - 1) >= sealBelow && size < MAX_REORDER_SAMPLES) {
+                break; // Late samples may still arrive for this chunk
+            }
+            sealOldest(length);
+            sealedAny = true;
+        }
+        if (sealedAny) {
+            narrowHotBounds();
+        }
+        if (settings.isCompressionEnabled() && rawChunks > 0) {
+            compressSealed();
+        }
+
+        int maxSamples = settings.maxSamplesPerSeries();
+        if (maxSamples > 0 && sealedSize + size > maxSamples) {
+            dropOldest(sealedSize + size - maxSamples);
+        }
+
+        long maxAge = settings.maxAgeMillis();
+        if (maxAge > 0 && sealedSize + size > 0) {
+            long cutoff = newestTimestamp() - maxAge;
+            while (!sealed.isEmpty() && sealed.get(0).getLastTimestamp() < cutoff) {
+                dropFirstChunk();
+            }
+            // Hot samples are newer than every sealed one, so only trim them once nothing is sealed
+            if (sealed.isEmpty()) {
+                dropOldestHot(lowerBound(cutoff));
+            }
+        }
+
+        if (settings.maxBytesPerSeries() > 0) {
+            // Counts the same bytes as memoryBytes: the ring buffer capacity, not just the hot samples
+            long limit = sampleBytesLimit();
+            while (!sealed.isEmpty()
+                    && sealedBytes + (long) Math.max(1, size) * SeriesSettings.BYTES_PER_SAMPLE > limit) {
+                dropFirstChunk();
+            }
+            long hotLimit = Math.max(1, (limit - sealedBytes) / SeriesSettings.BYTES_PER_SAMPLE);
+            if (size > hotLimit) {
+                dropOldestHot(size - (int) hotLimit);
+            }
+            if (timestamps.length > hotLimit) {
+                resize((int) hotLimit);
+            }
+        }
+
+        // Give back capacity once the hot samples only use a quarter of it
+        if (timestamps.length > INITIAL_CAPACITY && size * 4 < timestamps.length) {
+            resize(Math.max(INITIAL_CAPACITY, size * 2));
+        }
+    }
+
+    // Tells whether the series holds as many samples as the count limit allows, so a new oldest one is dropped
+    private boolean atSampleLimit() {
+        int maxSamples = settings.maxSamplesPerSeries();
+        return maxSamples > 0 && sealedSize + size >= maxSamples;
+    }
+
+    // Bytes the memory budget leaves for the sealed chunks and the ring buffer, at least one sample
+    private long sampleBytesLimit() {
+        long maxBytes = settings.maxBytesPerSeries();
+        if (maxBytes == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(SeriesSettings.BYTES_PER_SAMPLE, maxBytes - fixedBytes());
+    }
+
+    // Bytes that do not depend on the number of samples kept: the tail cache, the duplicate filter and the rollups
+    private long fixedBytes() {
+        long bytes = tail.memoryBytes();
+        if (recentKeys != null) {
+            bytes += recentKeys.memoryBytes();
+        }
+        if (rollups != null) {
+            for (RollupSeries rollup : rollups) {
+                bytes += rollup.memoryBytes();
+            }
+        }
+        return bytes;
+    }
+
+    // Number of oldest hot samples that form the next chunk: up to CHUNK_SAMPLES, ending at a partition boundary
+    private int chunkLength() {
+        long boundary = settings.partitionStart(timestampAt(CHUNK_SAMPLES));
+        if (timestampAt(0) >= boundary) {
+            return CHUNK_SAMPLES; // One partition holds more than a chunk
+        }
+        return lowerBound(boundary);
+    }
+
+    // Moves the oldest hot samples into a new sealed chunk
+    private void sealOldest(int count) {
+        Chunk chunk;
+        if (head + count <= timestamps.length) {
+            chunk = newChunk(timestamps, values, head, count);
+        } else {
+            long[] chunkTimestamps = new long[count];
+            double[] chunkValues = new double[count];
+            for (int i = 0; i < count; i++) {
+                int slot = physical(i);
+                chunkTimestamps[i] = timestamps[slot];
+                chunkValues[i] = values[slot];
+            }
+            chunk = newChunk(chunkTimestamps, chunkValues, 0, count);
+        }
+        sealed.add(chunk);
+        sealedSize += count;
+        sealedBytes += chunk.memoryBytes();
+        dropOldestHot(count);
+    }
+
+    private Chunk newChunk(long[] chunkTimestamps, double[] chunkValues, int offset, int count) {
+        if (settings.isCompressionEnabled()) {
+            return new CompressedChunk(chunkTimestamps, chunkValues, offset, count);
+        }
+        rawChunks++;
+        return new RawChunk(chunkTimestamps, chunkValues, offset, count);
+    }
+
+    // Re-encodes the chunks sealed while compression was disabled
+    private void compressSealed() {
+        for (int c = 0; c < sealed.size(); c++) {
+            Chunk chunk = sealed.get(c);
+            if (chunk instanceof RawChunk) {
+                long[] chunkTimestamps = new long[chunk.size()];
+                double[] chunkValues = new double[chunk.size()];
+                chunk.decode(chunkTimestamps, chunkValues);
+                Chunk compressed = new CompressedChunk(chunkTimestamps, chunkValues, 0, chunk.size());
+                sealed.set(c, compressed);
+                sealedBytes += compressed.memoryBytes() - chunk.memoryBytes();
+            }
+        }
+        rawChunks = 0;
+    }
+
+    // Drops the oldest samples, sealed ones first
+    private void dropOldest(int count) {
+        while (count > 0 && !sealed.isEmpty()) {
+            int visible = sealed.get(0).size() - sealedSkip;
+            if (count >= visible) {
+                dropFirstChunk();
+                count -= visible;
+            } else {
+                droppedThrough = Math.max(droppedThrough, sealed.get(0).getLastTimestamp());
+                sealedSkip += count;
+                sealedSize -= count;
+                count = 0;
+            }
+        }
+        dropOldestHot(count);
+    }
+
+    private void dropFirstChunk() {
+        Chunk first = sealed.removeFirst();
+        droppedThrough = Math.max(droppedThrough, first.getLastTimestamp());
+        if (first instanceof RawChunk) {
+            rawChunks--;
+        }
+        sealedSize -= first.size() - sealedSkip;
+        sealedBytes -= first.memoryBytes();
+        sealedSkip = 0;
+    }
+
+    // Forgets the oldest hot samples by moving the head; nothing is copied
+    private void dropOldestHot(int count) {
+        if (count <= 0) {
+            return;
+        }
+        droppedThrough = Math.max(droppedThrough, timestampAt(count - 1));
+        head = physical(count);
+        size -= count;
+        if (size == 0) {
+            head = 0;
+            hotMin = Double.POSITIVE_INFINITY;
+            hotMax = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    // Recomputes the bounds of the hot values after sealing; other drops leave them wider than needed
+    private void narrowHotBounds() {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            double value = values[physical(i)];
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        hotMin = min;
+        hotMax = max;
+    }
+
+    // Copies the hot samples into arrays of a new capacity, oldest first
+    private void resize(int newCapacity) {
+        long[] newTimestamps = new long[newCapacity];
+        double[] newValues = new double[newCapacity];
+        int firstPart = Math.min(size, timestamps.length - head);
+        System.arraycopy(timestamps, head, newTimestamps, 0, firstPart);
+        System.arraycopy(values, head, newValues, 0, firstPart);
+        System.arraycopy(timestamps, 0, newTimestamps, firstPart, size - firstPart);
+        System.arraycopy(values, 0, newValues, firstPart, size - firstPart);
+        timestamps = newTimestamps;
+        values = newValues;
+        head = 0;
+    }
+
+    // Maps a position in timestamp order to its slot in the ring buffer
+    private int physical(int index) {
+        int slot = head + index;
+        return slot < timestamps.length ? slot : slot - timestamps.length;
+    }
+
+    private long timestampAt(int index) {
+        return timestamps[physical(index)];
+    }
+
+    private long newestTimestamp() {
+        return size > 0 ? timestampAt(size - 1) : sealed.last().getLastTimestamp();
+    }
+
+    // Samples older than this are dropped; Long.MIN_VALUE without a lateness bound
+    private long watermark() {
+        long lateness = settings.getLatenessMillis();
+        if (lateness <= 0 || newestSeen == Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        long watermark = newestSeen - lateness;
+        return watermark > newestSeen ? Long.MIN_VALUE : watermark; // Clamp on overflow
+    }
+
+    /**
+     * Returns the watermark of this series: the newest timestamp added minus
+     * the lateness bound. Samples older than the watermark are dropped.
+     *
+     * @return the watermark, or Long.MIN_VALUE if there is no lateness bound or no sample yet
+     */
+    long getWatermark() {
+        long stamp = lock.readLock();
+        try {
+            return watermark();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Sealed chunks are expired whole, so a partly expired chunk still holds samples older than this
+    private long ageFloor() {
+        long maxAge = settings.maxAgeMillis();
+        return maxAge > 0 && sealedSize + size > 0 ? newestTimestamp() - maxAge : Long.MIN_VALUE;
+    }
+
+    /**
+     * Visits every sample with a timestamp in [startTime, endTime], in
+     * timestamp order. Sealed chunks outside the range are skipped and the
+     * hot range is located with binary search, so the cost is O(log n + k)
+     * for k matching samples plus the decoding of overlapping chunks.
+     * The samples are taken from a consistent copy (see copyRange) and the
+     * visitor runs without holding the lock, so a slow visitor never holds
+     * up writers and may even write to this series.
+     *
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param visitor   The callback that receives each sample.
+     */
+    void forEach(long startTime, long endTime, RecordVisitor visitor) {
+        if (startTime > endTime) {
+            return;
+        }
+        visit(copyRange(startTime, endTime), endTime, visitor);
+    }
+
+    /**
+     * Visits every sample, as forEach does, and tells which logged samples
+     * the copy holds, for snapshots.
+     *
+     * @param visitor The callback that receives each sample.
+     * @return the write-ahead log sequence number of the newest logged sample
+     *         when the copy was taken; the copy holds every logged sample up
+     *         to it that retention has not dropped
+     */
+    long copyAll(RecordVisitor visitor) {
+        RangeCopy range = copyRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        visit(range, Long.MAX_VALUE, visitor);
+        return range.loggedThrough;
+    }
+
+    private static void visit(RangeCopy range, long endTime, RecordVisitor visitor) {
+        for (int c = 0; c < range.chunks.length; c++) {
+            range.chunks[c].forEach(c == 0 ? range.firstSkip : 0, range.start, endTime, visitor);
+        }
+        for (int i = 0; i < range.hotCount; i++) {
+            visitor.visit(range.hotTimestamps[i], range.hotValues[i]);
+        }
+    }
+
+    /**
+     * Visits the samples in [startTime, endTime] whose value matches the
+     * predicate, in timestamp order. Sealed chunks whose minimum and maximum
+     * rule out a match are skipped without decoding, chunks that match as a
+     * whole are visited without testing, and the other samples are tested
+     * over primitive columns (see ValuePredicate.select). Like forEach, the
+     * visitor runs without holding the lock.
+     *
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param predicate The condition on the values.
+     * @param visitor   The callback that receives each matching sample.
+     */
+    void forEachMatching(long startTime, long endTime, ValuePredicate predicate, RecordVisitor visitor) {
+        if (startTime > endTime) {
+            return;
+        }
+        RangeCopy range = copyRange(startTime, endTime);
+        long[] chunkTimestamps = new long[0];
+        double[] chunkValues = new double[0];
+        int[] matches = new int[Math.max(CHUNK_SAMPLES, range.hotCount)];
+        for (int c = 0; c < range.chunks.length; c++) {
+            Chunk chunk = range.chunks[c];
+            if (predicate.excludes(chunk.getMin(), chunk.getMax())) {
+                continue;
+            }
+            int skip = c == 0 ? range.firstSkip : 0;
+            if (predicate.includesAll(chunk.getMin(), chunk.getMax())) {
+                chunk.forEach(skip, range.start, endTime, visitor);
+                continue;
+            }
+            if (chunkTimestamps.length < chunk.size()) {
+                chunkTimestamps = new long[Math.max(chunk.size(), CHUNK_SAMPLES)];
+                chunkValues = new double[chunkTimestamps.length];
+                matches = new int[Math.max(chunkTimestamps.length, matches.length)];
+            }
+            chunk.decode(chunkTimestamps, chunkValues);
+            int from = skip;
+            int to = chunk.size();
+            while (from < to && chunkTimestamps[from] < range.start) {
+                from++;
+            }
+            while (to > from && chunkTimestamps[to - 1] > endTime) {
+                to--;
+            }
+            int count = predicate.select(chunkValues, from, to, matches);
+            for (int i = 0; i < count; i++) {
+                visitor.visit(chunkTimestamps[matches[i]], chunkValues[matches[i]]);
+            }
+        }
+        int count = predicate.select(range.hotValues, 0, range.hotCount, matches);
+        for (int i = 0; i < count; i++) {
+            visitor.visit(range.hotTimestamps[matches[i]], range.hotValues[matches[i]]);
+        }
+    }
+
+    /**
+     * Tells whether any sample in [startTime, endTime] matches a predicate.
+     * The chunk index is used as a zone map: runs of sealed chunks whose min
+     * and max rule out a match are skipped in O(log n), and a chunk inside
+     * the range whose min or max matches answers without being decoded. Only
+     * candidate chunks at the edges of the range, or whose extremes do not
+     * decide it, are read, and the scan stops at the first match. The hot
+     * samples keep running bounds too, so they are only scanned when their
+     * bounds neither rule out nor guarantee a match.
+     *
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param predicate The condition on the values.
+     * @return true if a sample in range matches
+     */
+    boolean anyMatch(long startTime, long endTime, ValuePredicate predicate) {
+        if (startTime > endTime) {
+            return false;
+        }
+        long stamp = lock.readLock();
+        try {
+            long start = Math.max(startTime, ageFloor());
+            int to = endTime == Long.MAX_VALUE ? sealed.size() : sealed.firstStartingAtOrAfter(endTime + 1);
+            for (int c = sealed.firstCandidate(firstChunkEndingAtOrAfter(start), to, predicate); c < to;
+                    c = sealed.firstCandidate(c + 1, to, predicate)) {
+                Chunk chunk = sealed.get(c);
+                int skip = c == 0 ? sealedSkip : 0;
+                boolean inside = skip == 0 && chunk.getFirstTimestamp() >= start && chunk.getLastTimestamp() <= endTime;
+                if (inside && (predicate.test(chunk.getMin()) || predicate.test(chunk.getMax()))) {
+                    return true;
+                }
+                boolean[] found = new boolean[1];
+                chunk.forEach(skip, start, endTime, (timestamp, value) -> found[0] |= predicate.test(value));
+                if (found[0]) {
+                    return true;
+                }
+            }
+            if (size == 0 || predicate.excludes(hotMin, hotMax)) {
+                return false;
+            }
+            int from = lowerBound(start);
+            int end = upperBound(endTime);
+            if (predicate.includesAll(hotMin, hotMax)) {
+                return from < end;
+            }
+            for (int i = from; i < end; i++) {
+                if (predicate.test(values[physical(i)])) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Takes a consistent copy of the samples in [startTime, endTime]: the
+     * sealed chunks that overlap the range, which are immutable and shared,
+     * and a copy of the matching hot samples. The copy reflects the series
+     * after some complete write, never a write in progress.
+     *
+     * When the range starts after the oldest hot sample, the hot samples are
+     * first copied under an optimistic read, without taking the lock: every
+     * write bumps the lock's stamp, so a copy that raced with a writer fails
+     * validation and is retried under the read lock. Index arithmetic in the
+     * optimistic copy is bounds-checked against the arrays it read, so a torn
+     * read can only fail validation, never throw.
+     */
+    private RangeCopy copyRange(long startTime, long endTime) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            RangeCopy range = copyHotOptimistically(startTime, endTime);
+            if (range != null && lock.validate(stamp)) {
+                return range;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            long start = Math.max(startTime, ageFloor());
+            int from = firstChunkEndingAtOrAfter(start);
+            int to = endTime == Long.MAX_VALUE ? sealed.size() : sealed.firstStartingAtOrAfter(endTime + 1);
+            Chunk[] chunks = new Chunk[Math.max(0, to - from)];
+            for (int c = from; c < to; c++) {
+                chunks[c - from] = sealed.get(c);
+            }
+            int first = lowerBound(start);
+            int count = Math.max(0, upperBound(endTime) - first);
+            long[] hotTimestamps = new long[count];
+            double[] hotValues = new double[count];
+            for (int i = 0; i < count; i++) {
+                int slot = physical(first + i);
+                hotTimestamps[i] = timestamps[slot];
+                hotValues[i] = values[slot];
+            }
+            return new RangeCopy(chunks, from == 0 ? sealedSkip : 0, start, hotTimestamps, hotValues, count,
+                    appends, rewrites, droppedThrough, loggedThrough);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Copies a range that lies within the hot samples without the lock; null if the range is not hot-only
+    private RangeCopy copyHotOptimistically(long startTime, long endTime) {
+        long[] ringTimestamps = timestamps;
+        double[] ringValues = values;
+        int ringHead = head;
+        int ringSize = size;
+        int length = ringTimestamps.length;
+        if (ringSize <= 0 || ringSize > length || ringHead < 0 || ringHead >= length
+                || ringValues.length != length) {
+            return null;
+        }
+        long oldest = ringTimestamps[ringHead];
+        long newest = ringTimestamps[slot(ringHead, ringSize - 1, length)];
+        long maxAge = settings.maxAgeMillis();
+        long start = maxAge > 0 ? Math.max(startTime, newest - maxAge) : startTime;
+        if (start <= oldest) {
+            return null; // Sealed samples may fall in the range
+        }
+        int low = 0;
+        int high = ringSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ringTimestamps[slot(ringHead, mid, length)] < start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int first = low;
+        high = ringSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ringTimestamps[slot(ringHead, mid, length)] <= endTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int count = low - first;
+        long[] hotTimestamps = new long[count];
+        double[] hotValues = new double[count];
+        for (int i = 0; i < count; i++) {
+            int slot = slot(ringHead, first + i, length);
+            hotTimestamps[i] = ringTimestamps[slot];
+            hotValues[i] = ringValues[slot];
+        }
+        return new RangeCopy(new Chunk[0], 0, start, hotTimestamps, hotValues, count, appends, rewrites,
+                droppedThrough, loggedThrough);
+    }
+
+    // Maps a position to its slot in a ring buffer of the given length and head; both are in range
+    private static int slot(int ringHead, int index, int length) {
+        int slot = ringHead + index;
+        return slot < length ? slot : slot - length;
+    }
+
+    // Visits the samples in [startTime, endTime]; must be called while holding the lock
+    private void scan(long startTime, long endTime, RecordVisitor visitor) {
+        long start = Math.max(startTime, ageFloor());
+        for (int c = firstChunkEndingAtOrAfter(start); c < sealed.size(); c++) {
+            Chunk chunk = sealed.get(c);
+            if (chunk.getFirstTimestamp() > endTime) {
+                return;
+            }
+            if (chunk.getLastTimestamp() >= start) {
+                chunk.forEach(c == 0 ? sealedSkip : 0, start, endTime, visitor);
+            }
+        }
+        int end = upperBound(endTime);
+        for (int i = lowerBound(start); i < end; i++) {
+            int slot = physical(i);
+            visitor.visit(timestamps[slot], values[slot]);
+        }
+    }
+
+    // Index of the first sealed chunk that may hold samples at or after the given time
+    private int firstChunkEndingAtOrAfter(long timestamp) {
+        return timestamp == Long.MIN_VALUE ? 0 : sealed.firstEndingAfter(timestamp - 1);
+    }
+
+    /**
+     * Returns the value of the newest sample. Reads the tail cache under an
+     * optimistic read, so it only waits for the lock while a writer of this
+     * series is active.
+     *
+     * @return the newest value, or NaN if the series is empty
+     */
+    double latest() {
+        long stamp = lock.tryOptimisticRead();
+        double value = sealedSize + size > 0 ? tail.valueFromEnd(0) : Double.NaN;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = sealedSize + size > 0 ? tail.valueFromEnd(0) : Double.NaN;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Copies the newest n samples into the given arrays, oldest first.
+     * Up to TailCache.CAPACITY samples come from the tail cache without
+     * taking the lock or allocating; larger requests read the stored samples
+     * from the newest end.
+     *
+     * @param n             The number of samples wanted.
+     * @param outTimestamps The array that receives the timestamps; at least n long.
+     * @param outValues     The array that receives the values; at least n long.
+     * @return the number of samples copied, at most n
+     */
+    int lastN(int n, long[] outTimestamps, double[] outValues) {
+        long stamp = lock.tryOptimisticRead();
+        int count = cachedTail(n, outTimestamps, outValues);
+        if (lock.validate(stamp) && count >= 0) {
+            return count;
+        }
+        stamp = lock.readLock();
+        try {
+            count = cachedTail(n, outTimestamps, outValues);
+            return count >= 0 ? count : scanTail(n, outTimestamps, outValues);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Copies the newest n samples from the tail cache; returns -1 if it does not hold enough of them
+    private int cachedTail(int n, long[] outTimestamps, double[] outValues) {
+        int stored = sealedSize + size;
+        int cached = tail.size();
+        if (n > cached && cached < stored) {
+            return -1;
+        }
+        // Retention may keep fewer samples than the cache holds
+        int count = Math.min(n, Math.min(cached, stored));
+        long maxAge = settings.maxAgeMillis();
+        if (maxAge > 0 && count > 0) {
+            long floor = tail.timestampFromEnd(0) - maxAge;
+            while (count > 0 && tail.timestampFromEnd(count - 1) < floor) {
+                count--;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            outTimestamps[count - 1 - i] = tail.timestampFromEnd(i);
+            outValues[count - 1 - i] = tail.valueFromEnd(i);
+        }
+        return count;
+    }
+
+    // Copies the newest n stored samples, walking back from the hot samples through the sealed chunks
+    private int scanTail(int n, long[] outTimestamps, double[] outValues) {
+        long floor = ageFloor();
+        int filled = 0;
+        for (int i = size - 1; i >= 0 && filled < n && timestampAt(i) >= floor; i--) {
+            int slot = physical(i);
+            outTimestamps[n - 1 - filled] = timestamps[slot];
+            outValues[n - 1 - filled] = values[slot];
+            filled++;
+        }
+        for (int c = sealed.size() - 1; c >= 0 && filled < n; c--) {
+            Chunk chunk = sealed.get(c);
+            long[] chunkTimestamps = new long[chunk.size()];
+            double[] chunkValues = new double[chunk.size()];
+            chunk.decode(chunkTimestamps, chunkValues);
+            int skip = c == 0 ? sealedSkip : 0;
+            for (int j = chunk.size() - 1; j >= skip && filled < n; j--) {
+                if (chunkTimestamps[j] < floor) {
+                    c = 0; // Everything older has expired
+                    break;
+                }
+                outTimestamps[n - 1 - filled] = chunkTimestamps[j];
+                outValues[n - 1 - filled] = chunkValues[j];
+                filled++;
+            }
+        }
+        System.arraycopy(outTimestamps, n - filled, outTimestamps, 0, filled);
+        System.arraycopy(outValues, n - filled, outValues, 0, filled);
+        return filled;
+    }
+
+    /**
+     * Aggregates the samples in [startTime, endTime]. Sealed chunks that lie
+     * entirely inside the range contribute their precomputed summaries, so
+     * only the samples of at most two edge chunks and the hot samples in
+     * range are read: O(log n + CHUNK_SAMPLES + hot samples in range).
+     *
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @return an aggregator holding the summary of the samples in range
+     */
+    Aggregator aggregate(long startTime, long endTime) {
+        Aggregator aggregator = new Aggregator();
+        long stamp = lock.readLock();
+        try {
+            long start = Math.max(startTime, ageFloor());
+            if (start > endTime) {
+                return aggregator;
+            }
+            int from = firstChunkEndingAtOrAfter(start);
+            int to = sealed.firstEndingAfter(endTime); // Chunks before this end inside the range
+            if (from < to && (sealed.get(from).getFirstTimestamp() < start || (from == 0 && sealedSkip > 0))) {
+                sealed.get(from).forEach(from == 0 ? sealedSkip : 0, start, endTime, aggregator);
+                from++;
+            }
+            sealed.summarize(from, to, aggregator);
+            if (to < sealed.size() && sealed.get(to).getFirstTimestamp() <= endTime) {
+                sealed.get(to).forEach(to == 0 ? sealedSkip : 0, start, endTime, aggregator);
+            }
+            int end = upperBound(endTime);
+            for (int i = lowerBound(start); i < end; i++) {
+                int slot = physical(i);
+                aggregator.visit(timestamps[slot], values[slot]);
+            }
+            return aggregator;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Computes a percentile of the values in [startTime, endTime], linearly
+     * interpolating between the two nearest ranks. The values in range are
+     * copied once and the lower rank is found by quickselect instead of a
+     * sort, so it costs O(k) expected time for k matching samples. Chunks
+     * keep no quantile sketches: those would make percentiles approximate,
+     * and this stays exact, with NaN values ranked last as Arrays.sort does.
+     *
+     * @param startTime  The start of the time range.
+     * @param endTime    The end of the time range.
+     * @param percentile The percentile, between 0 and 100.
+     * @return the percentile, or NaN if there are no samples in range
+     */
+    double percentile(long startTime, long endTime, double percentile) {
+        double[][] buffer = {new double[INITIAL_CAPACITY]};
+        int[] count = new int[1];
+        forEach(startTime, endTime, (timestamp, value) -> {
+            if (count[0] == buffer[0].length) {
+                buffer[0] = Arrays.copyOf(buffer[0], count[0] * 2);
+            }
+            buffer[0][count[0]++] = value;
+        });
+        if (count[0] == 0) {
+            return Double.NaN;
+        }
+        double[] values = buffer[0];
+        int numbers = 0; // NaN values are moved behind the others
+        for (int i = 0; i < count[0]; i++) {
+            if (!Double.isNaN(values[i])) {
+                swap(values, numbers++, i);
+            }
+        }
+        double rank = percentile / 100 * (count[0] - 1);
+        int lower = (int) Math.floor(rank);
+        if (lower >= numbers) {
+            return Double.NaN;
+        }
+        double lowerValue = select(values, numbers, lower);
+        double upperValue = lowerValue;
+        if (lower + 1 < count[0]) {
+            // After selection, every value behind the lower rank is at least as large
+            upperValue = lower + 1 < numbers ? Double.POSITIVE_INFINITY : Double.NaN;
+            for (int i = lower + 1; i < numbers; i++) {
+                upperValue = Math.min(upperValue, values[i]);
+            }
+        }
+        return lowerValue + (rank - lower) * (upperValue - lowerValue);
+    }
+
+    // Reorders the first count values, none NaN, so that index k holds the value of rank k, and returns it
+    private static double select(double[] values, int count, int k) {
+        int from = 0;
+        int to = count - 1;
+        while (from < to) {
+            double first = values[from];
+            double middle = values[(from + to) >>> 1];
+            double last = values[to];
+            double pivot = Math.max(Math.min(first, middle), Math.min(Math.max(first, middle), last));
+            // Three-way partition, so runs of equal values do not make it quadratic
+            int less = from;
+            int greater = to;
+            int i = from;
+            while (i <= greater) {
+                if (values[i] < pivot) {
+                    swap(values, less++, i++);
+                } else if (values[i] > pivot) {
+                    swap(values, i, greater--);
+                } else {
+                    i++;
+                }
+            }
+            if (k < less) {
+                to = less - 1;
+            } else if (k > greater) {
+                from = greater + 1;
+            } else {
+                return values[k];
+            }
+        }
+        return values[k];
+    }
+
+    private static void swap(double[] values, int i, int j) {
+        double value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    /**
+     * Summarizes the samples in [startTime, endTime] in time buckets, using
+     * the finest resolution that needs at most maxPoints buckets.
+     * Maintained rollups are used when rollups are enabled; otherwise the
+     * buckets are computed from the stored samples.
+     *
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param maxPoints The maximum number of buckets wanted.
+     * @param out       The list the buckets are added to, oldest first.
+     */
+    void collectRollups(long startTime, long endTime, int maxPoints, List<RollupPoint> out) {
+        long stamp = lock.readLock();
+        try {
+            RollupResolution[] resolutions = RollupResolution.values();
+            RollupResolution chosen = resolutions[resolutions.length - 1];
+            for (RollupResolution resolution : resolutions) {
+                if (rollups != null) {
+                    RollupSeries rollup = rollups[resolution.ordinal()];
+                    if (rollup.covers(startTime) && rollup.count(startTime, endTime) <= maxPoints) {
+                        chosen = resolution;
+                        break;
+                    }
+                } else if (estimateBuckets(startTime, endTime, resolution) <= maxPoints) {
+                    chosen = resolution;
+                    break;
+                }
+            }
+            rollup(startTime, endTime, chosen, out);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Summarizes the samples in [startTime, endTime] in time buckets of the
+     * given resolution.
+     *
+     * @param startTime  The start of the time range.
+     * @param endTime    The end of the time range.
+     * @param resolution The bucket length.
+     * @param out        The list the buckets are added to, oldest first.
+     */
+    void collectRollups(long startTime, long endTime, RollupResolution resolution, List<RollupPoint> out) {
+        long stamp = lock.readLock();
+        try {
+            rollup(startTime, endTime, resolution, out);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void rollup(long startTime, long endTime, RollupResolution resolution, List<RollupPoint> out) {
+        RollupSeries rollup = rollups != null ? rollups[resolution.ordinal()] : null;
+        if (rollup == null || !rollup.covers(startTime)) {
+            // Compute the buckets from the stored samples
+            rollup = new RollupSeries(resolution, Integer.MAX_VALUE);
+            scan(startTime, endTime, rollup);
+        }
+        rollup.collect(startTime, endTime, out);
+    }
+
+    // Upper bound on the buckets needed for the stored samples in [startTime, endTime]
+    private long estimateBuckets(long startTime, long endTime, RollupResolution resolution) {
+        if (sealedSize + size == 0) {
+            return 0;
+        }
+        long oldest = sealed.isEmpty() ? timestampAt(0) : sealed.get(0).getFirstTimestamp();
+        long from = resolution.bucketStart(Math.max(startTime, oldest));
+        long to = Math.min(endTime, newestTimestamp());
+        return from > to ? 0 : (to - from) / resolution.getMillis() + 1;
+    }
+
+    /**
+     * Creates PatientRecord views for every sample in [startTime, endTime]
+     * and adds them, in timestamp order, to the given list.
+     *
+     * @param patientId The ID of the patient that owns this series.
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param out       The list the records are added to.
+     */
+    void collect(int patientId, long startTime, long endTime, List<PatientRecord> out) {
+        if (startTime > endTime) {
+            return;
+        }
+        collect(patientId, copyRange(startTime, endTime), endTime, out);
+    }
+
+    private void collect(int patientId, RangeCopy range, long endTime, List<PatientRecord> out) {
+        Chunk[] chunks = range.chunks;
+        if (chunks.length < PARALLEL_CHUNKS) {
+            for (int c = 0; c < chunks.length; c++) {
+                chunks[c].forEach(c == 0 ? range.firstSkip : 0, range.start, endTime, (timestamp, value) ->
+                        out.add(new PatientRecord(patientId, value, recordType, timestamp)));
+            }
+        } else {
+            List<List<PatientRecord>> parts = IntStream.range(0, chunks.length).parallel().mapToObj(c -> {
+                List<PatientRecord> part = new ArrayList<>(chunks[c].size());
+                chunks[c].forEach(c == 0 ? range.firstSkip : 0, range.start, endTime, (timestamp, value) ->
+                        part.add(new PatientRecord(patientId, value, recordType, timestamp)));
+                return part;
+            }).collect(Collectors.toList());
+            for (List<PatientRecord> part : parts) {
+                out.addAll(part);
+            }
+        }
+        for (int i = 0; i < range.hotCount; i++) {
+            out.add(new PatientRecord(patientId, range.hotValues[i], recordType, range.hotTimestamps[i]));
+        }
+    }
+
+    /**
+     * Opens a cursor over the samples in [startTime, endTime]. The cursor
+     * walks a consistent copy of the range (see copyRange) and decodes one
+     * sealed chunk at a time, so a long range is read in timestamp order
+     * without copying all of it, and writers are never held up by it.
+     *
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @return a cursor positioned before the first sample
+     */
+    Cursor cursor(long startTime, long endTime) {
+        if (startTime > endTime) {
+            return new Cursor(new RangeCopy(new Chunk[0], 0, startTime, new long[0], new double[0], 0, 0, 0, 0, 0),
+                    endTime);
+        }
+        return new Cursor(copyRange(startTime, endTime), endTime);
+    }
+
+    /**
+     * Fills a cached run with the records of its time range, replacing what
+     * it held, and remembers the change counters it reflects.
+     *
+     * @param run The run to fill; its range must not be empty.
+     */
+    void fill(QueryCache.Run run) {
+        RangeCopy range = copyRange(run.startTime, run.endTime);
+        List<PatientRecord> records = new ArrayList<>(range.hotCount);
+        collect(run.patientId, range, run.endTime, records);
+        run.reset(records, id, range.appends, range.rewrites, range.droppedThrough);
+    }
+
+    /**
+     * Brings a run filled from this series up to date without copying it
+     * again: samples appended since are added to its end, and samples that
+     * expired by age are trimmed from its front. This works as long as the
+     * run missed no more than CHUNK_SAMPLES appends, no late sample was
+     * merged in, and retention dropped nothing from the run's range.
+     *
+     * @param run The cached run.
+     * @return true if the run is up to date, false if it must be filled again
+     */
+    boolean refresh(QueryCache.Run run) {
+        long stamp = lock.readLock();
+        try {
+            if (run.seriesId != id || run.rewrites != rewrites) {
+                return false;
+            }
+            run.trimBefore(ageFloor());
+            if (run.droppedThrough != droppedThrough) {
+                if (run.size() > 0 && run.firstTimestamp() <= droppedThrough) {
+                    return false;
+                }
+                run.droppedThrough = droppedThrough;
+            }
+            long added = appends - run.appends;
+            if (added > CHUNK_SAMPLES || added > sealedSize + size) {
+                return false; // Too far behind, or appended samples were dropped again
+            }
+            if (added > 0) {
+                // Nothing was merged in since, so the appended samples are the newest ones
+                int n = (int) added;
+                long[] addedTimestamps = new long[n];
+                double[] addedValues = new double[n];
+                int count = scanTail(n, addedTimestamps, addedValues);
+                for (int i = 0; i < count; i++) {
+                    if (addedTimestamps[i] >= run.startTime && addedTimestamps[i] <= run.endTime) {
+                        run.add(new PatientRecord(run.patientId, addedValues[i], recordType, addedTimestamps[i]));
+                    }
+                }
+                run.appends = appends;
+            }
+            return true;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Finds the index of the first hot sample with a timestamp of at least
+     * the given time. Must be called while holding the lock.
+     *
+     * @param timestamp The time to search for.
+     * @return the index of the first sample at or after the time, or size if there is none
+     */
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestampAt(mid) < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds the index of the first hot sample with a timestamp after the
+     * given time. Must be called while holding the lock.
+     *
+     * @param timestamp The time to search for.
+     * @return the index of the first sample after the time, or size if there is none
+     */
+    private int upperBound(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestampAt(mid) <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the registry code of the record type stored in this series.
+     *
+     * @return the record type code
+     */
+    int getTypeCode() {
+        return typeCode;
+    }
+
+    /**
+     * Returns the number of samples in this series.
+     *
+     * @return the sample count
+     */
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            int count = sealedSize + size;
+            long floor = ageFloor();
+            if (!sealed.isEmpty() && sealed.get(0).getFirstTimestamp() < floor) {
+                // Part of the first chunk has expired but is still stored
+                int[] expired = new int[1];
+                sealed.get(0).forEach(sealedSkip, Long.MIN_VALUE, floor - 1, (timestamp, value) -> expired[0]++);
+                count -= expired[0];
+            }
+            return count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the approximate heap size of the stored samples and rollups,
+     * including unused ring buffer capacity.
+     *
+     * @return the size in bytes
+     */
+    long memoryBytes() {
+        long stamp = lock.readLock();
+        try {
+            return sealedBytes + (long) timestamps.length * SeriesSettings.BYTES_PER_SAMPLE + fixedBytes();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Reads the samples of a RangeCopy one at a time, in timestamp order.
+     * Not thread-safe.
+     */
+    static final class Cursor {
+        private final RangeCopy range;
+        private final long endTime;
+        private int nextChunk; // Index of the next sealed chunk to decode, then chunks.length for the hot samples
+        private long[] bufferTimestamps; // The current chunk, or the hot samples of the range
+        private double[] bufferValues;
+        private int position;
+        private int limit;
+
+        private Cursor(RangeCopy range, long endTime) {
+            this.range = range;
+            this.endTime = endTime;
+            this.bufferTimestamps = new long[0];
+            this.bufferValues = new double[0];
+        }
+
+        /**
+         * Moves to the next sample.
+         *
+         * @return true if there is one, false once the range is exhausted
+         */
+        boolean next() {
+            position++;
+            while (position >= limit) {
+                Chunk[] chunks = range.chunks;
+                if (nextChunk > chunks.length) {
+                    return false;
+                }
+                if (nextChunk == chunks.length) {
+                    bufferTimestamps = range.hotTimestamps;
+                    bufferValues = range.hotValues;
+                    position = 0;
+                    limit = range.hotCount;
+                } else {
+                    Chunk chunk = chunks[nextChunk];
+                    if (bufferTimestamps.length < chunk.size() || bufferTimestamps == range.hotTimestamps) {
+                        bufferTimestamps = new long[Math.max(chunk.size(), CHUNK_SAMPLES)];
+                        bufferValues = new double[bufferTimestamps.length];
+                    }
+                    chunk.decode(bufferTimestamps, bufferValues);
+                    position = nextChunk == 0 ? range.firstSkip : 0;
+                    limit = chunk.size();
+                    while (position < limit && bufferTimestamps[position] < range.start) {
+                        position++;
+                    }
+                    while (limit > position && bufferTimestamps[limit - 1] > endTime) {
+                        limit--;
+                    }
+                }
+                nextChunk++;
+            }
+            return true;
+        }
+
+        long timestamp() {
+            return bufferTimestamps[position];
+        }
+
+        double value() {
+            return bufferValues[position];
+        }
+    }
+
+    /**
+     * A consistent copy of the samples of a time range, see copyRange.
+     */
+    private static final class RangeCopy {
+        final Chunk[] chunks; // Sealed chunks that overlap the range, oldest first
+        final int firstSkip; // Leading samples of the first chunk dropped by retention
+        final long start; // Start of the range after the age limit
+        final long[] hotTimestamps;
+        final double[] hotValues;
+        final int hotCount;
+        final long appends; // The change counters of the series when the copy was taken
+        final long rewrites;
+        final long droppedThrough;
+        final long loggedThrough;
+
+        RangeCopy(Chunk[] chunks, int firstSkip, long start, long[] hotTimestamps, double[] hotValues, int hotCount,
+                long appends, long rewrites, long droppedThrough, long loggedThrough) {
+            this.chunks = chunks;
+            this.firstSkip = firstSkip;
+            this.start = start;
+            this.hotTimestamps = hotTimestamps;
+            this.hotValues = hotValues;
+            this.hotCount = hotCount;
+            this.appends = appends;
+            this.rewrites = rewrites;
+            this.droppedThrough = droppedThrough;
+            this.loggedThrough = loggedThrough;
+        }
+    }
+}
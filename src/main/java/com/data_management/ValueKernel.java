@@ -0,0 +1,45 @@
+package com.data_management;
+
+/**
+ * The loop that range scans run over primitive value columns to find the
+ * values a ValuePredicate matches. Every predicate scan goes through
+ * select, so a kernel on the Vector API (jdk.incubator.vector) can replace
+ * this one here alone, once the build, the tests and the launch scripts add
+ * that module.
+ */
+final class ValueKernel {
+    private ValueKernel() {
+    }
+
+    /**
+     * Collects the indexes of the values in [from, to) that lie in [low, high],
+     * or outside it. The loops have no data-dependent branch, so they run at
+     * the same speed however many values match. NaN values never match.
+     *
+     * @param values  The values to test.
+     * @param from    The first index to test.
+     * @param to      One past the last index to test.
+     * @param low     The low bound of the range.
+     * @param high    The high bound of the range.
+     * @param inside  Whether values in the range match, rather than values outside it.
+     * @param matches The array that receives the matching indexes, at least to - from long.
+     * @return the number of matching indexes
+     */
+    static int select(double[] values, int from, int to, double low, double high, boolean inside, int[] matches) {
+        int count = 0;
+        if (inside) {
+            for (int i = from; i < to; i++) {
+                double value = values[i];
+                matches[count] = i;
+                count += value >= low & value <= high ? 1 : 0;
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                double value = values[i];
+                matches[count] = i;
+                count += value < low | value > high ? 1 : 0;
+            }
+        }
+        return count;
+    }
+}
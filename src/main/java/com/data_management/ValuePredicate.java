@@ -0,0 +1,134 @@
+package com.data_management;
+
+/**
+ * A condition on measurement values, such as "below 92" or "outside
+ * [60, 120]", that range queries evaluate inside the storage. Sealed chunks
+ * whose minimum and maximum show that no value can match are skipped
+ * without decoding, and the remaining values are tested in tight loops over
+ * primitive arrays. NaN values never match.
+ */
+public final class ValuePredicate {
+    private final double low;
+    private final double high;
+    private final boolean inside; // Matches [low, high] if true, values below low or above high otherwise
+
+    private ValuePredicate(double low, double high, boolean inside) {
+        if (!(low <= high)) {
+            throw new IllegalArgumentException("low must not be greater than high, nor NaN");
+        }
+        this.low = low;
+        this.high = high;
+        this.inside = inside;
+    }
+
+    /**
+     * Matches values below a threshold.
+     *
+     * @param threshold The threshold.
+     * @return the predicate
+     */
+    public static ValuePredicate lessThan(double threshold) {
+        return new ValuePredicate(Double.NEGATIVE_INFINITY, Math.nextDown(threshold), true);
+    }
+
+    /**
+     * Matches values at or below a threshold.
+     *
+     * @param threshold The threshold.
+     * @return the predicate
+     */
+    public static ValuePredicate atMost(double threshold) {
+        return new ValuePredicate(Double.NEGATIVE_INFINITY, threshold, true);
+    }
+
+    /**
+     * Matches values above a threshold.
+     *
+     * @param threshold The threshold.
+     * @return the predicate
+     */
+    public static ValuePredicate greaterThan(double threshold) {
+        return new ValuePredicate(Math.nextUp(threshold), Double.POSITIVE_INFINITY, true);
+    }
+
+    /**
+     * Matches values at or above a threshold.
+     *
+     * @param threshold The threshold.
+     * @return the predicate
+     */
+    public static ValuePredicate atLeast(double threshold) {
+        return new ValuePredicate(threshold, Double.POSITIVE_INFINITY, true);
+    }
+
+    /**
+     * Matches values within a range, bounds included.
+     *
+     * @param low  The lowest matching value.
+     * @param high The highest matching value.
+     * @return the predicate
+     * @throws IllegalArgumentException if low is greater than high
+     */
+    public static ValuePredicate between(double low, double high) {
+        return new ValuePredicate(low, high, true);
+    }
+
+    /**
+     * Matches values outside a range: below low or above high.
+     *
+     * @param low  The lowest value that does not match.
+     * @param high The highest value that does not match.
+     * @return the predicate
+     * @throws IllegalArgumentException if low is greater than high
+     */
+    public static ValuePredicate outside(double low, double high) {
+        return new ValuePredicate(low, high, false);
+    }
+
+    /**
+     * Tests one value.
+     *
+     * @param value The value to test.
+     * @return true if the value matches
+     */
+    public boolean test(double value) {
+        return inside ? value >= low && value <= high : value < low || value > high;
+    }
+
+    /**
+     * Tells whether no value between a minimum and a maximum can match.
+     * A NaN bound, from a chunk holding NaN, never rules a chunk out.
+     *
+     * @param min The smallest value of a group of values.
+     * @param max The largest value of the group.
+     * @return true if the group can be skipped
+     */
+    boolean excludes(double min, double max) {
+        return inside ? max < low || min > high : min >= low && max <= high;
+    }
+
+    /**
+     * Tells whether every value between a minimum and a maximum matches.
+     *
+     * @param min The smallest value of a group of values.
+     * @param max The largest value of the group.
+     * @return true if the values of the group need no test
+     */
+    boolean includesAll(double min, double max) {
+        return inside ? min >= low && max <= high : max < low || min > high;
+    }
+
+    /**
+     * Collects the indexes of the matching values in [from, to), with the
+     * branch-free loops of ValueKernel.select.
+     *
+     * @param values  The values to test.
+     * @param from    The first index to test.
+     * @param to      One past the last index to test.
+     * @param matches The array that receives the matching indexes, at least to - from long.
+     * @return the number of matching indexes
+     */
+    int select(double[] values, int from, int to, int[] matches) {
+        return ValueKernel.select(values, from, to, low, high, inside, matches);
+    }
+}
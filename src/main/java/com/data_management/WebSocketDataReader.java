@@ -5,14 +5,24 @@ import org.java_websocket.handshake.ServerHandshake;
 
 import java.net.URI;
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * WebSocketDataReader connects to a WebSocket server to receive real-time data.
  * It processes incoming messages and stores them in the provided DataStorage.
+ * Once started, records are collected and added to DataStorage in batches,
+ * at least every FLUSH_MILLIS milliseconds.
  */
 public class WebSocketDataReader implements DataReader {
+    private static final int BATCH_SIZE = 1024; // Records handed to DataStorage at a time
+    private static final long FLUSH_MILLIS = 20; // Longest time a record waits in the batch
+
     private WebSocketClient client; // WebSocket client instance
     private String uri; // URI of the WebSocket server
+    private final SampleBuffer batch = new SampleBuffer(BATCH_SIZE); // Guarded by itself
+    private volatile ScheduledExecutorService flusher; // Null until started; records are added directly
 
     /**
      * Constructs a WebSocketDataReader with a custom WebSocket URI.
@@ -45,6 +55,13 @@ public class WebSocketDataReader implements DataReader {
     @Override
     public void start(DataStorage dataStorage) throws IOException {
         URI serverUri = URI.create(uri); // Parse the URI
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "websocket-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(() -> flush(dataStorage), FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        flusher = timer;
         client = new WebSocketClient(serverUri) {
             @Override
             public void onOpen(ServerHandshake handshakedata) {
@@ -62,6 +79,9 @@ public class WebSocketDataReader implements DataReader {
             public void onClose(int code, String reason, boolean remote) {
                 // Called when the WebSocket connection is closed
                 System.err.println("WebSocket connection closed: " + reason);
+                timer.shutdown();
+                flusher = null;
+                flush(dataStorage);
             }
 
             @Override
@@ -84,6 +104,10 @@ public class WebSocketDataReader implements DataReader {
             System.err.println("Received empty or null message.");
             return;
         }
+        int patientId;
+        long timestamp;
+        double value;
+        int typeCode;
         try {
             // Split the message into parts: patientId, timestamp, label, and value
             String[] parts = message.split(",", 4);
@@ -93,15 +117,45 @@ public class WebSocketDataReader implements DataReader {
                 return;
             }
             // Parse the message parts
-            int patientId = Integer.parseInt(parts[0]);
-            long timestamp = Long.parseLong(parts[1]);
-            String label = parts[2];
-            double value = Double.parseDouble(parts[3]);
-            // Add the parsed data to DataStorage
-            dataStorage.addPatientData(patientId, value, label, timestamp);
+            patientId = Integer.parseInt(parts[0]);
+            timestamp = Long.parseLong(parts[1]);
+            value = Double.parseDouble(parts[3]);
+            // Intern the label only once the message is known to be valid
+            typeCode = RecordTypeRegistry.register(parts[2]);
         } catch (Exception e) {
             // Log errors during message parsing
             System.err.println("Error parsing message: " + message);
+            return;
+        }
+        // Add the parsed data to the batch, or straight to DataStorage if the reader was not started
+        synchronized (batch) {
+            if (batch.add(patientId, timestamp, typeCode, value) || flusher == null) {
+                flush(dataStorage);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of parsed records that were lost because DataStorage
+     * failed to store the batch they were in, for example when its write-ahead
+     * log could not be written. Each failure is also reported on standard error.
+     *
+     * @return The lost record count.
+     */
+    public long getLostRecordCount() {
+        synchronized (batch) {
+            return batch.lost();
+        }
+    }
+
+    // Adds the records collected so far to DataStorage; a failed batch is reported and counted as lost
+    private void flush(DataStorage dataStorage) {
+        try {
+            synchronized (batch) {
+                batch.flushTo(dataStorage);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error storing WebSocket data: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,712 @@
+package com.data_management;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only binary log of every sample added to DataStorage, used to
+ * rebuild the in-memory data after a restart.
+ *
+ * The file starts with a 16-byte header (magic, version, base sequence)
+ * followed by frames. Samples are numbered in the order they were appended,
+ * and the first sample in the file has the number after the base sequence.
+ * A frame is [payload length][CRC32 of payload][payload], and the payload is
+ * the record types used in the frame ([count] then [code][label length]
+ * [UTF-8 label] each) followed by fixed 24-byte samples ([patient ID][type
+ * code][timestamp][value]). Frames carry their own type labels, so they do
+ * not depend on the registry codes of the process that wrote them.
+ *
+ * Appends go into an in-memory frame. A frame is written when it is full,
+ * when a sync needs it, and on close. Syncs use group commit: one thread
+ * writes and forces everything appended so far while the others wait, and
+ * all of them are done when it finishes.
+ *
+ * TimeSeries appends its samples while it holds its write lock, and
+ * remembers the sequence number of the newest one. A snapshot therefore
+ * knows, for each series it copies, which logged samples the copy holds.
+ * Once a snapshot is written, the samples it covers for every series are
+ * cut from the front of the log (see truncate), and replay skips the
+ * samples a loaded snapshot already holds.
+ *
+ * Recovery reads the file once to verify the frames and stops at the first
+ * torn or corrupt one. It then maps the file and replays the samples on
+ * several threads, each owning a share of the patients, so every series
+ * still receives its samples in log order.
+ */
+class WriteAheadLog implements Closeable {
+    private static final int MAGIC = 0x5041574C; // "PAWL"
+    private static final int VERSION = 2;
+    private static final int FILE_HEADER_BYTES = 16;
+    private static final int FRAME_HEADER_BYTES = 8;
+    static final int SAMPLE_BYTES = 24;
+    private static final int FRAME_SAMPLES = 16384;
+    private static final long MAX_REGION_BYTES = 1L << 28; // Largest mapping used during recovery
+
+    private final Path path;
+    private FileChannel channel; // Replaced by truncate while holding syncLock and ioLock
+    private final FsyncPolicy policy;
+    private final ScheduledExecutorService syncTimer; // Only for FsyncPolicy.INTERVAL
+    private final long recoveredRecords;
+
+    private final Object ioLock = new Object(); // Orders frame writes; taken before this
+    private final Object syncLock = new Object(); // Makes one thread the group commit leader
+    private Frame pending = new Frame(); // Guarded by this
+    private Frame spare = new Frame(); // Guarded by ioLock
+    private long appended; // Guarded by this; sequence number of the newest appended sample
+    private long written; // Guarded by ioLock; newest sequence number written to the file
+    private long base; // Guarded by ioLock; sequence number before the first sample in the file
+    private volatile long durable; // Newest sequence number forced to disk
+    private boolean closed; // Guarded by this
+
+    /**
+     * Opens a log, replaying any records it already holds, and prepares it
+     * for appending. A torn frame at the end, left by a crash during a write,
+     * is cut off. Samples that a loaded snapshot already holds are skipped:
+     * those up to the snapshot's checkpoint, and those each series has
+     * recorded as restored (see Patient.restoreRecord).
+     *
+     * @param path               The log file; created if it does not exist.
+     * @param policy             When appended records are forced to disk.
+     * @param syncIntervalMillis The sync interval for FsyncPolicy.INTERVAL.
+     * @param checkpoint         The sequence number through which a loaded snapshot holds every sample, or 0.
+     * @param firstSequence      The sequence number to count on from if the file is new; at least the
+     *                           newest sequence number any series has recorded.
+     * @param patients           Finds or creates the patient that replayed samples are added to.
+     * @throws IOException if the file cannot be read or written, or is not a log
+     */
+    WriteAheadLog(Path path, FsyncPolicy policy, long syncIntervalMillis, long checkpoint, long firstSequence,
+            IntFunction<Patient> patients) throws IOException {
+        if (policy == FsyncPolicy.INTERVAL && syncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive");
+        }
+        this.path = path;
+        this.policy = policy;
+        long validLength;
+        long recovered = 0;
+        long sequence = firstSequence;
+        try (FileChannel reader = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            List<FrameInfo> frames = new ArrayList<>();
+            validLength = scan(reader, frames);
+            if (validLength >= FILE_HEADER_BYTES) {
+                sequence = readBase(reader);
+                base = sequence;
+                for (FrameInfo frame : frames) {
+                    frame.firstSequence = sequence + 1;
+                    sequence += frame.sampleCount;
+                }
+            } else {
+                base = firstSequence;
+            }
+            if (!frames.isEmpty()) {
+                recovered = replay(reader, frames, checkpoint, patients);
+            }
+        }
+        this.recoveredRecords = recovered;
+        appended = sequence;
+        written = sequence;
+        durable = sequence;
+
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (validLength < FILE_HEADER_BYTES) {
+            channel.truncate(0);
+            writeFully(header(base));
+            channel.force(true);
+        } else {
+            channel.truncate(validLength);
+            channel.position(validLength);
+        }
+
+        if (policy == FsyncPolicy.INTERVAL) {
+            syncTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncTimer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            syncTimer = null;
+        }
+    }
+
+    /**
+     * Appends a sample. It is not forced to disk yet; see commit.
+     *
+     * @param patientId The patient's ID.
+     * @param typeCode  The registry code of the record type.
+     * @param timestamp When the measurement was taken.
+     * @param value     The value of the measurement.
+     * @return the sequence number of the sample
+     * @throws UncheckedIOException if writing the log fails
+     */
+    long append(int patientId, int typeCode, long timestamp, double value) {
+        long sequence = 0;
+        boolean full = false;
+        try {
+            while (sequence == 0) {
+                synchronized (this) {
+                    if (closed) {
+                        throw new IllegalStateException("The write-ahead log is closed");
+                    }
+                    if (!pending.isFull()) {
+                        pending.add(patientId, typeCode, timestamp, value);
+                        sequence = ++appended;
+                        full = pending.isFull();
+                    }
+                }
+                if (sequence == 0) {
+                    flush(); // Another writer filled the frame and has not written it yet
+                }
+            }
+            if (full) {
+                flush();
+            }
+            return sequence;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the write-ahead log", e);
+        }
+    }
+
+    /**
+     * Appends samples of one series, filling each frame under one
+     * acquisition of the lock. They are not forced to disk yet; see commit.
+     *
+     * @param patientId  The patient's ID.
+     * @param typeCode   The registry code of the record type.
+     * @param timestamps The timestamps of the samples.
+     * @param values     The values of the samples.
+     * @param offset     The index of the first sample to append.
+     * @param count      The number of samples to append; at least 1.
+     * @return the sequence number of the last sample
+     * @throws UncheckedIOException if writing the log fails
+     */
+    long appendAll(int patientId, int typeCode, long[] timestamps, double[] values, int offset, int count) {
+        long sequence = 0;
+        int next = offset;
+        int end = offset + count;
+        try {
+            while (next < end) {
+                boolean full;
+                synchronized (this) {
+                    if (closed) {
+                        throw new IllegalStateException("The write-ahead log is closed");
+                    }
+                    while (next < end && !pending.isFull()) {
+                        pending.add(patientId, typeCode, timestamps[next], values[next]);
+                        sequence = ++appended;
+                        next++;
+                    }
+                    full = pending.isFull();
+                }
+                if (full) {
+                    flush();
+                }
+            }
+            return sequence;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the write-ahead log", e);
+        }
+    }
+
+    /**
+     * Makes the samples appended so far durable as the fsync policy requires:
+     * with FsyncPolicy.ALWAYS this returns once they are on disk, and
+     * otherwise it returns at once. Writers call it after appending, once
+     * they no longer hold the lock of the series.
+     *
+     * @throws UncheckedIOException if writing the log fails
+     */
+    void commit() {
+        if (policy == FsyncPolicy.ALWAYS) {
+            try {
+                sync();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write the write-ahead log", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number of the newest appended sample.
+     *
+     * @return the sequence number, or the base of the file if nothing was appended
+     */
+    synchronized long sequence() {
+        return appended;
+    }
+
+    /**
+     * Writes and forces to disk everything appended so far.
+     *
+     * @throws IOException if writing the log fails
+     */
+    void sync() throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = appended;
+        }
+        sync(sequence);
+    }
+
+    // Group commit: the first waiting thread syncs for everyone appended before it got the lock
+    private void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (durable >= sequence) {
+                return;
+            }
+            long upTo;
+            synchronized (ioLock) {
+                if (written < sequence) {
+                    flush();
+                }
+                upTo = written;
+            }
+            channel.force(false);
+            durable = upTo;
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Write-ahead log sync failed: " + e.getMessage());
+        }
+    }
+
+    // Writes the pending frame; frames reach the file in sequence order
+    private void flush() throws IOException {
+        synchronized (ioLock) {
+            Frame frame;
+            long upTo;
+            synchronized (this) {
+                frame = pending;
+                pending = spare;
+                upTo = appended;
+            }
+            if (!frame.isEmpty()) {
+                writeFully(channel, frame.encode());
+            }
+            frame.clear();
+            spare = frame;
+            written = upTo;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        writeFully(channel, buffer);
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer[] buffers) throws IOException {
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            target.write(buffers);
+        }
+    }
+
+    private static ByteBuffer header(long base) {
+        return ByteBuffer.allocate(FILE_HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putLong(base).flip();
+    }
+
+    // Reads the base sequence from the header of a file that scan accepted
+    private static long readBase(FileChannel reader) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        readFully(reader, header, 0);
+        return header.getLong(8);
+    }
+
+    /**
+     * Cuts the samples up to the given sequence number from the front of the
+     * log, once a snapshot holds them. The samples after it are copied to a
+     * new file, which then replaces the log atomically, so a crash leaves
+     * either the old or the new log in place. Appends wait only while the
+     * samples that follow the cut are copied.
+     *
+     * @param through The newest sequence number to cut.
+     * @throws IOException if the new file cannot be written
+     */
+    void truncate(long through) throws IOException {
+        synchronized (syncLock) {
+            synchronized (ioLock) {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                }
+                flush();
+                if (through <= base) {
+                    return;
+                }
+                List<FrameInfo> frames = new ArrayList<>();
+                scan(channel, frames);
+                Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+                try (FileChannel target = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    writeFully(target, header(Math.min(through, written)));
+                    Frame frame = new Frame();
+                    ByteBuffer samples = ByteBuffer.allocate(FRAME_SAMPLES * SAMPLE_BYTES);
+                    long sequence = base;
+                    for (FrameInfo info : frames) {
+                        if (sequence + info.sampleCount <= through) {
+                            sequence += info.sampleCount;
+                            continue;
+                        }
+                        samples.clear().limit(info.sampleCount * SAMPLE_BYTES);
+                        readFully(channel, samples, info.samplesOffset);
+                        for (int i = 0; i < info.sampleCount; i++) {
+                            int offset = i * SAMPLE_BYTES;
+                            int logCode = samples.getInt(offset + 4);
+                            if (++sequence <= through || logCode < 0 || logCode >= info.codes.length
+                                    || info.codes[logCode] < 0) {
+                                continue;
+                            }
+                            frame.add(samples.getInt(offset), info.codes[logCode], samples.getLong(offset + 8),
+                                    samples.getDouble(offset + 16));
+                            if (frame.isFull()) {
+                                writeFully(target, frame.encode());
+                                frame.clear();
+                            }
+                        }
+                    }
+                    if (!frame.isEmpty()) {
+                        writeFully(target, frame.encode());
+                    }
+                    target.force(true);
+                }
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                channel.close();
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                base = Math.min(through, written);
+                durable = written;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of samples replayed when the log was opened.
+     *
+     * @return the recovered sample count
+     */
+    long getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    /**
+     * Writes and forces everything appended so far, then closes the file.
+     *
+     * @throws IOException if writing the log fails
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (syncTimer != null) {
+            syncTimer.shutdownNow();
+        }
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Verifies the frames and collects where their samples are; returns the length of the valid prefix
+    private static long scan(FileChannel reader, List<FrameInfo> frames) throws IOException {
+        long size = reader.size();
+        if (size < FILE_HEADER_BYTES) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+        readFully(reader, header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a write-ahead log of a supported version");
+        }
+        ByteBuffer payload = ByteBuffer.allocate(FRAME_SAMPLES * SAMPLE_BYTES + 4096);
+        CRC32 crc = new CRC32();
+        long position = FILE_HEADER_BYTES;
+        while (position + FRAME_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(reader, header, position);
+            int length = header.getInt(0);
+            if (length < 4 || position + FRAME_HEADER_BYTES + length > size) {
+                break; // Torn frame
+            }
+            if (payload.capacity() < length) {
+                payload = ByteBuffer.allocate(length);
+            }
+            payload.clear().limit(length);
+            readFully(reader, payload, position + FRAME_HEADER_BYTES);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != header.getInt(4)) {
+                break; // Corrupt frame
+            }
+            FrameInfo frame = parseTypes(payload, length, position + FRAME_HEADER_BYTES);
+            if (frame == null) {
+                break;
+            }
+            frames.add(frame);
+            position += FRAME_HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    // Maps the log codes of a frame to registry codes; returns null if the frame is malformed
+    private static FrameInfo parseTypes(ByteBuffer payload, int length, long payloadOffset) {
+        payload.position(0);
+        int typeCount = payload.getInt();
+        int[] codes = new int[0];
+        for (int i = 0; i < typeCount; i++) {
+            if (payload.remaining() < 6) {
+                return null;
+            }
+            int logCode = payload.getInt();
+            int labelLength = payload.getShort() & 0xFFFF;
+            if (logCode < 0 || payload.remaining() < labelLength) {
+                return null;
+            }
+            String label = new String(payload.array(), payload.position(), labelLength, StandardCharsets.UTF_8);
+            payload.position(payload.position() + labelLength);
+            if (logCode >= codes.length) {
+                int oldLength = codes.length;
+                codes = Arrays.copyOf(codes, logCode + 1);
+                Arrays.fill(codes, oldLength, codes.length, -1);
+            }
+            codes[logCode] = RecordTypeRegistry.register(label);
+        }
+        int samplesBytes = length - payload.position();
+        if (samplesBytes % SAMPLE_BYTES != 0) {
+            return null;
+        }
+        return new FrameInfo(payloadOffset + payload.position(), samplesBytes / SAMPLE_BYTES, codes);
+    }
+
+    // Replays the samples of the verified frames in parallel, partitioned by patient
+    private static long replay(FileChannel reader, List<FrameInfo> frames, long checkpoint,
+            IntFunction<Patient> patients) throws IOException {
+        List<Region> regions = new ArrayList<>();
+        int first = 0;
+        for (int i = 0; i <= frames.size(); i++) {
+            if (i == frames.size()
+                    || (i > first && frames.get(i).end() - frames.get(first).samplesOffset > MAX_REGION_BYTES)) {
+                long start = frames.get(first).samplesOffset;
+                long end = frames.get(i - 1).end();
+                MappedByteBuffer buffer = reader.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                regions.add(new Region(buffer, start, frames.subList(first, i)));
+                first = i;
+            }
+        }
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        AtomicLong replayed = new AtomicLong();
+        for (Region region : regions) {
+            // Each frame is decoded into per-worker buckets once, then every worker replays its own buckets
+            Partition[] partitions = new Partition[region.frames.size()];
+            IntStream.range(0, partitions.length).parallel()
+                    .forEach(f -> partitions[f] = new Partition(region, region.frames.get(f), workers));
+            IntStream.range(0, workers).parallel().forEach(worker -> {
+                long count = 0;
+                for (int f = 0; f < partitions.length; f++) {
+                    FrameInfo frame = region.frames.get(f);
+                    Partition partition = partitions[f];
+                    int frameStart = (int) (frame.samplesOffset - region.start);
+                    for (int i = partition.starts[worker]; i < partition.starts[worker + 1]; i++) {
+                        int offset = partition.offsets[i];
+                        long sequence = frame.firstSequence + (offset - frameStart) / SAMPLE_BYTES;
+                        if (sequence <= checkpoint) {
+                            continue;
+                        }
+                        int patientId = region.buffer.getInt(offset);
+                        int logCode = region.buffer.getInt(offset + 4);
+                        long timestamp = region.buffer.getLong(offset + 8);
+                        double value = region.buffer.getDouble(offset + 16);
+                        if (patients.apply(patientId).restoreRecord(frame.codes[logCode], timestamp, value,
+                                sequence)) {
+                            count++;
+                        }
+                    }
+                }
+                replayed.addAndGet(count);
+            });
+        }
+        return replayed.get();
+    }
+
+    private static void readFully(FileChannel reader, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = reader.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of write-ahead log");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Where a verified frame's samples are in the file and how to map its type codes.
+     */
+    private static final class FrameInfo {
+        final long samplesOffset;
+        final int sampleCount;
+        final int[] codes; // Registry code by log code, -1 if not declared
+        long firstSequence; // Sequence number of the first sample, set once the file's base is known
+
+        FrameInfo(long samplesOffset, int sampleCount, int[] codes) {
+            this.samplesOffset = samplesOffset;
+            this.sampleCount = sampleCount;
+            this.codes = codes;
+        }
+
+        long end() {
+            return samplesOffset + (long) sampleCount * SAMPLE_BYTES;
+        }
+    }
+
+    /**
+     * A mapped part of the file covering whole frames.
+     */
+    private static final class Region {
+        final MappedByteBuffer buffer;
+        final long start;
+        final List<FrameInfo> frames;
+
+        Region(MappedByteBuffer buffer, long start, List<FrameInfo> frames) {
+            this.buffer = buffer;
+            this.start = start;
+            this.frames = frames;
+        }
+    }
+
+    /**
+     * The samples of one frame, as offsets into its region, grouped by the
+     * replay worker that owns their patient. Within a group the samples keep
+     * their log order. Samples whose type the frame does not declare are left
+     * out; that cannot happen for frames this class wrote.
+     */
+    private static final class Partition {
+        final int[] offsets;
+        final int[] starts; // Group of worker w is offsets[starts[w]] to offsets[starts[w + 1] - 1]
+
+        Partition(Region region, FrameInfo frame, int workers) {
+            int base = (int) (frame.samplesOffset - region.start);
+            int[] owners = new int[frame.sampleCount];
+            starts = new int[workers + 1];
+            for (int i = 0, offset = base; i < frame.sampleCount; i++, offset += SAMPLE_BYTES) {
+                int logCode = region.buffer.getInt(offset + 4);
+                if (logCode < 0 || logCode >= frame.codes.length || frame.codes[logCode] < 0) {
+                    owners[i] = -1;
+                    continue;
+                }
+                owners[i] = Math.floorMod(region.buffer.getInt(offset), workers);
+                starts[owners[i] + 1]++;
+            }
+            for (int w = 0; w < workers; w++) {
+                starts[w + 1] += starts[w];
+            }
+            offsets = new int[starts[workers]];
+            int[] next = Arrays.copyOf(starts, workers);
+            for (int i = 0, offset = base; i < frame.sampleCount; i++, offset += SAMPLE_BYTES) {
+                if (owners[i] >= 0) {
+                    offsets[next[owners[i]]++] = offset;
+                }
+            }
+        }
+    }
+
+    /**
+     * Samples waiting to be written, with the labels of the record types they use.
+     */
+    private static final class Frame {
+        private final ByteBuffer samples = ByteBuffer.allocate(FRAME_SAMPLES * SAMPLE_BYTES);
+        private ByteBuffer types = ByteBuffer.allocate(256);
+        private boolean[] declared = new boolean[16];
+        private int typeCount;
+        private final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES + 4);
+        private final CRC32 crc = new CRC32();
+
+        void add(int patientId, int typeCode, long timestamp, double value) {
+            if (typeCode >= declared.length || !declared[typeCode]) {
+                declare(typeCode);
+            }
+            samples.putInt(patientId).putInt(typeCode).putLong(timestamp).putDouble(value);
+        }
+
+        private void declare(int typeCode) {
+            if (typeCode >= declared.length) {
+                declared = Arrays.copyOf(declared, Math.max(typeCode + 1, declared.length * 2));
+            }
+            byte[] label = RecordTypeRegistry.labelOf(typeCode).getBytes(StandardCharsets.UTF_8);
+            if (types.remaining() < 6 + label.length) {
+                int capacity = Math.max(types.capacity() * 2, types.position() + 6 + label.length);
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                types.flip();
+                grown.put(types);
+                types = grown;
+            }
+            types.putInt(typeCode).putShort((short) label.length).put(label);
+            declared[typeCode] = true;
+            typeCount++;
+        }
+
+        boolean isFull() {
+            return !samples.hasRemaining();
+        }
+
+        boolean isEmpty() {
+            return samples.position() == 0;
+        }
+
+        // Returns the header, type section and samples ready for a gathering write
+        ByteBuffer[] encode() {
+            ByteBuffer typeSection = types.duplicate().flip();
+            ByteBuffer sampleSection = samples.duplicate().flip();
+            int length = 4 + typeSection.remaining() + sampleSection.remaining();
+            crc.reset();
+            header.clear();
+            header.putInt(length).putInt(0).putInt(typeCount);
+            crc.update(header.array(), FRAME_HEADER_BYTES, 4);
+            crc.update(typeSection.array(), 0, typeSection.remaining());
+            crc.update(sampleSection.array(), 0, sampleSection.remaining());
+            header.putInt(4, (int) crc.getValue());
+            header.flip();
+            return new ByteBuffer[] {header, typeSection, sampleSection};
+        }
+
+        void clear() {
+            samples.clear();
+            types.clear();
+            Arrays.fill(declared, false);
+            typeCount = 0;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.data_management;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/**
+ * A zone map across patients: for each record type, the range of values and
+ * timestamps every patient has stored, in primitive arrays of BLOCK patients
+ * with consecutive IDs, plus the range of values of each block as a whole.
+ * findPatients reads it to rule out whole blocks, and then single patients,
+ * without touching their series.
+ *
+ * Every series writes its own entry as it accepts samples (see Slot.widen).
+ * A series has one writer at a time, so an entry is updated with ordered
+ * stores; the block ranges are shared by the series of BLOCK patients and
+ * are widened with compare-and-set, which only happens when a value falls
+ * outside them. The ranges only ever widen: samples dropped by retention
+ * leave them wider than needed, which costs a look at the series but never
+ * a wrong answer. A NaN value makes the value range NaN, which rules nothing
+ * out, as with chunks.
+ */
+final class ZoneSummary {
+    static final int BLOCK_BITS = 6;
+    static final int BLOCK = 1 << BLOCK_BITS;
+
+    private volatile ConcurrentHashMap<Integer, Block>[] blocksByCode = newTable(0); // Grown under this
+
+    /**
+     * Returns the entry a series of the given patient and record type
+     * writes to, creating its block if needed.
+     *
+     * @param typeCode  The registry code of the record type.
+     * @param patientId The patient's ID.
+     * @return the entry
+     */
+    Slot slot(int typeCode, int patientId) {
+        int blockIndex = patientId >> BLOCK_BITS; // Rounds down, also for negative IDs
+        Block block = blocks(typeCode).computeIfAbsent(blockIndex, index -> new Block(index << BLOCK_BITS));
+        return new Slot(block, patientId & (BLOCK - 1));
+    }
+
+    private ConcurrentHashMap<Integer, Block> blocks(int typeCode) {
+        ConcurrentHashMap<Integer, Block>[] current = blocksByCode;
+        if (typeCode < current.length) {
+            return current[typeCode];
+        }
+        synchronized (this) {
+            current = blocksByCode;
+            if (typeCode >= current.length) {
+                ConcurrentHashMap<Integer, Block>[] grown = newTable(typeCode + 1);
+                System.arraycopy(current, 0, grown, 0, current.length);
+                blocksByCode = grown;
+                current = grown;
+            }
+            return current[typeCode];
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // Generic arrays cannot be created directly
+    private static ConcurrentHashMap<Integer, Block>[] newTable(int length) {
+        ConcurrentHashMap<Integer, Block>[] table = new ConcurrentHashMap[length];
+        for (int i = 0; i < length; i++) {
+            table[i] = new ConcurrentHashMap<>();
+        }
+        return table;
+    }
+
+    /**
+     * Returns the IDs of the patients that may have a sample of the given
+     * type in [startTime, endTime] matching the predicate. Blocks are checked
+     * in parallel. Patients that are not listed have no such sample.
+     *
+     * @param typeCode  The registry code of the record type.
+     * @param startTime The start of the time range.
+     * @param endTime   The end of the time range.
+     * @param predicate The condition on the values.
+     * @return the candidate IDs, in no particular order
+     */
+    int[] candidates(int typeCode, long startTime, long endTime, ValuePredicate predicate) {
+        ConcurrentHashMap<Integer, Block>[] current = blocksByCode;
+        if (typeCode < 0 || typeCode >= current.length) {
+            return new int[0];
+        }
+        return current[typeCode].values().parallelStream()
+                .filter(block -> !predicate.excludes(block.min(BLOCK), block.max(BLOCK)))
+                .flatMapToInt(block -> block.candidates(startTime, endTime, predicate))
+                .toArray();
+    }
+
+    /**
+     * Forgets every entry. Series created before keep writing to their old
+     * entries, which are no longer read.
+     */
+    synchronized void clear() {
+        blocksByCode = newTable(0);
+    }
+
+    /**
+     * The entries of BLOCK patients with consecutive IDs for one record type.
+     * Index i holds the patient firstId + i, and index BLOCK the whole block.
+     */
+    static final class Block {
+        private final int firstId;
+        private final AtomicLongArray mins = filled(Double.doubleToRawLongBits(Double.POSITIVE_INFINITY));
+        private final AtomicLongArray maxs = filled(Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY));
+        private final AtomicLongArray oldest = filled(Long.MAX_VALUE);
+        private final AtomicLongArray newest = filled(Long.MIN_VALUE);
+
+        Block(int firstId) {
+            this.firstId = firstId;
+        }
+
+        private static AtomicLongArray filled(long initial) {
+            long[] values = new long[BLOCK + 1];
+            Arrays.fill(values, initial);
+            return new AtomicLongArray(values);
+        }
+
+        double min(int index) {
+            return Double.longBitsToDouble(mins.get(index));
+        }
+
+        double max(int index) {
+            return Double.longBitsToDouble(maxs.get(index));
+        }
+
+        // The candidates of this block; an entry without samples has oldest > newest and never overlaps
+        private IntStream candidates(long startTime, long endTime, ValuePredicate predicate) {
+            IntStream.Builder ids = IntStream.builder();
+            for (int i = 0; i < BLOCK; i++) {
+                if (newest.get(i) >= startTime && oldest.get(i) <= endTime && !predicate.excludes(min(i), max(i))) {
+                    ids.add(firstId + i);
+                }
+            }
+            return ids.build();
+        }
+    }
+
+    /**
+     * The entry of one series: its patient's index in a block.
+     */
+    static final class Slot {
+        private final Block block;
+        private final int index;
+
+        Slot(Block block, int index) {
+            this.block = block;
+            this.index = index;
+        }
+
+        /**
+         * Widens the entry, and the block if needed, to include a sample.
+         * Must be called by the series that owns the entry, under its write lock.
+         *
+         * @param timestamp When the measurement was taken.
+         * @param value     The value of the measurement.
+         */
+        void widen(long timestamp, double value) {
+            if (timestamp < block.oldest.get(index)) {
+                block.oldest.lazySet(index, timestamp);
+            }
+            if (timestamp > block.newest.get(index)) {
+                block.newest.lazySet(index, timestamp);
+            }
+            long bits = Double.doubleToRawLongBits(value);
+            if (lowers(block.min(index), value)) {
+                block.mins.lazySet(index, bits);
+            }
+            if (raises(block.max(index), value)) {
+                block.maxs.lazySet(index, bits);
+            }
+            for (long current = block.mins.get(BLOCK); lowers(Double.longBitsToDouble(current), value)
+                    && !block.mins.compareAndSet(BLOCK, current, bits); current = block.mins.get(BLOCK)) {
+                // Retry until the block minimum includes the value
+            }
+            for (long current = block.maxs.get(BLOCK); raises(Double.longBitsToDouble(current), value)
+                    && !block.maxs.compareAndSet(BLOCK, current, bits); current = block.maxs.get(BLOCK)) {
+                // Retry until the block maximum includes the value
+            }
+        }
+
+        // A NaN bound stays NaN; a NaN value makes the bound NaN
+        private static boolean lowers(double bound, double value) {
+            return !Double.isNaN(bound) && (Double.isNaN(value) || value < bound);
+        }
+
+        private static boolean raises(double bound, double value) {
+            return !Double.isNaN(bound) && (Double.isNaN(value) || value > bound);
+        }
+    }
+}
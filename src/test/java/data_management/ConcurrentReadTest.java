@@ -0,0 +1,213 @@
+package data_management;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import com.data_management.DataStorage;
+import com.data_management.PatientRecord;
+import com.data_management.RecordTypeRegistry;
+import com.data_management.RetentionPolicy;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+class ConcurrentReadTest {
+    private static final int TYPE = RecordTypeRegistry.HEART_RATE;
+
+    /**
+     * Tests that readers racing a single writer only ever see a consistent
+     * prefix of the writes: every value matches its timestamp, the samples
+     * are contiguous, and a sample seen once stays visible to later reads.
+     */
+    @Test
+    void testReadersSeeConsistentPrefix() throws Exception {
+        runRace(RetentionPolicy.unlimited(), false);
+    }
+
+    /**
+     * Tests the same guarantees while retention keeps moving the head of the
+     * ring buffer and sealing and dropping chunks under the readers.
+     */
+    @Test
+    void testReadersSeeConsistentPrefixUnderRetention() throws Exception {
+        runRace(new RetentionPolicy(0, 3000), true);
+    }
+
+    /**
+     * Tests that readers see sorted, untorn samples while the writer merges
+     * late samples into place.
+     */
+    @Test
+    void testReadersSeeSortedSamplesWithLateWrites() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+        Thread writer = new Thread(() -> {
+            Random random = new Random(21);
+            for (int i = 0; i < 300_000; i++) {
+                long timestamp = random.nextInt(10) == 0 ? Math.max(0, i - random.nextInt(200)) : i;
+                storage.addPatientData(1, timestamp, TYPE, timestamp);
+            }
+            writing.set(false);
+        });
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            long seed = r;
+            readers[r] = new Thread(() -> {
+                Random random = new Random(seed);
+                while (writing.get() && failures.isEmpty()) {
+                    double latest = storage.getLatest(1, TYPE);
+                    if (Double.isNaN(latest)) {
+                        continue;
+                    }
+                    long from = (long) latest - random.nextInt(1000);
+                    long[] previous = {Long.MIN_VALUE};
+                    storage.forEachRecord(1, TYPE, from, Long.MAX_VALUE, (timestamp, value) -> {
+                        if (value != timestamp || timestamp < previous[0] || timestamp < from) {
+                            failures.add("torn or unsorted sample " + timestamp + "=" + value);
+                        }
+                        previous[0] = timestamp;
+                    });
+                }
+            });
+            readers[r].start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        storage.clear();
+        assertTrue(failures.isEmpty(), () -> failures.peek());
+    }
+
+    private void runRace(RetentionPolicy policy, boolean trimmed) throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        storage.setRetentionPolicy(policy);
+        int writes = 1_000_000;
+        AtomicLong written = new AtomicLong(-1); // Newest timestamp the writer has returned from
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+        AtomicLong reads = new AtomicLong();
+        try {
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < writes; i++) {
+                    storage.addPatientData(1, i, TYPE, i);
+                    written.set(i);
+                }
+                writing.set(false);
+            });
+            Thread[] readers = new Thread[4];
+            for (int r = 0; r < readers.length; r++) {
+                long seed = r;
+                readers[r] = new Thread(() -> {
+                    Random random = new Random(seed);
+                    long lastSeen = -1;
+                    while (writing.get() && failures.isEmpty()) {
+                        long committed = written.get();
+                        if (committed < 0) {
+                            continue;
+                        }
+                        int window = 1 + random.nextInt(random.nextBoolean() ? 64 : 2000);
+                        long from = Math.max(0, committed - window);
+                        String failure;
+                        switch (random.nextInt(3)) {
+                            case 0:
+                                failure = checkVisited(storage, from, committed, trimmed);
+                                break;
+                            case 1:
+                                failure = checkRecords(storage.getRecords(1, from, Long.MAX_VALUE), from,
+                                        committed, trimmed);
+                                break;
+                            default:
+                                failure = checkLastN(storage, window, committed);
+                                break;
+                        }
+                        double latest = storage.getLatest(1, TYPE);
+                        if (latest < committed || latest < lastSeen) {
+                            failure = "latest went back: " + latest + " after " + Math.max(committed, lastSeen);
+                        }
+                        lastSeen = (long) latest;
+                        if (failure != null) {
+                            failures.add(failure);
+                        }
+                        reads.incrementAndGet();
+                    }
+                });
+                readers[r].start();
+            }
+            writer.start();
+            writer.join();
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            assertTrue(failures.isEmpty(), () -> failures.peek());
+            assertTrue(reads.get() > 0);
+        } finally {
+            storage.setRetentionPolicy(RetentionPolicy.unlimited());
+            storage.clear();
+        }
+    }
+
+    // Checks a visited range: values match timestamps, no gaps, and nothing committed is missing
+    private static String checkVisited(DataStorage storage, long from, long committed, boolean trimmed) {
+        long[] state = {Long.MIN_VALUE, 0}; // Previous timestamp, failure flag
+        long[] first = {Long.MIN_VALUE};
+        storage.forEachRecord(1, TYPE, from, Long.MAX_VALUE, (timestamp, value) -> {
+            if (value != timestamp || (state[0] != Long.MIN_VALUE && timestamp != state[0] + 1)) {
+                state[1] = 1;
+            }
+            if (first[0] == Long.MIN_VALUE) {
+                first[0] = timestamp;
+            }
+            state[0] = timestamp;
+        });
+        if (state[1] != 0) {
+            return "visited samples are torn or have gaps after " + from;
+        }
+        return checkBounds(first[0], state[0], from, committed, trimmed);
+    }
+
+    private static String checkRecords(List<PatientRecord> records, long from, long committed, boolean trimmed) {
+        long previous = Long.MIN_VALUE;
+        for (PatientRecord record : records) {
+            long timestamp = record.getTimestamp();
+            if (record.getMeasurementValue() != timestamp || (previous != Long.MIN_VALUE && timestamp != previous + 1)) {
+                return "records are torn or have gaps after " + from;
+            }
+            previous = timestamp;
+        }
+        long first = records.isEmpty() ? Long.MIN_VALUE : records.get(0).getTimestamp();
+        return checkBounds(first, previous, from, committed, trimmed);
+    }
+
+    private static String checkBounds(long first, long last, long from, long committed, boolean trimmed) {
+        if (last < committed) {
+            return "a committed sample is missing: saw up to " + last + ", committed " + committed;
+        }
+        if (first < from || (!trimmed && first != from)) {
+            return "range starts at " + first + " instead of " + from;
+        }
+        return null;
+    }
+
+    private static String checkLastN(DataStorage storage, int n, long committed) {
+        long[] timestamps = new long[n];
+        double[] values = new double[n];
+        int count = storage.getLastN(1, TYPE, n, timestamps, values);
+        for (int i = 0; i < count; i++) {
+            if (values[i] != timestamps[i] || (i > 0 && timestamps[i] != timestamps[i - 1] + 1)) {
+                return "last " + n + " samples are torn or have gaps";
+            }
+        }
+        if (count == 0 || timestamps[count - 1] < committed) {
+            return "last samples miss a committed sample";
+        }
+        return null;
+    }
+}
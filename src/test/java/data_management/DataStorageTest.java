@@ -3,10 +3,27 @@ package data_management;
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.Test;
 
+import com.data_management.AggregateKind;
 import com.data_management.DataStorage;
+import com.data_management.Patient;
 import com.data_management.PatientRecord;
+import com.data_management.QueryCacheStats;
+import com.data_management.RecordTypeRegistry;
+import com.data_management.RetentionPolicy;
+import com.data_management.RollupPoint;
+import com.data_management.RollupResolution;
+import com.data_management.ValuePredicate;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class DataStorageTest {
 
@@ -61,4 +78,1195 @@ class DataStorageTest {
         assertEquals(1, records2.size());
         assertEquals(95.0, records2.get(0).getMeasurementValue());
     }
+
+    /**
+     * Stress test for concurrent ingest.
+     * Several writer threads add records for overlapping patients while a reader
+     * queries them. Verifies that no record is lost for an increasing number
+     * of writer threads; IngestBenchmark measures how throughput scales.
+     */
+    @Test
+    void testConcurrentWritersLoseNoRecords() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        int patients = 50;
+        int recordsPerThread = 100_000;
+
+        for (int writers = 1; writers <= 8; writers *= 2) {
+            storage.clear();
+            int writerCount = writers;
+            AtomicBoolean writing = new AtomicBoolean(true);
+            Thread reader = new Thread(() -> {
+                while (writing.get()) {
+                    for (int id = 1; id <= patients; id++) {
+                        storage.getRecords(id, 0, Long.MAX_VALUE);
+                    }
+                }
+            });
+            reader.start();
+
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[writerCount];
+            for (int t = 0; t < writerCount; t++) {
+                final int threadId = t;
+                threads[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    String recordType = "Signal" + threadId;
+                    for (int i = 0; i < recordsPerThread; i++) {
+                        storage.addPatientData(1 + (i % patients), i, recordType, threadId * 1_000_000L + i);
+                    }
+                });
+                threads[t].start();
+            }
+
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            writing.set(false);
+            reader.join();
+
+            int stored = 0;
+            for (int id = 1; id <= patients; id++) {
+                stored += storage.getRecords(id, 0, Long.MAX_VALUE).size();
+            }
+            assertEquals(writerCount * recordsPerThread, stored, "Records were lost with " + writerCount + " writers");
+        }
+        storage.clear();
+    }
+
+    /**
+     * Tests that patients with contiguous, very large and negative IDs are all
+     * stored and returned, with contiguous IDs in ascending order.
+     */
+    @Test
+    void testPatientIdsOutsideDenseRange() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+
+        int[] sparseIds = {-7, Integer.MIN_VALUE, Integer.MAX_VALUE, 2_000_000_000};
+        for (int id = 1; id <= 1000; id++) {
+            storage.addPatientData(id, id, "HeartRate", 1714376789050L);
+        }
+        for (int id : sparseIds) {
+            storage.addPatientData(id, id, "HeartRate", 1714376789050L);
+            storage.addPatientData(id, id, "HeartRate", 1714376789051L);
+        }
+
+        List<Patient> patients = storage.getAllPatients();
+        assertEquals(1000 + sparseIds.length, patients.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i + 1, patients.get(i).getPatientId());
+        }
+        for (int id : sparseIds) {
+            List<PatientRecord> records = storage.getRecords(id, 0, Long.MAX_VALUE);
+            assertEquals(2, records.size());
+            assertEquals((double) id, records.get(0).getMeasurementValue());
+        }
+        assertTrue(storage.getRecords(-8, 0, Long.MAX_VALUE).isEmpty());
+        storage.clear();
+    }
+
+    /**
+     * Tests that a sample limit keeps only the newest samples, in order,
+     * including when an older sample arrives late.
+     */
+    @Test
+    void testRetentionBySampleCount() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        storage.setRetentionPolicy(new RetentionPolicy(0, 5));
+        try {
+            for (long t = 1; t <= 20; t++) {
+                storage.addPatientData(1, t, "HeartRate", t * 1000);
+            }
+            storage.addPatientData(1, 17.5, "HeartRate", 17_500L); // late, but newer than the oldest kept
+            storage.addPatientData(1, 2.0, "HeartRate", 2_000L); // older than everything kept
+
+            List<PatientRecord> records = storage.getRecords(1, 0, Long.MAX_VALUE);
+            assertEquals(5, records.size());
+            assertEquals(17_000L, records.get(0).getTimestamp());
+            assertEquals(17.5, records.get(1).getMeasurementValue());
+            assertEquals(20_000L, records.get(4).getTimestamp());
+        } finally {
+            storage.setRetentionPolicy(RetentionPolicy.unlimited());
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that an age limit drops samples older than the limit, measured
+     * from the newest sample of the same record type.
+     */
+    @Test
+    void testRetentionByAge() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        storage.setRetentionPolicy(new RetentionPolicy(60_000, 0));
+        try {
+            for (long t = 0; t <= 300; t++) {
+                storage.addPatientData(1, t, "Saturation", t * 1000);
+            }
+            storage.addPatientData(1, 120.0, "SystolicPressure", 0L);
+
+            List<PatientRecord> records = storage.getRecords(1, 0, Long.MAX_VALUE);
+            assertEquals(62, records.size());
+            assertEquals(0L, records.get(0).getTimestamp()); // Only saturation is old
+            assertEquals(240_000L, records.get(1).getTimestamp());
+        } finally {
+            storage.setRetentionPolicy(RetentionPolicy.unlimited());
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that a global memory budget bounds the samples kept over all
+     * patients, and that shrinking limits trims data already stored.
+     */
+    @Test
+    void testMemoryBudgetBoundsAllPatients() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        try {
+            for (int id = 1; id <= 10; id++) {
+                for (long t = 0; t < 1000; t++) {
+                    storage.addPatientData(id, t, "ECG", t);
+                }
+            }
+            assertTrue(storage.getMemoryUsage() > 10 * 1000 * 16L);
+            storage.setMemoryBudget(10 * 100 * 16L); // At most 100 samples for each of the 10 series
+
+            for (int id = 1; id <= 10; id++) {
+                List<PatientRecord> records = storage.getRecords(id, 0, Long.MAX_VALUE);
+                assertTrue(records.size() > 0 && records.size() < 100, "kept " + records.size());
+                assertEquals(1000L - records.size(), records.get(0).getTimestamp()); // The newest ones
+            }
+            // The budget covers what getMemoryUsage counts, including ring buffer capacity and caches
+            assertTrue(storage.getMemoryUsage() <= storage.getMemoryBudget());
+            for (int id = 1; id <= 10; id++) {
+                for (long t = 1000; t < 2000; t++) {
+                    storage.addPatientData(id, t, "ECG", t);
+                }
+            }
+            assertTrue(storage.getMemoryUsage() <= storage.getMemoryBudget());
+        } finally {
+            storage.setMemoryBudget(0);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that compressed data reads back exactly, including irregular
+     * timestamps, large jumps, special values and late samples that fall into
+     * an already compressed range.
+     */
+    @Test
+    void testCompressionRoundTrip() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        storage.setCompressionEnabled(true);
+        try {
+            Random random = new Random(42);
+            List<long[]> expected = new ArrayList<>();
+            long timestamp = 1714376789050L;
+            double[] specials = {Double.NaN, -0.0, Double.MAX_VALUE, -1e-300, Double.POSITIVE_INFINITY};
+            for (int i = 0; i < 5000; i++) {
+                timestamp += i % 100 == 0 ? random.nextInt(1_000_000) : 1000 + random.nextInt(3) - 1;
+                double value = i % 997 == 0 ? specials[(i / 997) % specials.length] : 95 + random.nextInt(6) + random.nextDouble() * (i % 2);
+                storage.addPatientData(1, value, "Saturation", timestamp);
+                expected.add(new long[] {timestamp, Double.doubleToRawLongBits(value)});
+            }
+            // Late samples inside the compressed range
+            long late = expected.get(100)[0] + 1;
+            storage.addPatientData(1, 42.0, "Saturation", late);
+            expected.add(101, new long[] {late, Double.doubleToRawLongBits(42.0)});
+
+            List<PatientRecord> records = storage.getRecords(1, 0, Long.MAX_VALUE);
+            assertEquals(expected.size(), records.size());
+            for (int i = 0; i < records.size(); i++) {
+                assertEquals(expected.get(i)[0], records.get(i).getTimestamp(), "Timestamp of record " + i);
+                assertEquals(expected.get(i)[1], Double.doubleToRawLongBits(records.get(i).getMeasurementValue()), "Value of record " + i);
+            }
+
+            // A window inside the compressed range
+            List<PatientRecord> window = storage.getRecords(1, expected.get(1000)[0], expected.get(1999)[0]);
+            assertEquals(1000, window.size());
+            assertEquals(expected.get(1000)[0], window.get(0).getTimestamp());
+        } finally {
+            storage.setCompressionEnabled(false);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that slowly varying vitals at a fixed cadence compress well.
+     */
+    @Test
+    void testCompressionReducesMemory() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        try {
+            Random random = new Random(7);
+            int saturation = 97;
+            int systolic = 120;
+            for (int i = 0; i < 86_400; i++) {
+                long timestamp = 1714376789000L + i * 1000L;
+                saturation = Math.min(100, Math.max(90, saturation + random.nextInt(3) - 1));
+                storage.addPatientData(1, saturation, "Saturation", timestamp);
+                if (i % 60 == 0) {
+                    systolic = Math.min(140, Math.max(100, systolic + random.nextInt(5) - 2));
+                    storage.addPatientData(1, systolic, "SystolicPressure", timestamp);
+                }
+            }
+            long uncompressed = storage.getMemoryUsage();
+            storage.setCompressionEnabled(true);
+            long compressed = storage.getMemoryUsage();
+
+            assertTrue(compressed * 10 <= uncompressed,
+                    "Expected at least 10x less memory, got " + compressed + " of " + uncompressed);
+            assertEquals(86_400, storage.getAllPatients().get(0).getRecordCount("Saturation"));
+        } finally {
+            storage.setCompressionEnabled(false);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that retention limits also apply to compressed data.
+     */
+    @Test
+    void testRetentionWithCompression() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        storage.setCompressionEnabled(true);
+        try {
+            storage.setRetentionPolicy(new RetentionPolicy(0, 3000));
+            for (long t = 0; t < 10_000; t++) {
+                storage.addPatientData(1, t % 7, "ECG", t * 1000);
+            }
+            List<PatientRecord> records = storage.getRecords(1, 0, Long.MAX_VALUE);
+            assertEquals(3000, records.size());
+            assertEquals(7_000_000L, records.get(0).getTimestamp());
+
+            storage.setRetentionPolicy(new RetentionPolicy(1_000_000, 0));
+            records = storage.getRecords(1, 0, Long.MAX_VALUE);
+            assertEquals(1001, records.size());
+            assertEquals(8_999_000L, records.get(0).getTimestamp());
+            assertEquals(1001, storage.getAllPatients().get(0).getRecordCount("ECG"));
+        } finally {
+            storage.setRetentionPolicy(RetentionPolicy.unlimited());
+            storage.setCompressionEnabled(false);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that rollups pick the finest resolution within the point budget
+     * and summarize the records correctly.
+     */
+    @Test
+    void testRollupsPickResolutionByPointBudget() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        storage.setRollupsEnabled(true);
+        try {
+            long start = 1714374000000L; // On an hour boundary
+            for (int i = 0; i < 2 * 3600; i++) {
+                storage.addPatientData(1, 90 + i % 10, "Saturation", start + i * 1000L);
+            }
+            long dayEnd = start + 24 * 3_600_000L;
+
+            List<RollupPoint> hours = storage.getRollups(1, "Saturation", start, dayEnd, 100);
+            assertEquals(2, hours.size());
+            assertEquals(RollupResolution.HOUR, hours.get(0).getResolution());
+            assertEquals(3600, hours.get(0).getCount());
+            assertEquals(90.0, hours.get(0).getMin());
+            assertEquals(99.0, hours.get(0).getMax());
+            assertEquals(94.5, hours.get(0).getAverage(), 1e-9);
+
+            List<RollupPoint> minutes = storage.getRollups(1, "Saturation", start, dayEnd, 200);
+            assertEquals(120, minutes.size());
+            assertEquals(RollupResolution.MINUTE, minutes.get(0).getResolution());
+            assertEquals(60, minutes.get(119).getCount());
+
+            // One-second buckets only cover the last hour, so older ranges use minutes
+            List<RollupPoint> seconds = storage.getRollups(1, "Saturation", start + 7000_000L, start + 7059_000L, 60);
+            assertEquals(60, seconds.size());
+            assertEquals(RollupResolution.SECOND, seconds.get(0).getResolution());
+            List<RollupPoint> old = storage.getRollups(1, "Saturation", start, start + 59_000L, 60);
+            assertEquals(RollupResolution.MINUTE, old.get(0).getResolution());
+        } finally {
+            storage.setRollupsEnabled(false);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that rollups computed from the records match maintained rollups,
+     * including for records that arrive out of order.
+     */
+    @Test
+    void testRollupsWithoutMaintenanceMatch() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        try {
+            Random random = new Random(3);
+            for (int i = 0; i < 5000; i++) {
+                storage.addPatientData(1, random.nextInt(200), "HeartRate", random.nextInt(10_000_000));
+            }
+            int code = RecordTypeRegistry.HEART_RATE;
+            List<RollupPoint> computed = storage.getRollups(1, code, 0, 10_000_000, RollupResolution.MINUTE);
+
+            storage.setRollupsEnabled(true);
+            for (int i = 0; i < 100; i++) {
+                storage.addPatientData(1, 1000.0, "HeartRate", random.nextInt(10_000_000));
+            }
+            List<RollupPoint> maintained = storage.getRollups(1, code, 0, 10_000_000, RollupResolution.MINUTE);
+
+            assertEquals(computed.size(), maintained.size());
+            long extra = 0;
+            for (int i = 0; i < computed.size(); i++) {
+                assertEquals(computed.get(i).getStartTime(), maintained.get(i).getStartTime());
+                assertEquals(computed.get(i).getMin(), maintained.get(i).getMin());
+                extra += maintained.get(i).getCount() - computed.get(i).getCount();
+            }
+            assertEquals(100, extra);
+        } finally {
+            storage.setRollupsEnabled(false);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that window aggregates match a brute-force computation over the
+     * records, with and without compression and with late records.
+     */
+    @Test
+    void testAggregatesMatchRecords() {
+        DataStorage storage = DataStorage.getInstance();
+        for (boolean compression : new boolean[] {false, true}) {
+            storage.clear();
+            storage.setCompressionEnabled(compression);
+            try {
+                Random random = new Random(5);
+                for (int i = 0; i < 20_000; i++) {
+                    storage.addPatientData(1, 60 + random.nextInt(80), "HeartRate", i * 100L);
+                }
+                for (int i = 0; i < 200; i++) {
+                    storage.addPatientData(1, random.nextInt(300), "HeartRate", random.nextInt(2_000_000));
+                }
+                storage.setRetentionPolicy(new RetentionPolicy(0, 19_950));
+
+                for (int q = 0; q < 50; q++) {
+                    long a = random.nextInt(2_100_000) - 50_000;
+                    long b = a + random.nextInt(1_500_000);
+                    List<PatientRecord> records = storage.getRecords(1, a, b);
+                    double sum = 0;
+                    double min = Double.POSITIVE_INFINITY;
+                    double max = Double.NEGATIVE_INFINITY;
+                    for (PatientRecord record : records) {
+                        sum += record.getMeasurementValue();
+                        min = Math.min(min, record.getMeasurementValue());
+                        max = Math.max(max, record.getMeasurementValue());
+                    }
+                    double squares = 0;
+                    for (PatientRecord record : records) {
+                        double d = record.getMeasurementValue() - sum / records.size();
+                        squares += d * d;
+                    }
+                    assertEquals(records.size(), storage.aggregate(1, "HeartRate", a, b, AggregateKind.COUNT));
+                    assertEquals(sum, storage.aggregate(1, "HeartRate", a, b, AggregateKind.SUM), 1e-6);
+                    if (records.isEmpty()) {
+                        assertTrue(Double.isNaN(storage.aggregate(1, "HeartRate", a, b, AggregateKind.MEAN)));
+                        continue;
+                    }
+                    assertEquals(min, storage.aggregate(1, "HeartRate", a, b, AggregateKind.MIN));
+                    assertEquals(max, storage.aggregate(1, "HeartRate", a, b, AggregateKind.MAX));
+                    assertEquals(sum / records.size(), storage.aggregate(1, "HeartRate", a, b, AggregateKind.MEAN), 1e-9);
+                    assertEquals(Math.sqrt(squares / records.size()),
+                            storage.aggregate(1, "HeartRate", a, b, AggregateKind.STDDEV), 1e-6);
+                }
+            } finally {
+                storage.setRetentionPolicy(RetentionPolicy.unlimited());
+                storage.setCompressionEnabled(false);
+                storage.clear();
+            }
+        }
+    }
+
+    /**
+     * Tests percentiles against known values.
+     */
+    @Test
+    void testPercentile() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        try {
+            for (int i = 1; i <= 101; i++) {
+                storage.addPatientData(1, 102 - i, "Saturation", i);
+            }
+            assertEquals(51.0, storage.percentile(1, "Saturation", 0, 1000, 50));
+            assertEquals(1.0, storage.percentile(1, "Saturation", 0, 1000, 0));
+            assertEquals(101.0, storage.percentile(1, "Saturation", 0, 1000, 100));
+            assertEquals(96.5, storage.percentile(1, "Saturation", 1, 10, 50), 1e-9);
+            assertTrue(Double.isNaN(storage.percentile(1, "Saturation", 500, 1000, 50)));
+            assertThrows(IllegalArgumentException.class, () -> storage.percentile(1, "Saturation", 0, 1000, 101));
+
+            // Agrees with sorting, for runs of equal values and NaN values, which rank last
+            Random random = new Random(9);
+            double[] values = new double[5000];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = i % 50 == 49 ? Double.NaN : random.nextInt(i % 3 == 0 ? 4 : 1000);
+                storage.addPatientData(2, values[i], "Saturation", i);
+            }
+            for (int size : new int[] {1, 2, 3, 49, 50, 1000, 5000}) {
+                double[] sorted = Arrays.copyOf(values, size);
+                Arrays.sort(sorted);
+                for (double p : new double[] {0, 1, 25, 50, 90, 97.5, 99, 100}) {
+                    double rank = p / 100 * (size - 1);
+                    int lower = (int) Math.floor(rank);
+                    int upper = Math.min(lower + 1, size - 1);
+                    double expected = sorted[lower] + (rank - lower) * (sorted[upper] - sorted[lower]);
+                    assertEquals(expected, storage.percentile(2, "Saturation", 0, size - 1, p), 1e-9,
+                            "percentile " + p + " of " + size);
+                }
+            }
+        } finally {
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that the latest value and the last n records match the tail of
+     * getRecords, with late records, retention and requests larger than the
+     * tail cache.
+     */
+    @Test
+    void testLatestAndLastN() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        storage.setCompressionEnabled(true);
+        try {
+            assertTrue(Double.isNaN(storage.getLatest(1, "SystolicPressure")));
+            assertEquals(0, storage.getLastN(1, "SystolicPressure", 5).size());
+
+            Random random = new Random(11);
+            for (int i = 0; i < 3000; i++) {
+                storage.addPatientData(1, 100 + random.nextInt(60), "SystolicPressure", i * 1000L);
+                if (i % 100 == 0) {
+                    storage.addPatientData(1, 90, "SystolicPressure", i * 1000L - random.nextInt(50_000));
+                }
+            }
+            storage.addPatientData(1, 77, "SystolicPressure", 2_999_000L - 500);
+            long[] timestamps = new long[2000];
+            double[] values = new double[2000];
+            for (RetentionPolicy policy : new RetentionPolicy[] {
+                    RetentionPolicy.unlimited(), new RetentionPolicy(0, 10), new RetentionPolicy(5500, 0)}) {
+                storage.setRetentionPolicy(policy);
+                List<PatientRecord> all = storage.getRecords(1, Long.MIN_VALUE, Long.MAX_VALUE);
+                PatientRecord newest = all.get(all.size() - 1);
+                assertEquals(newest.getMeasurementValue(), storage.getLatest(1, "SystolicPressure"));
+
+                for (int n : new int[] {1, 3, 32, 33, 600, 2000}) {
+                    List<PatientRecord> expected = all.subList(Math.max(0, all.size() - n), all.size());
+                    List<PatientRecord> lastN = storage.getLastN(1, "SystolicPressure", n);
+                    int count = storage.getLastN(1, RecordTypeRegistry.SYSTOLIC_PRESSURE, n, timestamps, values);
+                    assertEquals(expected.size(), lastN.size());
+                    assertEquals(expected.size(), count);
+                    for (int i = 0; i < count; i++) {
+                        assertEquals(expected.get(i).getTimestamp(), lastN.get(i).getTimestamp());
+                        assertEquals(expected.get(i).getTimestamp(), timestamps[i]);
+                        assertEquals(expected.get(i).getMeasurementValue(), values[i]);
+                    }
+                }
+            }
+        } finally {
+            storage.setRetentionPolicy(RetentionPolicy.unlimited());
+            storage.setCompressionEnabled(false);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that the streaming queries see every patient and record that the
+     * list-based queries return.
+     */
+    @Test
+    void testStreamingQueries() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        try {
+            Set<Integer> ids = new HashSet<>();
+            for (int i = 0; i < 500; i++) {
+                int id = i % 2 == 0 ? i : -i * 7919;
+                ids.add(id);
+                storage.addPatientData(id, i, "HeartRate", 1000L + i);
+                storage.addPatientData(id, i * 2, "Saturation", 1000L + i);
+            }
+
+            Set<Integer> streamed = new HashSet<>();
+            storage.streamPatients().parallel().map(Patient::getPatientId)
+                    .forEach(id -> { synchronized (streamed) { streamed.add(id); } });
+            assertEquals(ids, streamed);
+            assertEquals(500, storage.streamPatients().parallel().count());
+
+            Set<Integer> visited = new HashSet<>();
+            storage.forEachPatient(patient -> visited.add(patient.getPatientId()));
+            assertEquals(ids, visited);
+
+            for (int t = 0; t < 1000; t++) {
+                storage.addPatientData(4, t, "HeartRate", t * 10L);
+            }
+            List<PatientRecord> expected = new ArrayList<>();
+            for (PatientRecord record : storage.getRecords(4, 500, 5000)) {
+                if (record.getRecordType().equals("HeartRate")) {
+                    expected.add(record);
+                }
+            }
+            List<Long> timestamps = new ArrayList<>();
+            storage.forEachRecord(4, "HeartRate", 500, 5000, (timestamp, value) -> timestamps.add(timestamp));
+            assertEquals(expected.size(), timestamps.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getTimestamp(), timestamps.get(i).longValue());
+            }
+            storage.forEachRecord(12345, "HeartRate", 0, Long.MAX_VALUE, (timestamp, value) -> fail());
+        } finally {
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that cross-patient queries return the same records as one query
+     * per patient, merged by timestamp.
+     */
+    @Test
+    void testRecordsAcrossPatients() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        try {
+            Random random = new Random(17);
+            for (int id = 1; id <= 200; id++) {
+                for (int i = 0; i < 100; i++) {
+                    storage.addPatientData(id, random.nextInt(100), "Saturation", random.nextInt(100_000));
+                    storage.addPatientData(id, random.nextInt(100), "HeartRate", random.nextInt(100_000));
+                }
+            }
+
+            List<PatientRecord> expected = new ArrayList<>();
+            for (int id = 1; id <= 200; id++) {
+                for (PatientRecord record : storage.getRecords(id, 20_000, 60_000)) {
+                    if (record.getRecordType().equals("Saturation")) {
+                        expected.add(record);
+                    }
+                }
+            }
+            expected.sort(Comparator.comparingLong(PatientRecord::getTimestamp));
+            List<PatientRecord> actual = storage.getRecordsAcrossPatients("Saturation", 20_000, 60_000);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getPatientId(), actual.get(i).getPatientId());
+                assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+                assertEquals(expected.get(i).getMeasurementValue(), actual.get(i).getMeasurementValue());
+            }
+
+            int[] ward = {7, 3, 999};
+            List<PatientRecord> wardRecords = storage.getRecordsAcrossPatients(ward, "Saturation", 0, 100_000);
+            assertEquals(200, wardRecords.size());
+            long[] previous = {Long.MIN_VALUE};
+            int[] count = new int[1];
+            storage.forEachRecordAcrossPatients(ward, RecordTypeRegistry.SATURATION, 0, 100_000,
+                    (patientId, timestamp, value) -> {
+                        assertTrue(patientId == 7 || patientId == 3);
+                        assertTrue(timestamp >= previous[0]);
+                        previous[0] = timestamp;
+                        count[0]++;
+                    });
+            assertEquals(200, count[0]);
+            assertEquals(0, storage.getRecordsAcrossPatients("Unknown", 0, 100_000).size());
+        } finally {
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests range queries that span many time-partitioned chunks, which are
+     * decoded in parallel, and age expiry of whole partitions.
+     */
+    @Test
+    void testPartitionedChunksAndParallelRanges() {
+        DataStorage storage = DataStorage.getInstance();
+        for (boolean compression : new boolean[] {false, true}) {
+            storage.clear();
+            storage.setCompressionEnabled(compression);
+            storage.setTimePartition(60_000);
+            try {
+                long start = 1714374000000L;
+                for (int i = 0; i < 3 * 3600; i++) {
+                    storage.addPatientData(1, i, "ECG", start + i * 1000L);
+                    if (i % 60 == 0) {
+                        storage.addPatientData(1, -i, "HeartRate", start + i * 1000L + 1);
+                    }
+                }
+                Random random = new Random(29);
+                for (int q = 0; q < 20; q++) {
+                    long from = start + random.nextInt(3 * 3600) * 1000L - 500;
+                    long to = from + random.nextInt(2 * 3600) * 1000L;
+                    List<PatientRecord> records = storage.getRecords(1, from, to);
+                    int ecg = 0;
+                    long previous = Long.MIN_VALUE;
+                    for (PatientRecord record : records) {
+                        assertTrue(record.getTimestamp() >= previous);
+                        previous = record.getTimestamp();
+                        if (record.getRecordType().equals("ECG")) {
+                            assertEquals((record.getTimestamp() - start) / 1000.0, record.getMeasurementValue());
+                            ecg++;
+                        }
+                    }
+                    int expected = 0;
+                    for (int i = 0; i < 3 * 3600; i++) {
+                        if (start + i * 1000L >= from && start + i * 1000L <= to) {
+                            expected++;
+                        }
+                    }
+                    assertEquals(expected, ecg);
+                }
+
+                long before = storage.getMemoryUsage();
+                storage.setRetentionPolicy(new RetentionPolicy(30 * 60_000L, 0));
+                // Age is measured per series: the newest ECG record is at 10,799 s, the newest HeartRate at 10,740 s
+                List<PatientRecord> kept = storage.getRecords(1, 0, Long.MAX_VALUE);
+                assertEquals(start + 8_940_001L, kept.get(0).getTimestamp());
+                assertEquals(1801 + 31, kept.size());
+                assertTrue(storage.getMemoryUsage() < (compression ? before : before / 3));
+            } finally {
+                storage.setRetentionPolicy(RetentionPolicy.unlimited());
+                storage.setTimePartition(3_600_000);
+                storage.setCompressionEnabled(false);
+                storage.clear();
+            }
+        }
+    }
+
+    /**
+     * Tests that unsorted batches are stored exactly like the same records
+     * added one at a time. IngestBenchmark compares the throughput of the
+     * two paths.
+     */
+    @Test
+    void testBatchIngestMatchesPerRecordPath() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        int count = 200_000;
+        int[] patientIds = new int[count];
+        long[] timestamps = new long[count];
+        int[] typeCodes = new int[count];
+        double[] values = new double[count];
+        int[] types = {RecordTypeRegistry.HEART_RATE, RecordTypeRegistry.ECG, RecordTypeRegistry.SATURATION};
+        Random random = new Random(18);
+        for (int i = 0; i < count; i++) {
+            patientIds[i] = 1 + random.nextInt(100);
+            timestamps[i] = i / 4 + random.nextInt(8); // Mostly ascending, with late records
+            typeCodes[i] = types[random.nextInt(types.length)];
+            values[i] = random.nextGaussian();
+        }
+        try {
+            int batchSize = 8192; // As FileDataReader uses
+            int[] batchPatients = new int[batchSize];
+            long[] batchTimestamps = new long[batchSize];
+            int[] batchTypes = new int[batchSize];
+            double[] batchValues = new double[batchSize];
+            for (int i = 0; i < count; i++) {
+                storage.addPatientData(patientIds[i], values[i], typeCodes[i], timestamps[i]);
+            }
+            List<List<PatientRecord>> expected = new ArrayList<>();
+            for (int id = 1; id <= 100; id++) {
+                expected.add(storage.getRecords(id, 0, Long.MAX_VALUE));
+            }
+
+            storage.clear();
+            for (int offset = 0; offset < count; offset += batchSize) {
+                int size = Math.min(batchSize, count - offset);
+                System.arraycopy(patientIds, offset, batchPatients, 0, size);
+                System.arraycopy(timestamps, offset, batchTimestamps, 0, size);
+                System.arraycopy(typeCodes, offset, batchTypes, 0, size);
+                System.arraycopy(values, offset, batchValues, 0, size);
+                storage.addPatientData(batchPatients, batchTimestamps, batchTypes, batchValues, size);
+            }
+            // Records of different types at the same timestamp may come back in either order
+            Comparator<PatientRecord> byTime = Comparator.comparingLong(PatientRecord::getTimestamp)
+                    .thenComparing(PatientRecord::getRecordType)
+                    .thenComparingDouble(PatientRecord::getMeasurementValue);
+            for (int id = 1; id <= 100; id++) {
+                List<PatientRecord> actual = new ArrayList<>(storage.getRecords(id, 0, Long.MAX_VALUE));
+                List<PatientRecord> want = new ArrayList<>(expected.get(id - 1));
+                actual.sort(byTime);
+                want.sort(byTime);
+                assertEquals(want.size(), actual.size());
+                for (int i = 0; i < want.size(); i++) {
+                    assertEquals(want.get(i).getRecordType(), actual.get(i).getRecordType());
+                    assertEquals(want.get(i).getTimestamp(), actual.get(i).getTimestamp());
+                    assertEquals(want.get(i).getMeasurementValue(), actual.get(i).getMeasurementValue());
+                }
+                for (int type : types) {
+                    assertEquals(storage.aggregate(id, type, 0, Long.MAX_VALUE, AggregateKind.SUM),
+                            expected.get(id - 1).stream()
+                                    .filter(r -> r.getRecordType().equals(RecordTypeRegistry.labelOf(type)))
+                                    .mapToDouble(PatientRecord::getMeasurementValue).sum(), 1e-9);
+                }
+            }
+
+            storage.addPatientData(patientIds, timestamps, typeCodes, values, 0);
+            assertThrows(IllegalArgumentException.class,
+                    () -> storage.addPatientData(patientIds, timestamps, typeCodes, new double[1], 2));
+        } finally {
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that late records within the lateness bound are merged into
+     * place and counted, and that older ones are dropped behind the watermark.
+     */
+    @Test
+    void testLatenessBoundAndWatermarks() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        try {
+            assertEquals(Long.MIN_VALUE, storage.getWatermark(1, "HeartRate"));
+            storage.setLatenessBound(100);
+            storage.addPatientData(1, 1.0, "HeartRate", 1000);
+            storage.addPatientData(1, 2.0, "HeartRate", 1050);
+            assertEquals(950, storage.getWatermark(1, "HeartRate"));
+            storage.addPatientData(1, 3.0, "HeartRate", 990); // Late, within the bound
+            storage.addPatientData(1, 4.0, "HeartRate", 900); // Behind the watermark
+            storage.addPatientData(1, 5.0, "HeartRate", 1050); // Same timestamp is not late
+            assertEquals(1, storage.getLateRecordCount());
+            assertEquals(1, storage.getDroppedRecordCount());
+            List<PatientRecord> records = storage.getRecords(1, 0, Long.MAX_VALUE);
+            assertEquals(4, records.size());
+            assertEquals(990, records.get(0).getTimestamp());
+            assertEquals(1050, records.get(3).getTimestamp());
+            assertEquals(5.0, records.get(3).getMeasurementValue());
+
+            // A shuffled stream within the bound is stored complete and sorted, across many chunks
+            Random random = new Random(19);
+            int count = 20_000;
+            for (int i = 0; i < count; i++) {
+                storage.addPatientData(2, i, "ECG", 10 * i + random.nextInt(900));
+            }
+            List<PatientRecord> ecg = storage.getRecords(2, 0, Long.MAX_VALUE);
+            long late = storage.getLateRecordCount() - 1;
+            assertTrue(late > 0);
+            assertEquals(count - storage.getDroppedRecordCount() + 1, ecg.size());
+            for (int i = 1; i < ecg.size(); i++) {
+                assertTrue(ecg.get(i - 1).getTimestamp() <= ecg.get(i).getTimestamp());
+            }
+
+            storage.setLatenessBound(0);
+            storage.addPatientData(1, 6.0, "HeartRate", 10);
+            assertEquals(5, storage.getRecords(1, 0, Long.MAX_VALUE).size());
+            assertEquals(Long.MIN_VALUE, storage.getWatermark(1, "HeartRate"));
+            assertThrows(IllegalArgumentException.class, () -> storage.setLatenessBound(-1));
+            storage.clear();
+            assertEquals(0, storage.getLateRecordCount());
+        } finally {
+            storage.setLatenessBound(0);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that repeats of recent records are rejected and counted, and
+     * that the filter remembers exactly the last 64 distinct records.
+     */
+    @Test
+    void testDeduplication() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        try {
+            storage.setDeduplicationEnabled(true);
+            storage.addPatientData(1, 70.0, "HeartRate", 1000);
+            storage.addPatientData(1, 70.0, "HeartRate", 1000);
+            storage.addPatientData(1, 71.0, "HeartRate", 1000); // Same time, other value
+            storage.addPatientData(1, 70.0, "ECG", 1000); // Other type
+            storage.addPatientData(2, 70.0, "HeartRate", 1000); // Other patient
+            assertEquals(1, storage.getDuplicateRecordCount());
+            assertEquals(3, storage.getRecords(1, 0, Long.MAX_VALUE).size());
+
+            // Two redundant feeds, the second lagging by up to 40 records
+            int count = 5000;
+            for (int i = 0; i < count + 40; i++) {
+                if (i < count) {
+                    storage.addPatientData(3, i * 0.5, "Saturation", 10L * i);
+                }
+                int lagged = i - 40 + (i % 7);
+                if (lagged >= 0 && lagged < count) {
+                    storage.addPatientData(3, lagged * 0.5, "Saturation", 10L * lagged);
+                }
+            }
+            assertEquals(count, storage.getRecords(3, 0, Long.MAX_VALUE).size());
+
+            // Against a model that keeps the last 64 distinct keys
+            storage.clear();
+            Random random = new Random(20);
+            LinkedHashSet<Long> window = new LinkedHashSet<>();
+            int accepted = 0;
+            for (int i = 0; i < 50_000; i++) {
+                long timestamp = random.nextInt(200);
+                double value = random.nextInt(2);
+                long key = timestamp * 2 + (long) value;
+                if (window.add(key)) {
+                    accepted++;
+                    if (window.size() > 64) {
+                        window.remove(window.iterator().next());
+                    }
+                }
+                storage.addPatientData(4, value, "ECG", timestamp);
+            }
+            assertEquals(accepted, storage.getRecords(4, 0, Long.MAX_VALUE).size());
+            assertEquals(50_000 - accepted, storage.getDuplicateRecordCount());
+
+            storage.setDeduplicationEnabled(false);
+            storage.addPatientData(1, 70.0, "HeartRate", 1000);
+            storage.addPatientData(1, 70.0, "HeartRate", 1000);
+            assertEquals(2, storage.getRecords(1, 0, Long.MAX_VALUE).size());
+        } finally {
+            storage.setDeduplicationEnabled(false);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that cached windows match uncached reads while records stream
+     * in, arrive late and expire, that appends extend cached windows instead
+     * of invalidating them, and that the cache stays within its budget.
+     */
+    @Test
+    void testQueryCacheTracksAppends() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        try {
+            assertNull(storage.getQueryCacheStats());
+            assertThrows(IllegalArgumentException.class, () -> storage.setQueryCacheBudget(-1));
+            storage.setQueryCacheBudget(1 << 20);
+            RetentionPolicy[] policies = {RetentionPolicy.unlimited(), new RetentionPolicy(0, 1000),
+                    new RetentionPolicy(60_000, 0)};
+            for (RetentionPolicy policy : policies) {
+                storage.clear();
+                storage.setRetentionPolicy(policy);
+                Random random = new Random(22);
+                long now = 0;
+                for (int round = 0; round < 200; round++) {
+                    for (int i = random.nextInt(50); i > 0; i--) {
+                        now += 100;
+                        boolean late = random.nextInt(100) == 0;
+                        long timestamp = late ? now - random.nextInt(10_000) : now;
+                        storage.addPatientData(1, timestamp, random.nextBoolean() ? "HeartRate" : "ECG", timestamp);
+                    }
+                    long[][] windows = {{400_000, Long.MAX_VALUE}, {0, Long.MAX_VALUE}, {5_000, 20_000}};
+                    for (long[] window : windows) {
+                        List<PatientRecord> cached = storage.getRecords(1, window[0], window[1]);
+                        List<PatientRecord> expected = storage.getAllPatients().get(0).getRecords(window[0], window[1]);
+                        assertEquals(expected.size(), cached.size());
+                        for (int i = 0; i < expected.size(); i++) {
+                            assertEquals(expected.get(i).getTimestamp(), cached.get(i).getTimestamp());
+                            assertEquals(expected.get(i).getMeasurementValue(), cached.get(i).getMeasurementValue());
+                        }
+                    }
+                }
+            }
+            QueryCacheStats stats = storage.getQueryCacheStats();
+            assertTrue(stats.getHitRate() > 0.5, "appends extend cached windows");
+            assertTrue(stats.getInvalidations() > 0, "late records invalidate cached windows");
+            assertEquals(6, stats.getEntries()); // Three windows of two record types
+            assertTrue(stats.getMemoryBytes() > 0 && stats.getMemoryBytes() <= stats.getMaxBytes());
+
+            // A budget smaller than the windows evicts the least recently used ones
+            storage.clear();
+            storage.setRetentionPolicy(RetentionPolicy.unlimited());
+            storage.setQueryCacheBudget(20_000);
+            for (int patientId = 1; patientId <= 10; patientId++) {
+                for (int i = 0; i < 100; i++) {
+                    storage.addPatientData(patientId, i, "ECG", i);
+                }
+                assertEquals(100, storage.getRecords(patientId, 0, Long.MAX_VALUE).size());
+            }
+            stats = storage.getQueryCacheStats();
+            assertTrue(stats.getEvictions() > 0);
+            assertTrue(stats.getMemoryBytes() <= 20_000);
+            assertEquals(100, storage.getRecords(10, 0, Long.MAX_VALUE).size());
+            assertEquals(1, storage.getQueryCacheStats().getHits());
+        } finally {
+            storage.setQueryCacheBudget(0);
+            storage.setRetentionPolicy(RetentionPolicy.unlimited());
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that an as-of join pairs every record of the first type with the
+     * newest record of each other type within the tolerance, across sealed
+     * and compressed chunks, and matches a join computed from record lists.
+     */
+    @Test
+    void testAsOfJoin() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        try {
+            storage.addPatientData(1, 85.0, "SystolicPressure", 1000);
+            storage.addPatientData(1, 95.0, "Saturation", 900);
+            storage.addPatientData(1, 91.0, "Saturation", 1000);
+            storage.addPatientData(1, 88.0, "SystolicPressure", 2000);
+            storage.addPatientData(1, 84.0, "SystolicPressure", 5000);
+            List<String> rows = new ArrayList<>();
+            storage.joinAsOf(1, new String[] {"SystolicPressure", "Saturation", "HeartRate"}, 0, Long.MAX_VALUE,
+                    1000, (timestamp, values) -> rows.add(timestamp + ":" + values[0] + "," + values[1] + "," + values[2]));
+            assertEquals(List.of("1000:85.0,91.0,NaN", "2000:88.0,91.0,NaN", "5000:84.0,NaN,NaN"), rows);
+            assertThrows(IllegalArgumentException.class, () -> storage.joinAsOf(1, new int[] {1}, 0, 1, 0,
+                    (timestamp, values) -> { }));
+            assertThrows(IllegalArgumentException.class, () -> storage.joinAsOf(7, new int[] {1, 2}, 0, 1, -1,
+                    (timestamp, values) -> { }));
+
+            storage.clear();
+            storage.setCompressionEnabled(true);
+            Random random = new Random(23);
+            String[] types = {"SystolicPressure", "DiastolicPressure", "Saturation"};
+            for (int i = 0; i < 20_000; i++) {
+                String type = types[random.nextInt(types.length)];
+                storage.addPatientData(2, random.nextInt(200), type, i * 10L + random.nextInt(10));
+            }
+            List<List<PatientRecord>> series = new ArrayList<>();
+            for (String type : types) {
+                List<PatientRecord> records = new ArrayList<>(storage.getRecords(2, 0, Long.MAX_VALUE));
+                records.removeIf(record -> !record.getRecordType().equals(type));
+                series.add(records);
+            }
+            long start = 30_000;
+            long end = 150_000;
+            long tolerance = 25;
+            List<String> expected = new ArrayList<>();
+            for (PatientRecord record : series.get(0)) {
+                long timestamp = record.getTimestamp();
+                if (timestamp < start || timestamp > end) {
+                    continue;
+                }
+                StringBuilder row = new StringBuilder(timestamp + ":" + record.getMeasurementValue());
+                for (int k = 1; k < types.length; k++) {
+                    double value = Double.NaN;
+                    for (PatientRecord other : series.get(k)) {
+                        if (other.getTimestamp() > timestamp) {
+                            break;
+                        }
+                        value = other.getTimestamp() >= timestamp - tolerance ? other.getMeasurementValue() : Double.NaN;
+                    }
+                    row.append(',').append(value);
+                }
+                expected.add(row.toString());
+            }
+            List<String> joined = new ArrayList<>();
+            storage.joinAsOf(2, types, start, end, tolerance, (timestamp, values) -> {
+                StringBuilder row = new StringBuilder(timestamp + ":" + values[0]);
+                for (int k = 1; k < values.length; k++) {
+                    row.append(',').append(values[k]);
+                }
+                joined.add(row.toString());
+            });
+            assertEquals(expected, joined);
+        } finally {
+            storage.setCompressionEnabled(false);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that value predicates evaluated in the storage return exactly
+     * the records a filter over all records would, with and without
+     * compression, across sealed chunks that match fully, partly or not at all.
+     */
+    @Test
+    void testValuePredicateQueries() {
+        DataStorage storage = DataStorage.getInstance();
+        try {
+            assertTrue(ValuePredicate.lessThan(92).test(91.9));
+            assertFalse(ValuePredicate.lessThan(92).test(92));
+            assertTrue(ValuePredicate.atMost(92).test(92));
+            assertFalse(ValuePredicate.greaterThan(92).test(92));
+            assertTrue(ValuePredicate.atLeast(92).test(92));
+            assertTrue(ValuePredicate.between(60, 120).test(120));
+            assertTrue(ValuePredicate.outside(60, 120).test(59));
+            assertFalse(ValuePredicate.outside(60, 120).test(Double.NaN));
+            assertThrows(IllegalArgumentException.class, () -> ValuePredicate.between(2, 1));
+
+            ValuePredicate[] predicates = {ValuePredicate.lessThan(92), ValuePredicate.outside(90, 99),
+                    ValuePredicate.between(95, 97), ValuePredicate.greaterThan(200)};
+            for (boolean compressed : new boolean[] {false, true}) {
+                storage.clear();
+                storage.setCompressionEnabled(compressed);
+                Random random = new Random(24);
+                for (int i = 0; i < 30_000; i++) {
+                    int patientId = 1 + random.nextInt(5);
+                    // Long calm stretches, so that whole chunks can be skipped or accepted
+                    double value = (i / 2000) % 3 == 0 ? 96 : 85 + random.nextInt(15);
+                    if (random.nextInt(1000) == 0) {
+                        value = Double.NaN;
+                    }
+                    storage.addPatientData(patientId, value, "Saturation", i * 100L);
+                }
+                int[] patients = {1, 3, 4};
+                for (ValuePredicate predicate : predicates) {
+                    List<PatientRecord> expected = new ArrayList<>();
+                    for (PatientRecord record : storage.getRecordsAcrossPatients(patients, "Saturation", 100_000,
+                            2_500_000)) {
+                        if (predicate.test(record.getMeasurementValue())) {
+                            expected.add(record);
+                        }
+                    }
+                    List<PatientRecord> matched = storage.getRecordsAcrossPatients(patients, "Saturation", 100_000,
+                            2_500_000, predicate);
+                    assertEquals(expected.size(), matched.size());
+                    for (int i = 0; i < expected.size(); i++) {
+                        assertEquals(expected.get(i).getPatientId(), matched.get(i).getPatientId());
+                        assertEquals(expected.get(i).getTimestamp(), matched.get(i).getTimestamp());
+                        assertEquals(expected.get(i).getMeasurementValue(), matched.get(i).getMeasurementValue());
+                    }
+                    int[] count = {0};
+                    storage.forEachRecord(3, RecordTypeRegistry.SATURATION, 0, Long.MAX_VALUE, predicate,
+                            (timestamp, value) -> {
+                                assertTrue(predicate.test(value));
+                                count[0]++;
+                            });
+                    assertEquals(storage.getAllPatients().stream().filter(p -> p.getPatientId() == 3).findFirst()
+                            .get().getRecords(0, Long.MAX_VALUE).stream()
+                            .filter(r -> predicate.test(r.getMeasurementValue())).count(), count[0]);
+                }
+            }
+            assertThrows(IllegalArgumentException.class, () -> storage.getRecordsAcrossPatients(null, "Saturation",
+                    0, 1, null));
+        } finally {
+            storage.setCompressionEnabled(false);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that finding the patients with a matching record in a window
+     * agrees with scanning every record, for windows that cut through
+     * sealed chunks and for predicates that chunk extremes do not decide.
+     */
+    @Test
+    void testFindPatientsWithMatchingRecords() {
+        DataStorage storage = DataStorage.getInstance();
+        try {
+            ValuePredicate[] predicates = {ValuePredicate.outside(50, 120), ValuePredicate.between(80.5, 81.5),
+                    ValuePredicate.lessThan(45), ValuePredicate.atLeast(1000)};
+            for (boolean compressed : new boolean[] {false, true}) {
+                storage.clear();
+                storage.setCompressionEnabled(compressed);
+                Random random = new Random(25);
+                for (int patientId = 1; patientId <= 200; patientId++) {
+                    for (int i = 0; i < 3000; i++) {
+                        double heartRate = 60 + random.nextInt(40);
+                        if (random.nextInt(30_000) == 0) {
+                            heartRate = random.nextBoolean() ? 40 : 130; // A rare episode
+                        }
+                        storage.addPatientData(patientId, heartRate, "HeartRate", i * 1000L);
+                    }
+                    if (patientId % 10 == 0) {
+                        storage.addPatientData(patientId, 130, "Saturation", 0); // Other types do not count
+                    }
+                }
+                storage.addPatientData(7, 80.9, "HeartRate", 1_234_567);
+                storage.addPatientData(201, 99, "Saturation", 0); // No heart rate at all
+
+                long[][] windows = {{0, Long.MAX_VALUE}, {1_000_500, 2_000_200}, {2_999_000, 5_000_000}, {-5, -1}};
+                for (ValuePredicate predicate : predicates) {
+                    for (long[] window : windows) {
+                        List<Integer> expected = new ArrayList<>();
+                        for (int patientId = 1; patientId <= 201; patientId++) {
+                            for (PatientRecord record : storage.getRecords(patientId, window[0], window[1])) {
+                                if (record.getRecordType().equals("HeartRate")
+                                        && predicate.test(record.getMeasurementValue())) {
+                                    expected.add(patientId);
+                                    break;
+                                }
+                            }
+                        }
+                        int[] found = storage.findPatients("HeartRate", window[0], window[1], predicate);
+                        assertEquals(expected.toString(), Arrays.toString(found));
+                    }
+                }
+            }
+            assertEquals(0, storage.findPatients("Unknown", 0, 1, ValuePredicate.atLeast(0)).length);
+            assertThrows(IllegalArgumentException.class, () -> storage.findPatients("HeartRate", 0, 1, null));
+        } finally {
+            storage.setCompressionEnabled(false);
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that the value and time ranges used to skip patients and hot
+     * samples never rule out a match: patients in several ID blocks, series
+     * short enough to have only hot samples, NaN values, samples dropped by
+     * retention and late samples, and a cleared storage.
+     */
+    @Test
+    void testFindPatientsSkipsByValueAndTimeRanges() {
+        DataStorage storage = DataStorage.getInstance();
+        try {
+            storage.clear();
+            storage.setRetentionPolicy(new RetentionPolicy(0, 100));
+            Random random = new Random(250);
+            int[] patientIds = new int[120];
+            for (int p = 0; p < patientIds.length; p++) {
+                patientIds[p] = p < 100 ? p * 3 : 5_000_000 + p; // Dense blocks, then sparse ones
+                int base = 40 + (p % 20) * 5;
+                int samples = p % 4 == 0 ? 400 : 30; // Over the retention limit, or hot samples only
+                for (int i = 0; i < samples; i++) {
+                    double value = base + random.nextInt(5);
+                    if (i == 0 && p % 4 == 0) {
+                        value = 300; // Dropped by retention later
+                    }
+                    storage.addPatientData(patientIds[p], value, "HeartRate", p * 100L + i * 10L);
+                }
+                if (p % 7 == 0) {
+                    storage.addPatientData(patientIds[p], Double.NaN, "HeartRate", p * 100L + 5);
+                }
+                if (p % 5 == 0) {
+                    storage.addPatientData(patientIds[p], base - 30, "HeartRate", p * 100L + 15); // Late
+                }
+            }
+
+            ValuePredicate[] predicates = {ValuePredicate.between(60, 64), ValuePredicate.lessThan(20),
+                    ValuePredicate.atLeast(250), ValuePredicate.outside(40, 140), ValuePredicate.atLeast(0)};
+            long[][] windows = {{Long.MIN_VALUE, Long.MAX_VALUE}, {0, 2_000}, {5_000, 5_300}, {20_000, 30_000}};
+            for (ValuePredicate predicate : predicates) {
+                for (long[] window : windows) {
+                    List<Integer> expected = new ArrayList<>();
+                    for (int patientId : patientIds) {
+                        for (PatientRecord record : storage.getRecords(patientId, window[0], window[1])) {
+                            if (predicate.test(record.getMeasurementValue())) {
+                                expected.add(patientId);
+                                break;
+                            }
+                        }
+                    }
+                    int[] found = storage.findPatients("HeartRate", window[0], window[1], predicate);
+                    assertEquals(expected.toString(), Arrays.toString(found));
+                }
+            }
+            assertEquals(0, storage.findPatients("HeartRate", 10, 5, ValuePredicate.atLeast(0)).length);
+
+            storage.clear();
+            storage.addPatientData(4, 70, "HeartRate", 1000);
+            assertArrayEquals(new int[] {4},
+                    storage.findPatients("HeartRate", Long.MIN_VALUE, Long.MAX_VALUE, ValuePredicate.atLeast(0)));
+        } finally {
+            storage.setRetentionPolicy(RetentionPolicy.unlimited());
+            storage.clear();
+        }
+    }
 }
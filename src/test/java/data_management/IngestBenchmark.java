@@ -0,0 +1,138 @@
+package data_management;
+
+import com.data_management.DataStorage;
+import com.data_management.RecordTypeRegistry;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the ingest throughput of DataStorage. Not a test: the numbers
+ * depend on the machine, so the tests only check that the paths agree.
+ * Run its main method from the test classpath.
+ */
+public final class IngestBenchmark {
+    private static final int ROUNDS = 5; // The first rounds warm up the JIT
+
+    private IngestBenchmark() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        compareBatchAndPerRecord(1_000_000);
+        concurrentWriters(100_000);
+    }
+
+    /**
+     * Prints the throughput of adding unsorted records one at a time and
+     * in batches of 8192, as FileDataReader does.
+     *
+     * @param count The number of records added per round.
+     */
+    static void compareBatchAndPerRecord(int count) {
+        DataStorage storage = DataStorage.getInstance();
+        int[] patientIds = new int[count];
+        long[] timestamps = new long[count];
+        int[] typeCodes = new int[count];
+        double[] values = new double[count];
+        int[] types = {RecordTypeRegistry.HEART_RATE, RecordTypeRegistry.ECG, RecordTypeRegistry.SATURATION};
+        Random random = new Random(18);
+        for (int i = 0; i < count; i++) {
+            patientIds[i] = 1 + random.nextInt(100);
+            timestamps[i] = i / 4 + random.nextInt(8); // Mostly ascending, with late records
+            typeCodes[i] = types[random.nextInt(types.length)];
+            values[i] = random.nextGaussian();
+        }
+        int batchSize = 8192;
+        int[] batchPatients = new int[batchSize];
+        long[] batchTimestamps = new long[batchSize];
+        int[] batchTypes = new int[batchSize];
+        double[] batchValues = new double[batchSize];
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                storage.clear();
+                long begin = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    storage.addPatientData(patientIds[i], values[i], typeCodes[i], timestamps[i]);
+                }
+                long perRecord = System.nanoTime() - begin;
+
+                storage.clear();
+                begin = System.nanoTime();
+                for (int offset = 0; offset < count; offset += batchSize) {
+                    int size = Math.min(batchSize, count - offset);
+                    System.arraycopy(patientIds, offset, batchPatients, 0, size);
+                    System.arraycopy(timestamps, offset, batchTimestamps, 0, size);
+                    System.arraycopy(typeCodes, offset, batchTypes, 0, size);
+                    System.arraycopy(values, offset, batchValues, 0, size);
+                    storage.addPatientData(batchPatients, batchTimestamps, batchTypes, batchValues, size);
+                }
+                long batched = System.nanoTime() - begin;
+                System.out.printf("round %d: per-record %.0f records/s, batch %.0f records/s%n", round,
+                        count / (perRecord / 1e9), count / (batched / 1e9));
+            }
+        } finally {
+            storage.clear();
+        }
+    }
+
+    /**
+     * Prints the throughput of 1, 2, 4 and 8 writer threads adding records
+     * for 50 overlapping patients, each thread to its own record type, while
+     * a reader queries them.
+     *
+     * @param recordsPerThread The number of records each writer adds.
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    static void concurrentWriters(int recordsPerThread) throws InterruptedException {
+        DataStorage storage = DataStorage.getInstance();
+        int patients = 50;
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int writers = 1; writers <= 8; writers *= 2) {
+                    storage.clear();
+                    AtomicBoolean writing = new AtomicBoolean(true);
+                    Thread reader = new Thread(() -> {
+                        while (writing.get()) {
+                            for (int id = 1; id <= patients; id++) {
+                                storage.getRecords(id, 0, Long.MAX_VALUE);
+                            }
+                        }
+                    });
+                    reader.start();
+
+                    CountDownLatch start = new CountDownLatch(1);
+                    Thread[] threads = new Thread[writers];
+                    for (int t = 0; t < writers; t++) {
+                        final int threadId = t;
+                        threads[t] = new Thread(() -> {
+                            try {
+                                start.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            String recordType = "Signal" + threadId;
+                            for (int i = 0; i < recordsPerThread; i++) {
+                                storage.addPatientData(1 + (i % patients), i, recordType, threadId * 1_000_000L + i);
+                            }
+                        });
+                        threads[t].start();
+                    }
+
+                    long begin = System.nanoTime();
+                    start.countDown();
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    long elapsed = System.nanoTime() - begin;
+                    writing.set(false);
+                    reader.join();
+                    System.out.printf("round %d: %d writer(s) %.0f records/s%n", round, writers,
+                            (double) writers * recordsPerThread / (elapsed / 1e9));
+                }
+            }
+        } finally {
+            storage.clear();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.junit.jupiter.api.Test;
 import com.data_management.Patient;
 import com.data_management.PatientRecord;
 
+import java.util.ArrayList;
 import java.util.List;
 
 class PatientTest {
@@ -63,4 +64,85 @@ class PatientTest {
         // Verify that the result is an empty list
         assertTrue(records.isEmpty());
     }
+
+    /**
+     * Tests that records of different types are returned in timestamp order.
+     */
+    @Test
+    void testGetRecordsMergesRecordTypesByTimestamp() {
+        Patient patient = new Patient(1);
+
+        patient.addRecord(120.0, "SystolicPressure", 1714376789050L);
+        patient.addRecord(98.0, "Saturation", 1714376789051L);
+        patient.addRecord(121.0, "SystolicPressure", 1714376789052L);
+
+        List<PatientRecord> records = patient.getRecords(0, Long.MAX_VALUE);
+
+        assertEquals(3, records.size());
+        assertEquals("SystolicPressure", records.get(0).getRecordType());
+        assertEquals("Saturation", records.get(1).getRecordType());
+        assertEquals(121.0, records.get(2).getMeasurementValue());
+        assertEquals(1, records.get(2).getPatientId());
+    }
+
+    /**
+     * Tests that forEachRecord visits only the requested type and time range.
+     */
+    @Test
+    void testForEachRecordScansOneType() {
+        Patient patient = new Patient(1);
+
+        patient.addRecord(100.0, "HeartRate", 1000L);
+        patient.addRecord(97.0, "Saturation", 1500L);
+        patient.addRecord(110.0, "HeartRate", 2000L);
+        patient.addRecord(120.0, "HeartRate", 3000L);
+
+        List<Double> values = new ArrayList<>();
+        patient.forEachRecord("HeartRate", 1000L, 2000L, (timestamp, value) -> values.add(value));
+
+        assertEquals(List.of(100.0, 110.0), values);
+        assertEquals(3, patient.getRecordCount("HeartRate"));
+        assertEquals(0, patient.getRecordCount("ECG"));
+    }
+
+    /**
+     * Tests that out-of-order records are merged into timestamp order.
+     */
+    @Test
+    void testOutOfOrderRecordsAreSorted() {
+        Patient patient = new Patient(1);
+
+        patient.addRecord(3.0, "ECG", 3000L);
+        patient.addRecord(1.0, "ECG", 1000L);
+        patient.addRecord(4.0, "ECG", 4000L);
+        patient.addRecord(2.0, "ECG", 2000L);
+        patient.addRecord(2.5, "ECG", 2000L);
+
+        List<PatientRecord> records = patient.getRecords(0, Long.MAX_VALUE);
+
+        assertEquals(5, records.size());
+        assertEquals(1.0, records.get(0).getMeasurementValue());
+        assertEquals(2.0, records.get(1).getMeasurementValue());
+        assertEquals(2.5, records.get(2).getMeasurementValue());
+        assertEquals(3.0, records.get(3).getMeasurementValue());
+        assertEquals(4.0, records.get(4).getMeasurementValue());
+    }
+
+    /**
+     * Tests that range boundaries are inclusive on both ends.
+     */
+    @Test
+    void testGetRecordsRangeIsInclusive() {
+        Patient patient = new Patient(1);
+        for (long t = 0; t < 100; t++) {
+            patient.addRecord(t, "HeartRate", t * 10);
+        }
+
+        List<PatientRecord> records = patient.getRecords(200, 300);
+
+        assertEquals(11, records.size());
+        assertEquals(200L, records.get(0).getTimestamp());
+        assertEquals(300L, records.get(10).getTimestamp());
+        assertTrue(patient.getRecords(300, 200).isEmpty());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+package data_management;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import com.data_management.DataStorage;
+import com.data_management.Patient;
+import com.data_management.RecordTypeRegistry;
+
+class RecordTypeRegistryTest {
+
+    /**
+     * Tests that the same label always maps to the same code and back.
+     */
+    @Test
+    void testRegisterIsStable() {
+        int code = RecordTypeRegistry.register("RegistryTestLabel");
+
+        assertEquals(code, RecordTypeRegistry.register("RegistryTestLabel"));
+        assertEquals(code, RecordTypeRegistry.codeOf("RegistryTestLabel"));
+        assertEquals("RegistryTestLabel", RecordTypeRegistry.labelOf(code));
+        assertEquals(RecordTypeRegistry.SATURATION, RecordTypeRegistry.codeOf("Saturation"));
+    }
+
+    /**
+     * Tests that looking up an unknown label does not assign a code.
+     */
+    @Test
+    void testCodeOfUnknownLabel() {
+        int size = RecordTypeRegistry.size();
+
+        assertEquals(-1, RecordTypeRegistry.codeOf("NeverRegisteredLabel"));
+        assertEquals(size, RecordTypeRegistry.size());
+        assertThrows(IllegalArgumentException.class, () -> RecordTypeRegistry.labelOf(-1));
+    }
+
+    /**
+     * Tests that records added by code can be read back by label and vice versa.
+     */
+    @Test
+    void testCodesAndLabelsAddressTheSameSeries() {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+
+        storage.addPatientData(1, 97.0, RecordTypeRegistry.SATURATION, 1000L);
+        storage.addPatientData(1, 96.0, "Saturation", 2000L);
+
+        Patient patient = storage.getAllPatients().get(0);
+        assertEquals(2, patient.getRecordCount("Saturation"));
+        assertEquals(2, patient.getRecordCount(RecordTypeRegistry.SATURATION));
+        assertEquals("Saturation", storage.getRecords(1, 0, Long.MAX_VALUE).get(0).getRecordType());
+        storage.clear();
+    }
+}
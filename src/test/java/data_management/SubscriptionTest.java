@@ -0,0 +1,356 @@
+package data_management;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import com.data_management.DataStorage;
+import com.data_management.FsyncPolicy;
+import com.data_management.PatientRecord;
+import com.data_management.RecordTypeRegistry;
+import com.data_management.RetentionPolicy;
+import com.data_management.RollupPoint;
+import com.data_management.RollupResolution;
+import com.data_management.SampleBatch;
+import com.data_management.Subscription;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SubscriptionTest {
+
+    /**
+     * Tests that a subscription receives only the records matching its
+     * filters, in the order they were added, until it is cancelled.
+     */
+    @Test
+    void testFilteredDeliveryInOrder() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        List<Long> timestamps = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        Subscription subscription = storage.subscribe(id -> id == 2, code -> code == RecordTypeRegistry.HEART_RATE,
+                batch -> {
+                    for (int i = 0; i < batch.size(); i++) {
+                        assertEquals(2, batch.getPatientId(i));
+                        assertEquals("HeartRate", batch.getRecordType(i));
+                        timestamps.add(batch.getTimestamp(i));
+                        values.add(batch.getValue(i));
+                    }
+                });
+        for (int i = 0; i < 5000; i++) {
+            storage.addPatientData(1 + i % 3, i, "HeartRate", i);
+            storage.addPatientData(2, -i, "Saturation", i);
+        }
+        assertTrue(subscription.awaitDelivery(10_000));
+        assertEquals(1667, timestamps.size());
+        for (int i = 0; i < timestamps.size(); i++) {
+            assertEquals(1 + 3L * i, timestamps.get(i).longValue());
+            assertEquals(1 + 3.0 * i, values.get(i).doubleValue());
+        }
+        assertEquals(1667, subscription.getDeliveredSamples());
+        assertEquals(0, subscription.getDroppedSamples());
+
+        subscription.cancel();
+        assertTrue(subscription.isCancelled());
+        storage.addPatientData(2, 1.0, "HeartRate", 10_000);
+        assertTrue(subscription.awaitDelivery(10_000));
+        assertEquals(1667, timestamps.size());
+    }
+
+    /**
+     * Tests that records added while the listener is busy are collected into
+     * one batch, and that concurrent writers lose nothing.
+     */
+    @Test
+    void testBatchingUnderConcurrentWriters() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger batches = new AtomicInteger();
+        AtomicInteger received = new AtomicInteger();
+        List<SampleBatch> seen = new ArrayList<>();
+        try {
+            Subscription subscription = storage.subscribe(null, null, batch -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                batches.incrementAndGet();
+                received.addAndGet(batch.size());
+                seen.add(batch);
+            }, executor);
+
+            Thread[] writers = new Thread[4];
+            for (int w = 0; w < writers.length; w++) {
+                int patientId = w + 1;
+                writers[w] = new Thread(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        storage.addPatientData(patientId, i, "ECG", i);
+                    }
+                });
+                writers[w].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            release.countDown();
+            assertTrue(subscription.awaitDelivery(10_000));
+
+            assertEquals(40_000, received.get());
+            assertTrue(batches.get() <= 2, "records added during a delivery are batched together");
+            long[] next = new long[5];
+            for (SampleBatch batch : seen) {
+                for (int i = 0; i < batch.size(); i++) {
+                    int patientId = batch.getPatientId(i);
+                    assertEquals(next[patientId]++, batch.getTimestamp(i), "per-patient order is kept");
+                }
+            }
+            SampleBatch last = seen.get(seen.size() - 1);
+            assertEquals(last.size(), last.toRecords().size());
+            assertEquals("ECG", last.toRecords().get(0).getRecordType());
+            subscription.cancel();
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Tests what is guaranteed when several threads write to the same patient
+     * and record type: every record is delivered once, and the records of
+     * each writer come in the order that writer added them.
+     */
+    @Test
+    void testConcurrentWritersToOneSeriesKeepPerWriterOrder() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        int writerCount = 4;
+        int perWriter = 5_000;
+        List<Double> delivered = new CopyOnWriteArrayList<>();
+        Subscription subscription = storage.subscribe(null, null, batch -> {
+            for (int i = 0; i < batch.size(); i++) {
+                delivered.add(batch.getValue(i));
+            }
+        });
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] writers = new Thread[writerCount];
+            for (int w = 0; w < writerCount; w++) {
+                int writer = w;
+                writers[w] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perWriter; i++) {
+                        // The value encodes the writer and its sequence number
+                        storage.addPatientData(1, writer * 1_000_000 + i, "ECG", i * writerCount + writer);
+                    }
+                });
+                writers[w].start();
+            }
+            start.countDown();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertTrue(subscription.awaitDelivery(10_000));
+
+            assertEquals(writerCount * perWriter, delivered.size());
+            int[] next = new int[writerCount];
+            for (double value : delivered) {
+                int writer = (int) value / 1_000_000;
+                assertEquals(next[writer]++, (int) value % 1_000_000, "per-writer order is kept");
+            }
+            assertEquals(writerCount * perWriter, storage.getRecords(1, 0, Long.MAX_VALUE).size());
+        } finally {
+            subscription.cancel();
+            storage.clear();
+        }
+    }
+
+    /**
+     * Tests that records dropped behind the watermark are neither delivered
+     * nor written to the write-ahead log, on the single and batch paths.
+     */
+    @Test
+    void testDroppedRecordsAreNotLoggedOrDelivered() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        Path log = Files.createTempFile("patients", ".wal");
+        List<Long> delivered = new ArrayList<>();
+        Subscription subscription = storage.subscribe(null, null, batch -> {
+            for (int i = 0; i < batch.size(); i++) {
+                delivered.add(batch.getTimestamp(i));
+            }
+        });
+        try {
+            storage.setLatenessBound(100);
+            storage.openWriteAheadLog(log, FsyncPolicy.NEVER, 0);
+            storage.addPatientData(1, 1.0, "HeartRate", 1000);
+            storage.addPatientData(1, 2.0, "HeartRate", 800); // Behind the watermark
+            storage.addPatientData(1, 3.0, "HeartRate", 950); // Late, within the bound
+            int code = RecordTypeRegistry.HEART_RATE;
+            storage.addPatientData(new int[] {1, 1, 1}, new long[] {700, 1100, 960}, new int[] {code, code, code},
+                    new double[] {4, 5, 6}, 3);
+            assertTrue(subscription.awaitDelivery(10_000));
+            assertEquals(List.of(1000L, 950L, 960L, 1100L), delivered);
+            assertEquals(2, storage.getDroppedRecordCount());
+            storage.closeWriteAheadLog();
+
+            storage.clear();
+            assertEquals(4, storage.openWriteAheadLog(log, FsyncPolicy.NEVER, 0));
+            assertEquals(4, storage.getRecords(1, 0, Long.MAX_VALUE).size());
+        } finally {
+            subscription.cancel();
+            storage.closeWriteAheadLog();
+            storage.setLatenessBound(0);
+            storage.clear();
+            Files.deleteIfExists(log);
+        }
+    }
+
+    /**
+     * Tests that a late record older than everything a count retention limit
+     * kept is dropped: it is not stored, not in getLastN or the rollups, and
+     * not delivered, whether it falls into a trimmed sealed chunk or behind
+     * hot samples that were dropped.
+     */
+    @Test
+    void testRecordsBehindRetentionAreNotDelivered() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        List<Double> delivered = new CopyOnWriteArrayList<>();
+        Subscription subscription = storage.subscribe(null, null, batch -> {
+            for (int i = 0; i < batch.size(); i++) {
+                delivered.add(batch.getValue(i));
+            }
+        });
+        try {
+            storage.setRollupsEnabled(true);
+            storage.setRetentionPolicy(new RetentionPolicy(0, 1500));
+            for (int i = 0; i < 5000; i++) {
+                storage.addPatientData(1, i, "ECG", i * 10L); // Seals chunks and trims the oldest kept one
+            }
+            assertTrue(subscription.awaitDelivery(10_000));
+            delivered.clear();
+            long rolledUp = rollupCount(storage, 1);
+            long dropped = storage.getDroppedRecordCount();
+            storage.addPatientData(1, -1.0, "ECG", 34_995); // Just before the oldest record kept, 35,000
+            storage.addPatientData(1, -1.0, "ECG", 34_985); // Before the newest record dropped, 34,990
+            storage.addPatientData(1, -3.0, "ECG", 40_005); // Late, but among the records kept
+            assertTrue(subscription.awaitDelivery(10_000));
+            assertEquals(List.of(-3.0), delivered);
+            assertEquals(dropped + 2, storage.getDroppedRecordCount());
+            assertEquals(rolledUp + 1, rollupCount(storage, 1));
+            assertNotStored(storage, 1, -1.0);
+
+            storage.setRetentionPolicy(new RetentionPolicy(0, 100));
+            for (int i = 0; i < 500; i++) {
+                storage.addPatientData(2, i, "ECG", i * 10L); // Trims hot samples only
+            }
+            assertTrue(subscription.awaitDelivery(10_000));
+            delivered.clear();
+            rolledUp = rollupCount(storage, 2);
+            storage.addPatientData(2, -2.0, "ECG", 3_995); // Just before the oldest record kept, 4,000
+            storage.addPatientData(2, -2.0, "ECG", 3_985); // Before the newest record dropped, 3,990
+            assertTrue(subscription.awaitDelivery(10_000));
+            assertEquals(List.of(), delivered);
+            assertEquals(dropped + 4, storage.getDroppedRecordCount());
+            assertEquals(rolledUp, rollupCount(storage, 2));
+            assertNotStored(storage, 2, -2.0);
+        } finally {
+            subscription.cancel();
+            storage.setRollupsEnabled(false);
+            storage.setRetentionPolicy(RetentionPolicy.unlimited());
+            storage.clear();
+        }
+    }
+
+    private static void assertNotStored(DataStorage storage, int patientId, double value) {
+        for (PatientRecord record : storage.getRecords(patientId, 0, Long.MAX_VALUE)) {
+            assertTrue(record.getMeasurementValue() != value);
+        }
+        for (PatientRecord record : storage.getLastN(patientId, "ECG", 2000)) {
+            assertTrue(record.getMeasurementValue() != value);
+        }
+    }
+
+    private static long rollupCount(DataStorage storage, int patientId) {
+        return storage.getRollups(patientId, RecordTypeRegistry.ECG, 0, Long.MAX_VALUE, RollupResolution.values()[0])
+                .stream().mapToLong(RollupPoint::getCount).sum();
+    }
+
+    /**
+     * Tests that repeats rejected by deduplication are neither delivered nor
+     * written to the write-ahead log, on the single and batch paths.
+     */
+    @Test
+    void testDuplicatesAreNotLoggedOrDelivered() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        Path log = Files.createTempFile("patients", ".wal");
+        AtomicInteger delivered = new AtomicInteger();
+        Subscription subscription = storage.subscribe(null, null, batch -> delivered.addAndGet(batch.size()));
+        try {
+            storage.setDeduplicationEnabled(true);
+            storage.openWriteAheadLog(log, FsyncPolicy.NEVER, 0);
+            storage.addPatientData(1, 1.0, "HeartRate", 1000);
+            storage.addPatientData(1, 1.0, "HeartRate", 1000); // Repeat
+            int code = RecordTypeRegistry.HEART_RATE;
+            storage.addPatientData(new int[] {1, 1, 1}, new long[] {1000, 2000, 2000}, new int[] {code, code, code},
+                    new double[] {1, 2, 2}, 3);
+            assertTrue(subscription.awaitDelivery(10_000));
+            assertEquals(2, delivered.get());
+            assertEquals(3, storage.getDuplicateRecordCount());
+            storage.closeWriteAheadLog();
+
+            storage.clear();
+            assertEquals(2, storage.openWriteAheadLog(log, FsyncPolicy.NEVER, 0));
+            assertEquals(2, storage.getRecords(1, 0, Long.MAX_VALUE).size());
+        } finally {
+            subscription.cancel();
+            storage.closeWriteAheadLog();
+            storage.setDeduplicationEnabled(false);
+            storage.clear();
+            Files.deleteIfExists(log);
+        }
+    }
+
+    /**
+     * Tests that clearing the storage keeps its subscriptions, which then
+     * receive the records added afterwards.
+     */
+    @Test
+    void testClearKeepsSubscriptions() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        List<PatientRecord> received = new CopyOnWriteArrayList<>();
+        Subscription subscription = storage.subscribe(null, null, batch -> received.addAll(batch.toRecords()));
+        try {
+            storage.addPatientData(1, 1.0, "ECG", 1);
+            assertTrue(subscription.awaitDelivery(10_000));
+            storage.clear();
+            assertFalse(subscription.isCancelled());
+            storage.addPatientData(1, 2.0, "ECG", 2);
+            assertTrue(subscription.awaitDelivery(10_000));
+            assertEquals(2, received.size());
+            assertEquals(2L, received.get(1).getTimestamp());
+        } finally {
+            subscription.cancel();
+            storage.clear();
+        }
+        assertTrue(subscription.isCancelled());
+        assertThrows(IllegalArgumentException.class, () -> storage.subscribe(null, null, null));
+    }
+}
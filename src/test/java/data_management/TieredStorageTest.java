@@ -0,0 +1,223 @@
+package data_management;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import com.data_management.DataStorage;
+import com.data_management.FsyncPolicy;
+import com.data_management.PatientRecord;
+import com.data_management.TieredStorageStats;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+class TieredStorageTest {
+
+    /**
+     * Tests that idle patients are spilled, read back through the cache and
+     * moved back into memory by a new record.
+     */
+    @Test
+    void testSpillPageInAndRestore() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        Path directory = Files.createTempDirectory("segments");
+        try {
+            for (int id = 1; id <= 10; id++) {
+                for (int i = 0; i < 1000; i++) {
+                    storage.addPatientData(id, id * 1000 + i, "HeartRate", i);
+                }
+            }
+            List<PatientRecord> before = storage.getRecords(3, 0, Long.MAX_VALUE);
+
+            storage.enableTieredStorage(directory, 60_000, 2);
+            assertEquals(0, storage.spillIdlePatients());
+            storage.disableTieredStorage();
+            storage.enableTieredStorage(directory, 200, 2);
+            Thread.sleep(300);
+            storage.spillIdlePatients(); // The background pass may have spilled them already
+            assertEquals(10, storage.getTieredStorageStats().getSpilledPatients());
+            assertEquals(0, storage.getAllPatients().size());
+
+            List<PatientRecord> after = storage.getRecords(3, 0, Long.MAX_VALUE);
+            assertEquals(before.size(), after.size());
+            for (int i = 0; i < before.size(); i++) {
+                assertEquals(before.get(i).getTimestamp(), after.get(i).getTimestamp());
+                assertEquals(before.get(i).getMeasurementValue(), after.get(i).getMeasurementValue());
+            }
+            storage.getRecords(3, 0, Long.MAX_VALUE);
+            assertEquals(4999.0, storage.getLatest(4, "HeartRate"));
+            storage.getRecords(5, 0, Long.MAX_VALUE); // Evicts patient 3 from the cache
+            storage.getRecords(3, 0, Long.MAX_VALUE);
+            TieredStorageStats stats = storage.getTieredStorageStats();
+            assertEquals(1, stats.getCacheHits());
+            assertEquals(4, stats.getCacheMisses());
+            assertEquals(10, stats.getSpilledPatients());
+            assertEquals(2, stats.getCachedPatients());
+
+            storage.addPatientData(3, -1, "HeartRate", 2000);
+            assertEquals(1001, storage.getRecords(3, 0, Long.MAX_VALUE).size());
+            stats = storage.getTieredStorageStats();
+            assertEquals(1, stats.getRestores());
+            assertEquals(9, stats.getSpilledPatients());
+            assertEquals(1, storage.getAllPatients().size());
+
+            storage.disableTieredStorage();
+            assertEquals(10, storage.getAllPatients().size());
+            assertEquals(1000, storage.getRecords(7, 0, Long.MAX_VALUE).size());
+            assertNull(storage.getTieredStorageStats());
+        } finally {
+            storage.disableTieredStorage();
+            storage.clear();
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Tests that writes during a spill pass are never lost.
+     */
+    @Test
+    void testWritesRacingSpillsAreKept() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        Path directory = Files.createTempDirectory("segments");
+        try {
+            storage.enableTieredStorage(directory, 1, 4);
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    storage.addPatientData(i % 50, i, "Saturation", i);
+                }
+            });
+            writer.start();
+            while (writer.isAlive()) {
+                storage.spillIdlePatients();
+            }
+            storage.disableTieredStorage();
+            for (int id = 0; id < 50; id++) {
+                assertEquals(400, storage.getRecords(id, 0, Long.MAX_VALUE).size());
+            }
+        } finally {
+            storage.disableTieredStorage();
+            storage.clear();
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Tests that reads racing spills and page-ins of patients with sparse
+     * IDs, which reuse the slots of the hash table, always return the
+     * patient that was asked for.
+     */
+    @Test
+    void testSparseIdsRacingSpillsReadTheirOwnPatient() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        Path directory = Files.createTempDirectory("segments");
+        int[] ids = new int[40];
+        for (int k = 0; k < ids.length; k++) {
+            ids[k] = (1 << 20) + k * 7919; // Outside the dense range
+        }
+        try {
+            storage.enableTieredStorage(directory, 1, 4);
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    int id = ids[i % ids.length];
+                    storage.addPatientData(id, id, "Saturation", i);
+                }
+            });
+            Thread spiller = new Thread(() -> {
+                while (writer.isAlive()) {
+                    try {
+                        storage.spillIdlePatients();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+            writer.start();
+            spiller.start();
+            int wrong = 0;
+            while (writer.isAlive()) {
+                for (int id : ids) {
+                    for (PatientRecord record : storage.getRecords(id, 0, Long.MAX_VALUE)) {
+                        wrong += record.getMeasurementValue() == id ? 0 : 1;
+                    }
+                }
+            }
+            writer.join();
+            spiller.join();
+            assertEquals(0, wrong);
+
+            storage.disableTieredStorage();
+            for (int id : ids) {
+                List<PatientRecord> records = storage.getRecords(id, 0, Long.MAX_VALUE);
+                assertEquals(20_000 / ids.length, records.size());
+                assertTrue(records.stream().allMatch(record -> record.getMeasurementValue() == id));
+            }
+        } finally {
+            storage.disableTieredStorage();
+            storage.clear();
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Tests that snapshots include spilled patients, so the write-ahead log
+     * can be cut after one without losing their records.
+     */
+    @Test
+    void testSnapshotIncludesSpilledPatients() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        Path directory = Files.createTempDirectory("segments");
+        Path snapshot = Files.createTempFile("patients", ".snapshot");
+        Path log = Files.createTempFile("patients", ".wal");
+        try {
+            storage.openWriteAheadLog(log, FsyncPolicy.NEVER, 0);
+            for (int id = 1; id <= 10; id++) {
+                for (int i = 0; i < 1000; i++) {
+                    storage.addPatientData(id, id * 1000 + i, "HeartRate", i);
+                }
+            }
+            storage.enableTieredStorage(directory, 200, 2);
+            Thread.sleep(300);
+            storage.spillIdlePatients();
+            assertEquals(10, storage.getTieredStorageStats().getSpilledPatients());
+            storage.addPatientData(3, -1, "HeartRate", 2000); // Moves patient 3 back into memory
+
+            assertEquals(10_001, storage.writeSnapshot(snapshot));
+            assertTrue(Files.size(log) < 100);
+            storage.closeWriteAheadLog();
+            storage.disableTieredStorage();
+            storage.clear();
+
+            assertEquals(10_001, storage.loadSnapshot(snapshot));
+            assertEquals(0, storage.openWriteAheadLog(log, FsyncPolicy.NEVER, 0));
+            assertEquals(10, storage.getAllPatients().size());
+            assertEquals(1001, storage.getRecords(3, 0, Long.MAX_VALUE).size());
+            List<PatientRecord> records = storage.getRecords(7, 0, Long.MAX_VALUE);
+            assertEquals(1000, records.size());
+            assertEquals(7999.0, records.get(999).getMeasurementValue());
+        } finally {
+            storage.closeWriteAheadLog();
+            storage.disableTieredStorage();
+            storage.clear();
+            deleteDirectory(directory);
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(log);
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package data_management;
 
 import com.data_management.DataStorage;
+import com.data_management.Subscription;
 import com.data_management.WebSocketDataReader;
 import com.cardio_generator.outputs.WebSocketOutputStrategy;
 import org.junit.jupiter.api.Test;
@@ -51,6 +52,38 @@ class WebSocketDataReaderTest {
         assertTrue(storage.getAllPatients().isEmpty(), "No patient data should be added for malformed messages");
     }
 
+    /**
+     * Tests that a storage failure while adding parsed records is reported as
+     * a storage error, not as a parse error, and that the records of the
+     * failed batch are counted as lost.
+     */
+    @Test
+    void testStorageFailureIsReportedAndCounted() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        WebSocketDataReader reader = new WebSocketDataReader();
+        // A filter that throws makes the storage call fail after parsing succeeded
+        Subscription subscription = storage.subscribe(id -> {
+            throw new IllegalStateException("storage failure");
+        }, null, batch -> { });
+        PrintStream originalErr = System.err;
+        ByteArrayOutputStream errContent = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(errContent));
+        try {
+            var method = WebSocketDataReader.class.getDeclaredMethod("handleMessage", String.class, DataStorage.class);
+            method.setAccessible(true);
+            method.invoke(reader, "1,1714376789050,HeartRate,120.0", storage);
+        } finally {
+            System.setErr(originalErr);
+            subscription.cancel();
+            storage.clear();
+        }
+        String errorOutput = errContent.toString();
+        assertTrue(errorOutput.contains("Error storing WebSocket data"), "Actual: " + errorOutput);
+        assertFalse(errorOutput.contains("Error parsing message"), "Actual: " + errorOutput);
+        assertEquals(1, reader.getLostRecordCount());
+    }
+
     /**
      * Tests the WebSocketDataReader's ability to handle connection failures gracefully.
      * It simulates a scenario where the WebSocket server is unavailable and verifies that
@@ -0,0 +1,151 @@
+package data_management;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import com.data_management.DataStorage;
+import com.data_management.FsyncPolicy;
+import com.data_management.PatientRecord;
+import com.data_management.RecordTypeRegistry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+class WriteAheadLogTest {
+
+    /**
+     * Tests that records written by several threads are all replayed after
+     * the storage is cleared, as after a restart.
+     */
+    @Test
+    void testRecoverRecordsAfterRestart() throws Exception {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        Path log = Files.createTempFile("patients", ".wal");
+        try {
+            assertEquals(0, storage.openWriteAheadLog(log, FsyncPolicy.ALWAYS, 0));
+            Thread[] writers = new Thread[4];
+            for (int w = 0; w < writers.length; w++) {
+                int writer = w;
+                writers[w] = new Thread(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        storage.addPatientData(writer + 1, i, "HeartRate", 1000L + i);
+                    }
+                });
+                writers[w].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            storage.closeWriteAheadLog();
+
+            // Reopen with buffered writes; more than one frame's worth of records
+            storage.openWriteAheadLog(log, FsyncPolicy.NEVER, 0);
+            for (int i = 0; i < 40_000; i++) {
+                storage.addPatientData(1000 + i % 7, i * 0.5, "WalTestType", i);
+            }
+            storage.closeWriteAheadLog();
+            List<PatientRecord> before = storage.getRecords(1001, 0, Long.MAX_VALUE);
+
+            storage.clear();
+            assertEquals(42_000, storage.openWriteAheadLog(log, FsyncPolicy.INTERVAL, 10));
+            assertEquals(500, storage.getRecords(3, 0, Long.MAX_VALUE).size());
+            assertEquals(499.0, storage.getLatest(4, "HeartRate"));
+            List<PatientRecord> after = storage.getRecords(1001, 0, Long.MAX_VALUE);
+            assertEquals(before.size(), after.size());
+            for (int i = 0; i < before.size(); i++) {
+                assertEquals(before.get(i).getTimestamp(), after.get(i).getTimestamp());
+                assertEquals(before.get(i).getMeasurementValue(), after.get(i).getMeasurementValue());
+                assertEquals("WalTestType", after.get(i).getRecordType());
+            }
+        } finally {
+            storage.closeWriteAheadLog();
+            storage.clear();
+            Files.deleteIfExists(log);
+        }
+    }
+
+    /**
+     * Tests that a torn frame at the end of the log is ignored and cut off,
+     * so later records are recovered again.
+     */
+    @Test
+    void testTornTailIsIgnored() throws IOException {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        Path log = Files.createTempFile("patients", ".wal");
+        try {
+            storage.openWriteAheadLog(log, FsyncPolicy.ALWAYS, 0);
+            for (int i = 0; i < 10; i++) {
+                storage.addPatientData(1, i, "Saturation", i);
+            }
+            storage.closeWriteAheadLog();
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.wrap(new byte[] {0, 0, 1, 0, 42, 42, 42}));
+            }
+
+            storage.clear();
+            assertEquals(10, storage.openWriteAheadLog(log, FsyncPolicy.ALWAYS, 0));
+            storage.addPatientData(1, 10, "Saturation", 10);
+            storage.closeWriteAheadLog();
+
+            storage.clear();
+            assertEquals(11, storage.openWriteAheadLog(log, FsyncPolicy.ALWAYS, 0));
+            assertEquals(11, storage.getRecords(1, 0, Long.MAX_VALUE).size());
+        } finally {
+            storage.closeWriteAheadLog();
+            storage.clear();
+            Files.deleteIfExists(log);
+        }
+    }
+
+    /**
+     * Tests that a file that is not a write-ahead log is rejected.
+     */
+    @Test
+    void testRejectsForeignFile() throws IOException {
+        DataStorage storage = DataStorage.getInstance();
+        Path file = Files.createTempFile("patients", ".txt");
+        try {
+            Files.write(file, "Patient ID: 1, Timestamp: 1".getBytes());
+            assertThrows(IOException.class, () -> storage.openWriteAheadLog(file, FsyncPolicy.NEVER, 0));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Tests that samples with an unknown record type code are rejected
+     * before they reach the log, so a restart does not fail on them.
+     */
+    @Test
+    void testRejectsUnknownTypeCodesBeforeLogging() throws IOException {
+        DataStorage storage = DataStorage.getInstance();
+        storage.clear();
+        Path log = Files.createTempFile("patients", ".wal");
+        try {
+            storage.openWriteAheadLog(log, FsyncPolicy.NEVER, 0);
+            int unknown = RecordTypeRegistry.size();
+            assertThrows(IllegalArgumentException.class, () -> storage.addPatientData(1, 1.0, -1, 1000L));
+            assertThrows(IllegalArgumentException.class, () -> storage.addPatientData(1, 1.0, unknown, 1000L));
+            assertThrows(IllegalArgumentException.class, () -> storage.addPatientData(new int[] {1, 2},
+                    new long[] {1000L, 1000L}, new int[] {RecordTypeRegistry.HEART_RATE, -5}, new double[] {1, 2}, 2));
+            storage.addPatientData(1, 72.0, RecordTypeRegistry.HEART_RATE, 2000L);
+            storage.closeWriteAheadLog();
+
+            storage.clear();
+            assertEquals(1, storage.openWriteAheadLog(log, FsyncPolicy.NEVER, 0));
+            assertEquals(1, storage.getRecords(1, 0, Long.MAX_VALUE).size());
+            assertTrue(storage.getRecords(2, 0, Long.MAX_VALUE).isEmpty());
+        } finally {
+            storage.closeWriteAheadLog();
+            storage.clear();
+            Files.deleteIfExists(log);
+        }
+    }
+}